@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Inputs of the benchmarks, generated or recorded.
+ * <p>
+ * A synthetic input is described by its size and number of assets, 100KB/10,
+ * 1MB/200 or 10MB/2000, any other value is the path of a recorded page or
+ * stylesheet, a page saved by Fetch for instance:
+ * <pre>
+ * java -jar benchmarks.jar HtmlBenchmark -p input=./target/public/dashboard.html
+ * </pre>
+ *
+ * @author Michael Suzuki
+ */
+public class Corpus
+{
+    public static final String ORIGIN = "http://localhost:8080";
+    public static final String PAGE_URL = ORIGIN + "/share/page/user/admin/dashboard";
+    private static final Pattern SYNTHETIC = Pattern.compile("(\\d+)(KB|MB)/(\\d+)");
+    private static final String FILLER = "<tr class=\"yui-dt-rec\"><td headers=\"yuievtautoid-0\">"
+            + "<div class=\"yui-dt-liner\">Lorem ipsum dolor sit amet, consectetur adipiscing</div></td></tr>\n";
+    private static final String CSS_FILLER = ".alfresco-lists-views-layouts-Row .value{color:#333;padding:2px 4px;margin:0}\n";
+
+    /**
+     * @param input size and number of assets, 1MB/200, or path of a recorded page
+     * @return page source
+     * @throws IOException if the recorded page can not be read
+     */
+    public static String page(final String input) throws IOException
+    {
+        Matcher matcher = SYNTHETIC.matcher(input);
+        if(!matcher.matches())
+        {
+            return FileUtils.readFileToString(new File(input), StandardCharsets.UTF_8);
+        }
+        int size = getSize(matcher);
+        int assets = Integer.parseInt(matcher.group(3));
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("<!DOCTYPE html><html><head><base href=\"/share/\">")
+          .append("<meta http-equiv=\"X-UA-Compatible\" content=\"IE=edge\"><meta name=\"viewport\" content=\"width=device-width\">")
+          .append("<title>Dashboard</title></head><body><table>");
+        //Spread the assets evenly through the page.
+        int every = Math.max(1, (size / FILLER.length()) / Math.max(1, assets));
+        int added = 0;
+        for(int row = 0; sb.length() < size || added < assets; row++)
+        {
+            if(added < assets && row % every == 0)
+            {
+                appendAsset(sb, added++);
+            }
+            else
+            {
+                sb.append(FILLER);
+            }
+        }
+        return sb.append("</table></body></html>").toString();
+    }
+
+    /**
+     * @param input size and number of rules referencing assets, 1MB/200, or path of a recorded stylesheet
+     * @return stylesheet source
+     * @throws IOException if the recorded stylesheet can not be read
+     */
+    public static String stylesheet(final String input) throws IOException
+    {
+        Matcher matcher = SYNTHETIC.matcher(input);
+        if(!matcher.matches())
+        {
+            return FileUtils.readFileToString(new File(input), StandardCharsets.UTF_8);
+        }
+        int size = getSize(matcher);
+        int assets = Integer.parseInt(matcher.group(3));
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("/* Generated skin */\n@charset \"UTF-8\";\n");
+        int every = Math.max(1, (size / CSS_FILLER.length()) / Math.max(1, assets));
+        int added = 0;
+        for(int rule = 0; sb.length() < size || added < assets; rule++)
+        {
+            if(added < assets && rule % every == 0)
+            {
+                appendReference(sb, added++);
+            }
+            else
+            {
+                sb.append(CSS_FILLER);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int getSize(final Matcher matcher)
+    {
+        int size = Integer.parseInt(matcher.group(1));
+        return "MB".equals(matcher.group(2)) ? size * 1024 * 1024 : size * 1024;
+    }
+
+    private static void appendAsset(final StringBuilder sb, final int i)
+    {
+        switch(i % 5)
+        {
+            case 0:
+                sb.append("<script type=\"text/javascript\" src=\"/share/res/js/module-").append(i).append(".js\"></script>\n");
+                break;
+            case 1:
+                sb.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"/share/res/css/skin-").append(i).append(".css\">\n");
+                break;
+            case 2:
+                sb.append("<style>@import url(\"/share/res/css/import-").append(i).append(".css\");</style>\n");
+                break;
+            case 3:
+                sb.append("<tr><td><img src=\"res/components/images/filetypes/doc-").append(i).append(".png\"></td></tr>\n");
+                break;
+            default:
+                sb.append("<tr><td><img src=\"http://cdn.example.com/avatars/user-").append(i).append(".jpg?size=64\"></td></tr>\n");
+        }
+    }
+
+    private static void appendReference(final StringBuilder sb, final int i)
+    {
+        switch(i % 5)
+        {
+            case 0:
+                sb.append("@import url(\"components/import-").append(i).append(".css\");\n");
+                break;
+            case 1:
+                sb.append(".icon-").append(i).append("{background:url(images/icon-").append(i).append(".png) no-repeat}\n");
+                break;
+            case 2:
+                sb.append("@font-face{font-family:f").append(i).append(";src:url('../fonts/font-").append(i)
+                  .append(".woff2') format('woff2'),url(\"../fonts/font-").append(i).append(".woff\") format('woff')}\n");
+                break;
+            case 3:
+                sb.append(".logo-").append(i).append("{background-image:url(/share/res/themes/logo-").append(i)
+                  .append(".svg#icon);/* url(ignored.png) */}\n");
+                break;
+            default:
+                sb.append(".dot-").append(i).append("{background:url(data:image/gif;base64,R0lGODlhAQABAAAAACw=)}")
+                  .append(".cdn-").append(i).append("{background:url(http://cdn.example.com/img-").append(i).append(".gif)}\n");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.alfresco.selenium.FetchUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the single pass tokenizer of {@link FetchUtil#extractFiles(String)}
+ * with the three regex scans it replaced, in pages per second.
+ *
+ * @author Michael Suzuki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ExtractFilesBenchmark
+{
+    private static final Pattern SRC_PATTERN = Pattern.compile("(?<=src=\")[^\"]*(?<!\")");
+    private static final Pattern CSS_PATTERN = Pattern.compile("(?<=url\\(\").*?(?=\"\\))");
+    private static final Pattern CSS_LINK_PATTERN = Pattern.compile("<link.*?\\>");
+    private static final Pattern HREF_PATTERN = Pattern.compile("(?<=href=\").*?(?=\")");
+    @Param({"100KB/10", "1MB/200", "10MB/2000"})
+    public String input;
+    private String html;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        html = Corpus.page(input);
+    }
+
+    @Benchmark
+    public List<String> regex()
+    {
+        List<String> list = new ArrayList<String>();
+        Matcher matchSrc = SRC_PATTERN.matcher(html);
+        while (matchSrc.find())
+        {
+            list.add(matchSrc.group(0));
+        }
+        Matcher css = CSS_PATTERN.matcher(html);
+        while (css.find())
+        {
+            list.add(css.group(0));
+        }
+        Matcher css2 = CSS_LINK_PATTERN.matcher(html);
+        while (css2.find())
+        {
+            Matcher href = HREF_PATTERN.matcher(css2.group(0));
+            if (href.find())
+            {
+                list.add(href.group(0));
+            }
+        }
+        return list;
+    }
+
+    @Benchmark
+    public List<String> tokenizer()
+    {
+        return FetchUtil.extractFiles(html);
+    }
+}
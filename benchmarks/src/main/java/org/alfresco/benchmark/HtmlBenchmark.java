@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.selenium.FetchUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the scan and rewrite of a page, in pages per second.
+ * Run with <code>-prof gc</code> to report the allocation rate.
+ *
+ * @author Michael Suzuki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class HtmlBenchmark
+{
+    @Param({"100KB/10", "1MB/200", "10MB/2000"})
+    public String input;
+    private String html;
+    private List<String> files;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        html = Corpus.page(input);
+        files = FetchUtil.extractFiles(html);
+    }
+
+    @Benchmark
+    public List<String> extractFiles()
+    {
+        return FetchUtil.extractFiles(html);
+    }
+
+    @Benchmark
+    public List<String> parseURL()
+    {
+        return FetchUtil.parseURL(files, Corpus.ORIGIN, Corpus.PAGE_URL);
+    }
+
+    @Benchmark
+    public String parseHtml()
+    {
+        return FetchUtil.parseHtml(html, files);
+    }
+
+    @Benchmark
+    public String stripMetaTag()
+    {
+        return FetchUtil.stripMetaTag(html);
+    }
+
+    @Benchmark
+    public String stripBaseTag()
+    {
+        return FetchUtil.stripBaseTag(html);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Writes a capture, the page and its assets, as a single zip file.
+ * Entries are streamed into the archive, which is written next to its
+ * destination and moved in place when closed, so a failed capture never
+ * leaves a partial archive behind.
+ * <p>
+ * Formats that are already compressed, images and fonts, are stored
+ * without compression to save the time spent deflating them again.
+ * Read the archive with {@link FetchArchiveReader}.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchArchive implements Closeable
+{
+    private static final String[] COMPRESSED_EXTENSIONS = {".png", ".gif", ".jpg", ".jpeg", ".webp", ".ico",
+            ".woff", ".woff2", ".zip", ".gz", ".mp4", ".webm", ".mp3"};
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final File file;
+    private final File temp;
+    private final ZipOutputStream zip;
+    private boolean closed;
+
+    /**
+     * Content written to an entry of the archive.
+     */
+    public interface Content
+    {
+        /**
+         * @param out stream of the entry, must not be closed
+         * @throws IOException if error
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @param file the archive to create, replaced if it exists
+     * @throws IOException if error
+     */
+    public FetchArchive(final File file) throws IOException
+    {
+        if(file == null)
+        {
+            throw new IllegalArgumentException("Archive file is required");
+        }
+        this.file = file;
+        this.temp = FetchAssetWriter.createTempFile(file);
+        this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+    }
+
+    /**
+     * Add an entry written by the content.
+     * @param name path of the entry in the archive
+     * @param content writes the entry
+     * @throws IOException if error
+     */
+    public synchronized void add(final String name, final Content content) throws IOException
+    {
+        if(name == null || name.isEmpty())
+        {
+            throw new IllegalArgumentException("Entry name is required");
+        }
+        if(closed)
+        {
+            throw new IllegalStateException("Archive is closed");
+        }
+        zip.setLevel(isCompressed(name) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        zip.putNextEntry(new ZipEntry(name));
+        //Entries must not close the archive stream.
+        content.write(new FilterOutputStream(zip)
+        {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                flush();
+            }
+        });
+        zip.closeEntry();
+    }
+
+    /**
+     * Add a file.
+     * @param name path of the entry in the archive
+     * @param source file to add
+     * @throws IOException if error
+     */
+    public void add(final String name, final File source) throws IOException
+    {
+        add(name, out ->
+        {
+            InputStream in = new FileInputStream(source);
+            try
+            {
+                IOUtils.copyLarge(in, out);
+            }
+            finally
+            {
+                in.close();
+            }
+        });
+    }
+
+    /**
+     * Add all the files of a directory.
+     * @param prefix path of the directory in the archive, empty or ending with /
+     * @param directory to add
+     * @return number of files added
+     * @throws IOException if error
+     */
+    public int addDirectory(final String prefix, final File directory) throws IOException
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            return 0;
+        }
+        int count = 0;
+        for(File source : files)
+        {
+            if(source.isDirectory())
+            {
+                count += addDirectory(prefix + source.getName() + "/", source);
+            }
+            else
+            {
+                add(prefix + source.getName(), source);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the archive file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Complete the archive and move it in place.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(closed)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            zip.close();
+            FetchAssetWriter.move(temp, file);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Discard the archive.
+     */
+    public synchronized void abort()
+    {
+        closed = true;
+        IOUtils.closeQuietly(zip);
+        temp.delete();
+    }
+
+    private static boolean isCompressed(final String name)
+    {
+        String lower = name.toLowerCase();
+        int query = lower.indexOf('?');
+        if(query > 0)
+        {
+            lower = lower.substring(0, query);
+        }
+        for(String extension : COMPRESSED_EXTENSIONS)
+        {
+            if(lower.endsWith(extension))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads an archive written by {@link FetchArchive}. Entries are opened on
+ * demand, the archive is only extracted when asked to.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchArchiveReader implements Closeable
+{
+    private final ZipFile zip;
+
+    /**
+     * @param file archive to read
+     * @throws IOException if error
+     */
+    public FetchArchiveReader(final File file) throws IOException
+    {
+        if(file == null)
+        {
+            throw new IllegalArgumentException("Archive file is required");
+        }
+        this.zip = new ZipFile(file);
+    }
+
+    /**
+     * @return names of the entries in the order they were written
+     */
+    public List<String> getEntries()
+    {
+        List<String> names = new ArrayList<String>(zip.size());
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while(entries.hasMoreElements())
+        {
+            ZipEntry entry = entries.nextElement();
+            if(!entry.isDirectory())
+            {
+                names.add(entry.getName());
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return name of the captured page, the first entry outside the asset folder
+     */
+    public String getPage()
+    {
+        for(String name : getEntries())
+        {
+            if(!name.startsWith(FetchUtil.ASSET_FOLDER))
+            {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name of the entry
+     * @return content of the entry, to be closed by the caller, null if not found
+     * @throws IOException if error
+     */
+    public InputStream open(final String name) throws IOException
+    {
+        if(name == null)
+        {
+            throw new IllegalArgumentException("Entry name is required");
+        }
+        ZipEntry entry = zip.getEntry(name);
+        return entry == null ? null : zip.getInputStream(entry);
+    }
+
+    /**
+     * Extract all the entries, the page and its content folder, to a directory.
+     * @param directory target
+     * @return the extracted page
+     * @throws IOException if error
+     */
+    public File extract(final File directory) throws IOException
+    {
+        if(directory == null)
+        {
+            throw new IllegalArgumentException("Directory is required");
+        }
+        String root = directory.getCanonicalPath() + File.separator;
+        for(String name : getEntries())
+        {
+            File output = new File(directory, name);
+            //Entries must not escape the target directory.
+            if(!output.getCanonicalPath().startsWith(root))
+            {
+                throw new IOException("Invalid archive entry " + name);
+            }
+            output.getParentFile().mkdirs();
+            InputStream in = open(name);
+            try
+            {
+                OutputStream out = new FileOutputStream(output);
+                try
+                {
+                    IOUtils.copyLarge(in, out);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        String page = getPage();
+        return page == null ? null : new File(directory, page);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        zip.close();
+    }
+}
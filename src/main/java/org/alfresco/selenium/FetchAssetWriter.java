@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes downloaded assets to disk.
+ * The content is streamed in large chunks through a {@link FileChannel} into a
+ * temporary file next to the output, which is renamed over the output once
+ * the download completes. A failed download never leaves a half written asset
+ * and an asset linked from the {@link FetchContentStore} is never modified in place.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchAssetWriter
+{
+    private static final Log logger = LogFactory.getLog(FetchAssetWriter.class);
+    private static final long CHUNK_SIZE = 1024 * 1024;
+    private static final String TEMP_PREFIX = "fetch";
+    private static final String TEMP_SUFFIX = ".part";
+
+    /**
+     * Stream the content to the output file, the input is always closed.
+     * @param in content to write
+     * @param output destination file
+     * @return number of bytes written
+     * @throws IOException if error
+     */
+    public static long write(final InputStream in, final File output) throws IOException
+    {
+        if(null == in)
+        {
+            throw new IllegalArgumentException("Input stream is required");
+        }
+        if(null == output)
+        {
+            throw new IllegalArgumentException("Output file is required");
+        }
+        File temp = createTempFile(output);
+        boolean complete = false;
+        try
+        {
+            long bytes = transfer(in, temp);
+            move(temp, output);
+            complete = true;
+            return bytes;
+        }
+        finally
+        {
+            if(!complete)
+            {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+    }
+
+    /**
+     * Creates the temporary file in the same directory as the output
+     * so that the final rename stays on the same file system.
+     * @param output destination file
+     * @return temporary {@link File}
+     * @throws IOException if error
+     */
+    static File createTempFile(final File output) throws IOException
+    {
+        File dir = output.getAbsoluteFile().getParentFile();
+        if(!dir.exists())
+        {
+            dir.mkdirs();
+        }
+        return File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, dir);
+    }
+
+    /**
+     * Rename the completed file to the destination, atomically where supported.
+     * @param source completed file
+     * @param output destination
+     * @throws IOException if error
+     */
+    static void move(final File source, final File output) throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), output.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            Files.move(source.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replace the output with the given content.
+     * @param content bytes to write
+     * @param output destination file
+     * @return number of bytes written
+     * @throws IOException if error
+     */
+    public static long write(final byte[] content, final File output) throws IOException
+    {
+        if(null == content)
+        {
+            throw new IllegalArgumentException("Content is required");
+        }
+        return write(new ByteArrayInputStream(content), output);
+    }
+
+    /**
+     * Replace the output with a hard link to the source, or a copy of
+     * the source where the file system does not support links.
+     * @param source existing file
+     * @param output destination file
+     * @throws IOException if error
+     */
+    static void link(final File source, final File output) throws IOException
+    {
+        File temp = createTempFile(output);
+        Files.delete(temp.toPath());
+        try
+        {
+            try
+            {
+                Files.createLink(temp.toPath(), source.toPath());
+            }
+            catch(UnsupportedOperationException | FileSystemException e)
+            {
+                if(logger.isDebugEnabled())
+                {
+                    logger.debug("Unable to link " + output + ", copying " + source, e);
+                }
+                Files.copy(source.toPath(), temp.toPath());
+            }
+            move(temp, output);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Stream the content to the file in large chunks.
+     * @param in content to write
+     * @param temp existing file to write to
+     * @return number of bytes written
+     * @throws IOException if error
+     */
+    static long transfer(final InputStream in, final File temp) throws IOException
+    {
+        ReadableByteChannel source = Channels.newChannel(in);
+        FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+        try
+        {
+            long position = 0;
+            long count;
+            while((count = target.transferFrom(source, position, CHUNK_SIZE)) > 0)
+            {
+                position += count;
+            }
+            return position;
+        }
+        finally
+        {
+            target.close();
+            source.close();
+        }
+    }
+}
@@ -18,33 +18,63 @@
  */
 package org.alfresco.selenium;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.openqa.selenium.WebDriver;
 
 /**
  * Utility that parses the css file and collects all the external images to download
  * to local directory.
- * 
+ * <p>
+ * The stylesheet is streamed through a small tokenizer which finds every url(),
+ * quoted or not, and every @import in a single pass, writing the amended
+ * stylesheet as it goes. Comments and strings are copied untouched.
+ * References are resolved against the stylesheet url and each url is given a single
+ * location below the asset directory, its host and path, the stylesheet is amended
+ * to point to it relative to its own location. Nested stylesheets are
+ * resolved by {@link FetchStylesheetGraph}.
+ * <p>
+ * The stylesheet is read and written as ISO-8859-1 so its bytes are
+ * preserved whatever its actual encoding.
  *
  * @author Michael Suzuki
  */
 public class FetchCSS extends FetchUtil
 {
+    private static final Log logger = LogFactory.getLog(FetchCSS.class);
     private static final String URL_PATH_SEPARATOR = "/";
-    /* regex to locate and extract source of all assets */
-    private static final Pattern CSS_BACKGOUND_IMG_PATTERN = Pattern.compile("(?<=background-image:url\\().*?(?=\\))");
-    //Required to handle strange characters on the page.
+    private static final Charset CSS_CHARSET = StandardCharsets.ISO_8859_1;
+    private static final String[] IGNORED_PREFIXES = {"data:", "#", "about:", "javascript:", "blob:"};
+
     /**
      * Extract additional content found in css.
-     * @param source css 
-     * @return collection of files to get 
+     * @param file css
+     * @param driver {@link WebDriver}
      * @throws IOException if error
      */
     public static void getCSSFiles(File file, WebDriver driver) throws IOException
@@ -53,83 +83,643 @@ public class FetchCSS extends FetchUtil
         {
             throw new IllegalArgumentException("CSS source is required");
         }
-        String source = FileUtils.readFileToString(file);
-        source = source.replaceAll("}", "}\n");
-        String domain = getHost(driver);
-        CloseableHttpClient client = FetchHttpClient.getHttpClient(driver);
-        StringBuffer sb = new StringBuffer();
+        FetchSession session = FetchHttpClient.getSession(driver);
+        getCSSFiles(file, getHost(driver), session.getClient());
+    }
+
+    /**
+     * Extract additional content found in css using an existing client,
+     * does not require the {@link WebDriver} so it is safe to call from any thread.
+     * @param file css
+     * @param baseUrl url of the stylesheet, or the site domain url http://localhost:8080,
+     * used to resolve relative references
+     * @param client {@link CloseableHttpClient}
+     * @throws IOException if error
+     */
+    public static void getCSSFiles(File file, String baseUrl, CloseableHttpClient client) throws IOException
+    {
+        if(file == null)
+        {
+            throw new IllegalArgumentException("CSS source is required");
+        }
+        FetchStylesheetGraph graph = new FetchStylesheetGraph(file.getAbsoluteFile().getParentFile(),
+                client, getDownloader().getExecutor());
+        graph.resolve(baseUrl, file).join();
+    }
+
+    /**
+     * Amend the stylesheet so that its references point to local files, reusing the
+     * result of an identical stylesheet when the {@link FetchMemoryCache} is enabled.
+     * The file is replaced rather than overwritten as it may be linked from the content store.
+     * @param file css
+     * @param baseUrl url used to resolve relative references
+     * @param location path of the stylesheet relative to the asset directory
+     * @param locations path of urls already stored elsewhere than their host and path, may be null
+     * @return {@link Reference} collection found in the stylesheet
+     * @throws IOException if error
+     */
+    static List<Reference> rewrite(final File file,
+                                   final String baseUrl,
+                                   final String location,
+                                   final Map<String, String> locations) throws IOException
+    {
+        FetchMetrics listener = FetchUtil.getMetrics();
+        long start = FetchUtil.now(listener);
+        List<Reference> references = rewriteFile(file, baseUrl, location, locations);
+        FetchUtil.timed(listener, FetchMetrics.Phase.STYLESHEET, start);
+        return references;
+    }
+
+    private static List<Reference> rewriteFile(final File file,
+                                               final String baseUrl,
+                                               final String location,
+                                               final Map<String, String> locations) throws IOException
+    {
+        FetchMemoryCache memory = getMemoryCache();
+        String key = null;
+        if(memory != null && memory.accepts(file.length()))
+        {
+            InputStream in = new FileInputStream(file);
+            try
+            {
+                key = "css:" + baseUrl + ":" + location + ":" + DigestUtils.sha1Hex(in);
+            }
+            finally
+            {
+                in.close();
+            }
+            Stylesheet stylesheet = (Stylesheet) memory.get(key);
+            if(stylesheet != null)
+            {
+                FetchAssetWriter.write(stylesheet.css, file);
+                return stylesheet.references;
+            }
+        }
+        List<Reference> references = rewrite(file, new Context(baseUrl, getDirectory(location), locations));
+        if(key != null)
+        {
+            Stylesheet stylesheet = new Stylesheet(FileUtils.readFileToByteArray(file), references);
+            memory.put(key, stylesheet, stylesheet.size());
+        }
+        return references;
+    }
+
+    /**
+     * Replace the references to local files of an amended stylesheet by data uris,
+     * once the files are downloaded, see {@link FetchInline}.
+     * @param file css already amended by {@link #rewrite(File, String, String, Map)}
+     * @param replacements data uri of each reference as amended, relative to the stylesheet
+     * @throws IOException if error
+     */
+    static void inline(final File file, final Map<String, String> replacements) throws IOException
+    {
+        rewrite(file, new Context(replacements));
+    }
+
+    /**
+     * Amend the stylesheet in a temporary file, moved in place once complete.
+     */
+    private static List<Reference> rewrite(final File file, final Context context) throws IOException
+    {
+        List<Reference> references;
+        File temp = FetchAssetWriter.createTempFile(file);
         try
         {
-            //Extract all source files
-            Matcher matchSrc = CSS_BACKGOUND_IMG_PATTERN.matcher(source);
-            while (matchSrc.find()) 
+            Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CSS_CHARSET));
+            try
             {
-                //Change extracted source file to absolute urls 
-                String fileSourceOri = matchSrc.group(0);
-                String fileSource = fileSourceOri.replaceAll("\"", "");
-                if(!fileSource.startsWith("data:image"))
+                Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), CSS_CHARSET));
+                try
                 {
-                    if(fileSource.startsWith("//"))
-                    {
-                        fileSource = fileSource.replace("//", "http://");
-                    }
-                    else if(fileSource.startsWith("/"))
-                    {
-                        fileSource = fileSource.replaceFirst("/", domain + "/");
-                    }
-                    //Add to collection of paths for downloading
-                    getCssFile(fileSource,fileSourceOri, client);
+                    references = rewrite(reader, writer, context);
                 }
-                //Amend path to point to file in the same directory
-                if(!fileSourceOri.startsWith("//") || fileSourceOri.startsWith("\"/"))
+                finally
                 {
-                    String t = fileSourceOri.replaceFirst("\"/", "\"");
-                    matchSrc.appendReplacement(sb, t);
+                    writer.close();
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+            FetchAssetWriter.move(temp, file);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+        return references;
+    }
+
+    /**
+     * Stream the stylesheet from the reader to the writer, amending every
+     * url() and @import to point to the local copy of the asset.
+     * @param reader css source
+     * @param writer amended css output
+     * @param baseUrl url used to resolve relative references
+     * @param location path of the stylesheet relative to the asset directory,
+     * null or a name without directory when it is stored in the asset directory
+     * @return {@link Reference} collection found in the stylesheet, without duplicates
+     * @throws IOException if error
+     */
+    public static List<Reference> rewrite(final Reader reader,
+                                          final Writer writer,
+                                          final String baseUrl,
+                                          final String location) throws IOException
+    {
+        return rewrite(reader, writer, baseUrl, location, null);
+    }
+
+    static List<Reference> rewrite(final Reader reader,
+                                   final Writer writer,
+                                   final String baseUrl,
+                                   final String location,
+                                   final Map<String, String> locations) throws IOException
+    {
+        if(reader == null || writer == null)
+        {
+            throw new IllegalArgumentException("CSS reader and writer are required");
+        }
+        return rewrite(reader, writer, new Context(baseUrl, getDirectory(location), locations));
+    }
+
+    /**
+     * @param location path of the stylesheet relative to the asset directory, may be null
+     * @return directory of the stylesheet, empty or ending with a separator
+     */
+    static String getDirectory(final String location)
+    {
+        return location == null ? "" : location.substring(0, location.lastIndexOf(URL_PATH_SEPARATOR) + 1);
+    }
+
+    private static List<Reference> rewrite(final Reader reader, final Writer writer, final Context context) throws IOException
+    {
+        PushbackReader in = new PushbackReader(reader, 1);
+        boolean importing = false;
+        int c;
+        while((c = in.read()) != -1)
+        {
+            if(c == '/')
+            {
+                writer.write(c);
+                int next = in.read();
+                if(next == '*')
+                {
+                    writer.write(next);
+                    copyComment(in, writer);
                 }
                 else
                 {
-                    
-                    matchSrc.appendReplacement(sb, fileSourceOri);
+                    unread(in, next);
                 }
-            } 
-            if(sb.length() < 1) 
+            }
+            else if(c == '"' || c == '\'')
             {
-                FileUtils.writeStringToFile(file, source);
+                writer.write(c);
+                if(importing)
+                {
+                    //@import "file.css";
+                    writer.write(reference(readString(in, c), true, context));
+                    writer.write(c);
+                    importing = false;
+                }
+                else
+                {
+                    copyString(in, writer, c);
+                }
+            }
+            else if(c == '@')
+            {
+                String name = readIdentifier(in);
+                writer.write(c);
+                writer.write(name);
+                importing = "import".equalsIgnoreCase(name);
+            }
+            else if(c == '\\')
+            {
+                //Escaped character, copied as is.
+                writer.write(c);
+                int next = in.read();
+                if(next != -1)
+                {
+                    writer.write(next);
+                }
+            }
+            else if(isIdentifierStart(c))
+            {
+                unread(in, c);
+                String name = readIdentifier(in);
+                writer.write(name);
+                int next = in.read();
+                if(next == '(' && "url".equalsIgnoreCase(name))
+                {
+                    writer.write(next);
+                    copyUrl(in, writer, importing, context);
+                    importing = false;
+                }
+                else
+                {
+                    unread(in, next);
+                }
             }
             else
             {
-                FileUtils.writeStringToFile(file, sb.toString());
+                if(c == ';' || c == '{' || c == '}')
+                {
+                    importing = false;
+                }
+                writer.write(c);
             }
-            
-        
         }
-        finally
+        writer.flush();
+        return new ArrayList<Reference>(context.references.values());
+    }
+
+    /**
+     * Copy the value of url( up to and including the closing parenthesis,
+     * replacing the reference with its local path.
+     */
+    private static void copyUrl(final PushbackReader in,
+                                final Writer writer,
+                                final boolean stylesheet,
+                                final Context context) throws IOException
+    {
+        int c = in.read();
+        while(isWhitespace(c))
+        {
+            writer.write(c);
+            c = in.read();
+        }
+        if(c == -1)
+        {
+            return;
+        }
+        if(c == '"' || c == '\'')
         {
-            HttpClientUtils.closeQuietly(client);
+            writer.write(c);
+            writer.write(reference(readString(in, c), stylesheet, context));
+            writer.write(c);
+            c = in.read();
+        }
+        else
+        {
+            StringBuilder sb = new StringBuilder();
+            StringBuilder space = new StringBuilder();
+            while(c != -1 && c != ')')
+            {
+                if(isWhitespace(c))
+                {
+                    space.append((char) c);
+                }
+                else
+                {
+                    sb.append(space).append((char) c);
+                    space.setLength(0);
+                }
+                c = in.read();
+            }
+            writer.write(reference(sb.toString(), stylesheet, context));
+            writer.write(space.toString());
+        }
+        //Copy whatever remains up to the closing parenthesis.
+        while(c != -1)
+        {
+            writer.write(c);
+            if(c == ')')
+            {
+                return;
+            }
+            c = in.read();
         }
     }
-    
+
     /**
-     * Gets the external file using http client and stores the css and 
-     * directory layout to content.
-     * @param source file name
-     * @param client {@link CloseableHttpClient}
-     * @return {@link File} output.
-     * @throws IOException if error
+     * Record the reference and work out where it is stored.
+     * @param value reference as found in the stylesheet
+     * @param stylesheet true if the reference is imported as a stylesheet
+     * @param context state of the stylesheet being amended
+     * @return the value to write in place of the reference
      */
-    private static File getCssFile(final String sourceURL, final String filePath,
-            final CloseableHttpClient client) throws IOException
+    private static String reference(final String value, final boolean stylesheet, final Context context)
     {
-        String source = filePath.replaceAll("\"", "");
-        int index  = source.lastIndexOf(URL_PATH_SEPARATOR);
-        String path = source.substring(0, index);
-        String name = source.substring(index);
-        File target = new File(ASSET_DIR + path);
-        if(!target.exists()) 
+        if(value.isEmpty())
+        {
+            return value;
+        }
+        if(context.replacements != null)
+        {
+            int fragment = value.indexOf('#');
+            String replacement = context.replacements.get(fragment < 0 ? value : value.substring(0, fragment));
+            if(replacement == null)
+            {
+                return value;
+            }
+            return fragment < 0 ? replacement : replacement + value.substring(fragment);
+        }
+        for(String prefix : IGNORED_PREFIXES)
         {
-            target.mkdirs();
+            if(value.regionMatches(true, 0, prefix, 0, prefix.length()))
+            {
+                return value;
+            }
+        }
+        try
+        {
+            URI uri = new URI(value.replace(" ", "%20"));
+            URI resolved = context.baseUrl == null ? uri : new URI(context.baseUrl.replace(" ", "%20")).resolve(uri);
+            if(resolved.getScheme() == null)
+            {
+                //Protocol relative with no base to take it from.
+                resolved = new URI("http:" + resolved.toString());
+            }
+            if(resolved.getHost() == null)
+            {
+                return value;
+            }
+            String url = resolved.toString();
+            if(resolved.getRawFragment() != null)
+            {
+                url = url.substring(0, url.length() - resolved.getRawFragment().length() - 1);
+            }
+            String path = context.locations == null ? null : context.locations.get(url);
+            if(path == null)
+            {
+                path = getLocalPath(resolved);
+            }
+            if(!context.references.containsKey(url))
+            {
+                context.references.put(url, new Reference(url, path, stylesheet));
+            }
+            String relative = relativize(context.directory, path);
+            //Keep the fragment, svg fonts and sprites use it.
+            return uri.getRawFragment() == null ? relative : relative + "#" + uri.getRawFragment();
+        }
+        catch(URISyntaxException | IllegalArgumentException e)
+        {
+            if(logger.isDebugEnabled())
+            {
+                logger.debug("Unable to resolve css reference " + value, e);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The location of a url below the asset directory, its host and path.
+     * The path is normalized and the dot segments left, /../x.png or an
+     * encoded /%2e%2e/x.png, are dropped so the file stays in the directory.
+     * The name of a url with a query is prefixed by a hash of the query,
+     * sprite.png?v=1 and sprite.png?v=2 are different files.
+     * @param resolved absolute url
+     * @return path relative to the asset directory
+     */
+    static String getLocalPath(final URI resolved)
+    {
+        String raw = resolved.normalize().getRawPath();
+        StringBuilder path = new StringBuilder(resolved.getHost());
+        if(raw != null)
+        {
+            for(String segment : raw.split(URL_PATH_SEPARATOR))
+            {
+                if(!segment.isEmpty() && !isDotSegment(segment))
+                {
+                    path.append(URL_PATH_SEPARATOR).append(segment);
+                }
+            }
+        }
+        if(raw == null || raw.isEmpty() || raw.endsWith(URL_PATH_SEPARATOR) || path.indexOf(URL_PATH_SEPARATOR) < 0)
+        {
+            path.append(URL_PATH_SEPARATOR).append("index");
+        }
+        String query = resolved.getRawQuery();
+        if(query != null)
+        {
+            String hash = DigestUtils.sha1Hex(query).substring(0, FetchOutput.HASH_LENGTH);
+            path.insert(path.lastIndexOf(URL_PATH_SEPARATOR) + 1, hash + "-");
+        }
+        return path.toString();
+    }
+
+    /**
+     * @param segment raw segment of a url path
+     * @return true if the segment decodes to . or ..
+     */
+    private static boolean isDotSegment(final String segment)
+    {
+        String decoded = segment.replaceAll("(?i)%2e", ".");
+        return ".".equals(decoded) || "..".equals(decoded);
+    }
+
+    /**
+     * Path from a directory to a file, both relative to the asset directory.
+     * @param directory empty or ending with a separator
+     * @param path file path
+     * @return relative path
+     */
+    static String relativize(final String directory, final String path)
+    {
+        String[] from = directory.isEmpty() ? new String[0] : directory.split(URL_PATH_SEPARATOR);
+        String[] to = path.split(URL_PATH_SEPARATOR);
+        int common = 0;
+        while(common < from.length && common < to.length - 1 && from[common].equals(to[common]))
+        {
+            common++;
+        }
+        StringBuilder sb = new StringBuilder();
+        for(int i = common; i < from.length; i++)
+        {
+            sb.append("..").append(URL_PATH_SEPARATOR);
+        }
+        for(int i = common; i < to.length; i++)
+        {
+            if(i > common)
+            {
+                sb.append(URL_PATH_SEPARATOR);
+            }
+            sb.append(to[i]);
+        }
+        return sb.toString();
+    }
+
+    private static void copyComment(final PushbackReader in, final Writer writer) throws IOException
+    {
+        int previous = -1;
+        int c;
+        while((c = in.read()) != -1)
+        {
+            writer.write(c);
+            if(previous == '*' && c == '/')
+            {
+                return;
+            }
+            previous = c;
+        }
+    }
+
+    private static void copyString(final PushbackReader in, final Writer writer, final int quote) throws IOException
+    {
+        int c;
+        while((c = in.read()) != -1)
+        {
+            writer.write(c);
+            if(c == '\\')
+            {
+                c = in.read();
+                if(c == -1)
+                {
+                    return;
+                }
+                writer.write(c);
+            }
+            else if(c == quote || c == '\n')
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read a quoted string, the opening quote has been read and the closing quote is consumed.
+     */
+    private static String readString(final PushbackReader in, final int quote) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = in.read()) != -1 && c != quote && c != '\n')
+        {
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private static String readIdentifier(final PushbackReader in) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = in.read()) != -1 && (isIdentifierStart(c) || (c >= '0' && c <= '9')))
+        {
+            sb.append((char) c);
+        }
+        unread(in, c);
+        return sb.toString();
+    }
+
+    private static void unread(final PushbackReader in, final int c) throws IOException
+    {
+        if(c != -1)
+        {
+            in.unread(c);
+        }
+    }
+
+    private static boolean isIdentifierStart(final int c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-' || c == '_' || c > 127;
+    }
+
+    private static boolean isWhitespace(final int c)
+    {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * An asset referenced by a stylesheet, its absolute url and
+     * its location relative to the asset directory.
+     */
+    public static class Reference
+    {
+        private final String url;
+        private final String path;
+        private final boolean stylesheet;
+
+        Reference(final String url, final String path, final boolean stylesheet)
+        {
+            this.url = url;
+            this.path = path;
+            this.stylesheet = stylesheet;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return true if referenced by an @import or named as a stylesheet
+         */
+        public boolean isStylesheet()
+        {
+            return stylesheet || path.endsWith(".css");
+        }
+
+        long size()
+        {
+            return (url.length() + path.length()) * 2 + 16;
+        }
+
+        @Override
+        public String toString()
+        {
+            return url + " -> " + path;
+        }
+    }
+
+    /**
+     * State of the stylesheet being amended.
+     */
+    private static class Context
+    {
+        private final String baseUrl;
+        private final String directory;
+        private final Map<String, String> locations;
+        /** Replace the references as they are instead of resolving them. */
+        private final Map<String, String> replacements;
+        private final Map<String, Reference> references = new LinkedHashMap<String, Reference>();
+
+        Context(final String baseUrl, final String directory, final Map<String, String> locations)
+        {
+            this.baseUrl = baseUrl;
+            this.directory = directory;
+            this.locations = locations;
+            this.replacements = null;
+        }
+
+        Context(final Map<String, String> replacements)
+        {
+            this.baseUrl = null;
+            this.directory = "";
+            this.locations = null;
+            this.replacements = replacements;
+        }
+    }
+
+    /**
+     * Result of amending a stylesheet, the amended css and its references.
+     */
+    private static class Stylesheet
+    {
+        private final byte[] css;
+        private final List<Reference> references;
+
+        Stylesheet(final byte[] css, final List<Reference> references)
+        {
+            this.css = css;
+            this.references = references;
+        }
+
+        long size()
+        {
+            long size = css.length;
+            for(Reference reference : references)
+            {
+                size += reference.size();
+            }
+            return size;
         }
-        File out = new File(ASSET_DIR + path + name);
-        return retrieveFile(sourceURL, client, out);
     }
 }
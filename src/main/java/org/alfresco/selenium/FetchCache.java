@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Persistent HTTP revalidation cache for downloaded assets.
+ * The validators (ETag and Last-Modified) and freshness of every asset are
+ * kept on disk with a copy of its content, so later captures, including
+ * those of a new run, can send a conditional request and reuse the local
+ * copy when the server answers 304. Assets that are still fresh according to
+ * <code>Cache-Control: max-age</code>, <code>immutable</code> or <code>Expires</code>
+ * are not requested at all.
+ * <p>
+ * The cache is enabled with {@link FetchUtil#setCache(FetchCache)}
+ * or the <code>fetch.cache</code> system property set to the cache directory.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchCache
+{
+    private static final Log logger = LogFactory.getLog(FetchCache.class);
+    private static final String ENTRY_SUFFIX = ".properties";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String URL = "url";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String EXPIRES = "expires";
+    static final long NO_STORE = -1;
+    private final File root;
+
+    /**
+     * @param root directory holding the cache index and content
+     */
+    public FetchCache(final File root)
+    {
+        if(null == root)
+        {
+            throw new IllegalArgumentException("Cache directory is required");
+        }
+        this.root = root;
+        if(!root.exists())
+        {
+            root.mkdirs();
+        }
+    }
+
+    /**
+     * Gets the cached entry of the url.
+     * @param url absolute url of the asset
+     * @return {@link Entry} or null if the url is not cached
+     */
+    public Entry get(final String url)
+    {
+        String key = DigestUtils.sha1Hex(url);
+        File index = new File(root, key + ENTRY_SUFFIX);
+        File body = new File(root, key + BODY_SUFFIX);
+        if(!index.exists() || !body.exists())
+        {
+            return null;
+        }
+        Properties properties = new Properties();
+        try
+        {
+            InputStream in = new FileInputStream(index);
+            try
+            {
+                properties.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            logger.error("Unable to read cache entry of " + url, e);
+            return null;
+        }
+        //Guard against hash collisions.
+        if(!url.equals(properties.getProperty(URL)))
+        {
+            return null;
+        }
+        return new Entry(url, key,
+                properties.getProperty(ETAG),
+                properties.getProperty(LAST_MODIFIED),
+                Long.parseLong(properties.getProperty(EXPIRES, "0")));
+    }
+
+    /**
+     * Copy the cached content of the entry to the output.
+     * @param entry {@link Entry} to restore
+     * @param output destination file
+     * @return true if restored
+     */
+    public boolean restore(final Entry entry, final File output)
+    {
+        try
+        {
+            FetchAssetWriter.link(new File(root, entry.key + BODY_SUFFIX), output);
+            return true;
+        }
+        catch(IOException e)
+        {
+            logger.error("Unable to restore " + entry.url + " from cache", e);
+            return false;
+        }
+    }
+
+    /**
+     * Cache a downloaded asset, only responses that can be revalidated
+     * or are fresh for a while are kept.
+     * @param url absolute url of the asset
+     * @param response successful {@link HttpResponse} of the download
+     * @param output downloaded file
+     * @throws IOException if error
+     */
+    public void put(final String url, final HttpResponse response, final File output) throws IOException
+    {
+        String etag = getHeader(response, HttpHeaders.ETAG);
+        String lastModified = getHeader(response, HttpHeaders.LAST_MODIFIED);
+        long expires = getExpiry(response, System.currentTimeMillis());
+        String key = DigestUtils.sha1Hex(url);
+        if(expires == NO_STORE || (etag == null && lastModified == null && expires <= System.currentTimeMillis()))
+        {
+            remove(key);
+            return;
+        }
+        FetchAssetWriter.link(output, new File(root, key + BODY_SUFFIX));
+        write(new Entry(url, key, etag, lastModified, expires));
+    }
+
+    /**
+     * Update the freshness of an entry after the server confirmed it is not modified.
+     * @param entry {@link Entry} that was revalidated
+     * @param response 304 {@link HttpResponse}
+     * @throws IOException if error
+     */
+    public void refresh(final Entry entry, final HttpResponse response) throws IOException
+    {
+        long expires = getExpiry(response, System.currentTimeMillis());
+        if(expires == NO_STORE)
+        {
+            remove(entry.key);
+            return;
+        }
+        String etag = getHeader(response, HttpHeaders.ETAG);
+        String lastModified = getHeader(response, HttpHeaders.LAST_MODIFIED);
+        write(new Entry(entry.url, entry.key,
+                etag == null ? entry.etag : etag,
+                lastModified == null ? entry.lastModified : lastModified,
+                expires));
+    }
+
+    /**
+     * @return directory holding the cache index and content
+     */
+    public File getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Works out until when a response is fresh from its caching headers.
+     * @param response {@link HttpResponse}
+     * @param now current time in milliseconds
+     * @return expiry time in milliseconds, -1 if the response must not be stored
+     */
+    static long getExpiry(final HttpResponse response, final long now)
+    {
+        boolean noCache = false;
+        boolean immutable = false;
+        long maxAge = -1;
+        for(Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL))
+        {
+            for(HeaderElement element : header.getElements())
+            {
+                String name = element.getName();
+                if("no-store".equalsIgnoreCase(name))
+                {
+                    return NO_STORE;
+                }
+                else if("no-cache".equalsIgnoreCase(name))
+                {
+                    noCache = true;
+                }
+                else if("immutable".equalsIgnoreCase(name))
+                {
+                    immutable = true;
+                }
+                else if("max-age".equalsIgnoreCase(name) && element.getValue() != null)
+                {
+                    try
+                    {
+                        maxAge = Long.parseLong(element.getValue().trim());
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+        if(noCache)
+        {
+            return 0;
+        }
+        if(immutable)
+        {
+            return Long.MAX_VALUE;
+        }
+        if(maxAge >= 0)
+        {
+            return now + maxAge * 1000;
+        }
+        String expires = getHeader(response, HttpHeaders.EXPIRES);
+        if(expires != null)
+        {
+            Date date = DateUtils.parseDate(expires);
+            return date == null ? 0 : date.getTime();
+        }
+        return 0;
+    }
+
+    private void write(final Entry entry) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty(URL, entry.url);
+        properties.setProperty(EXPIRES, Long.toString(entry.expires));
+        if(entry.etag != null)
+        {
+            properties.setProperty(ETAG, entry.etag);
+        }
+        if(entry.lastModified != null)
+        {
+            properties.setProperty(LAST_MODIFIED, entry.lastModified);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, null);
+        FetchAssetWriter.write(out.toByteArray(), new File(root, entry.key + ENTRY_SUFFIX));
+    }
+
+    private void remove(final String key) throws IOException
+    {
+        Files.deleteIfExists(new File(root, key + ENTRY_SUFFIX).toPath());
+        Files.deleteIfExists(new File(root, key + BODY_SUFFIX).toPath());
+    }
+
+    private static String getHeader(final HttpResponse response, final String name)
+    {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Cached validators and freshness of an asset.
+     */
+    public static class Entry
+    {
+        private final String url;
+        private final String key;
+        private final String etag;
+        private final String lastModified;
+        private final long expires;
+
+        Entry(final String url, final String key, final String etag, final String lastModified, final long expires)
+        {
+            this.url = url;
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        /**
+         * @return true if the asset can be used without asking the server
+         */
+        public boolean isFresh()
+        {
+            return System.currentTimeMillis() < expires;
+        }
+
+        /**
+         * Make the request conditional on the cached validators.
+         * @param request {@link HttpRequest}
+         */
+        public void addValidators(final HttpRequest request)
+        {
+            if(etag != null)
+            {
+                request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+            }
+            if(lastModified != null)
+            {
+                request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        public String getLastModified()
+        {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+
+/**
+ * Gzip storage of the text assets of a capture, enabled with <code>fetch.compress</code>.
+ * <p>
+ * Compressed assets are stored with a .gz suffix, app.js as app.js.gz, while the
+ * page keeps referring to app.js. When the server already sent the asset with
+ * <code>Content-Encoding: gzip</code> its bytes are stored as received, they are
+ * neither decompressed nor compressed again. Stylesheets are not compressed, they
+ * are rewritten once downloaded. Use {@link #expand(File)} to view a compressed capture.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchCompression
+{
+    public static final String GZIP = "gzip";
+    public static final String SUFFIX = ".gz";
+    private static final String[] TEXT_EXTENSIONS = {".html", ".htm", ".js", ".mjs", ".json", ".map",
+            ".svg", ".txt", ".xml"};
+
+    /**
+     * @param name file name of the asset
+     * @return true if the asset is text that is stored compressed
+     */
+    public static boolean isCompressible(final String name)
+    {
+        if(name == null)
+        {
+            return false;
+        }
+        String lower = name.toLowerCase();
+        for(String extension : TEXT_EXTENSIONS)
+        {
+            if(lower.endsWith(extension))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param output uncompressed file
+     * @return the file storing the compressed content
+     */
+    public static File getCompressedFile(final File output)
+    {
+        return new File(output.getPath() + SUFFIX);
+    }
+
+    /**
+     * @param entity response body
+     * @return true if the body is sent gzip encoded
+     */
+    public static boolean isGzip(final HttpEntity entity)
+    {
+        Header encoding = entity.getContentEncoding();
+        return encoding != null && GZIP.equalsIgnoreCase(encoding.getValue().trim());
+    }
+
+    /**
+     * Compress the content in memory, text assets are small.
+     * @param in content, always closed
+     * @return gzip bytes
+     * @throws IOException if error
+     */
+    public static byte[] compress(final InputStream in) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(bytes);
+            IOUtils.copyLarge(in, out);
+            out.close();
+            return bytes.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Decompress all the .gz files of a capture in place, to open it in a browser.
+     * @param directory output of the captures or one of its folders
+     * @return number of files decompressed
+     * @throws IOException if error
+     */
+    public static int expand(final File directory) throws IOException
+    {
+        if(directory == null)
+        {
+            throw new IllegalArgumentException("Directory is required");
+        }
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            return 0;
+        }
+        int count = 0;
+        for(File file : files)
+        {
+            if(file.isDirectory())
+            {
+                count += expand(file);
+            }
+            else if(file.getName().endsWith(SUFFIX))
+            {
+                String path = file.getPath();
+                File output = new File(path.substring(0, path.length() - SUFFIX.length()));
+                InputStream in = new FileInputStream(file);
+                try
+                {
+                    in = new GZIPInputStream(in);
+                }
+                catch(IOException e)
+                {
+                    in.close();
+                    throw e;
+                }
+                FetchAssetWriter.write(in, output);
+                file.delete();
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Content addressed store which keeps a single copy of each downloaded asset.
+ * The content is stored once under its SHA-1 hash, the asset file of a capture
+ * is a hard link to the stored blob, or a copy where the file system does not
+ * support links.
+ * <p>
+ * Assets linked from the store must be replaced rather than written in place,
+ * {@link FetchAssetWriter} always does so.
+ * <p>
+ * The store is enabled with {@link FetchUtil#setContentStore(FetchContentStore)}
+ * or the <code>fetch.store</code> system property set to the store directory.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchContentStore
+{
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private final File root;
+
+    /**
+     * @param root directory holding the blobs
+     */
+    public FetchContentStore(final File root)
+    {
+        if(null == root)
+        {
+            throw new IllegalArgumentException("Store directory is required");
+        }
+        this.root = root;
+        if(!root.exists())
+        {
+            root.mkdirs();
+        }
+    }
+
+    /**
+     * Stream the content into the store and link the output to the stored blob.
+     * The input is always closed.
+     * @param in content to store
+     * @param output asset file of the capture
+     * @return number of bytes of the content
+     * @throws IOException if error
+     */
+    public long write(final InputStream in, final File output) throws IOException
+    {
+        if(null == in)
+        {
+            throw new IllegalArgumentException("Input stream is required");
+        }
+        if(null == output)
+        {
+            throw new IllegalArgumentException("Output file is required");
+        }
+        MessageDigest digest = createDigest();
+        File temp = FetchAssetWriter.createTempFile(new File(root, "blob"));
+        try
+        {
+            long bytes = FetchAssetWriter.transfer(new DigestInputStream(in, digest), temp);
+            File blob = getBlob(Hex.encodeHexString(digest.digest()));
+            if(blob.exists())
+            {
+                Files.delete(temp.toPath());
+            }
+            else
+            {
+                blob.getParentFile().mkdirs();
+                FetchAssetWriter.move(temp, blob);
+            }
+            FetchAssetWriter.link(blob, output);
+            return bytes;
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * @param hash hex encoded SHA-1 of the content
+     * @return {@link File} location of the blob in the store
+     */
+    public File getBlob(final String hash)
+    {
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * @return directory holding the blobs
+     */
+    public File getRoot()
+    {
+        return root;
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("Unable to hash content", e);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Stores successive captures of the same page as differences.
+ * The first capture of a url is written in full, the following ones as a
+ * .delta file listing the changes against the previous capture of the url,
+ * page-2.html.delta for page-2.html. A capture identical to the previous one
+ * is not stored again, nor are its assets downloaded.
+ * <p>
+ * The HTML is compared tag by tag, see {@link #tokenize(String)}. A capture
+ * is written in full when the difference is not worth it, when it is more
+ * than half of the page or too many edits, and every <code>maxChain</code>
+ * captures so that rebuilding a page only reads a few files. Use
+ * {@link #read(File)} to rebuild a page from its delta.
+ * <p>
+ * The delta mode is enabled with {@link FetchUtil#setDelta(FetchDelta)} or
+ * the <code>fetch.delta</code> system property.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchDelta
+{
+    public static final String SUFFIX = ".delta";
+    private static final String HEADER = "fetch-delta 1";
+    private static final String BASE = "base ";
+    private static final String SHA1 = "sha1 ";
+    private static final char KEEP = '=';
+    private static final char DELETE = '-';
+    private static final char INSERT = '+';
+    private static final int MAX_EDITS = 1000;
+    private final int maxPages;
+    private final int maxChain;
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap<String, Page>(16, 0.75f, true);
+
+    /**
+     * Keeps the last capture of 16 pages, a page is stored in full every 16 captures.
+     */
+    public FetchDelta()
+    {
+        this(16, 16);
+    }
+
+    /**
+     * @param maxPages number of urls whose last capture is kept in memory
+     * @param maxChain number of deltas written before the page is stored in full again
+     */
+    public FetchDelta(final int maxPages, final int maxChain)
+    {
+        if(maxPages < 1 || maxChain < 1)
+        {
+            throw new IllegalArgumentException("Delta limits must be greater than zero");
+        }
+        this.maxPages = maxPages;
+        this.maxChain = maxChain;
+    }
+
+    /**
+     * @param url of the page
+     * @param source HTML of the page as captured
+     * @return the file of the previous capture when the page has not changed, null otherwise
+     */
+    public File getUnchanged(final String url, final String source)
+    {
+        Page page;
+        synchronized (pages)
+        {
+            page = pages.get(url);
+        }
+        return page != null && page.hash.equals(DigestUtils.sha1Hex(source)) && page.file.exists() ? page.file : null;
+    }
+
+    /**
+     * Write the capture of the page, in full or as a delta against the previous capture.
+     * @param url of the page
+     * @param source HTML of the page as captured
+     * @param html HTML to store, with the new locations of the assets
+     * @param file output of the full page, gzip compressed when the name ends with .gz
+     * @return the file written, the output or its .delta file
+     * @throws IOException if error
+     */
+    public File write(final String url, final String source, final String html, final File file) throws IOException
+    {
+        List<String> tokens = tokenize(html);
+        synchronized (pages)
+        {
+            Page previous = pages.get(url);
+            File output = new File(file.getPath().replaceFirst("\\" + FetchCompression.SUFFIX + "$", "") + SUFFIX);
+            List<File> chain = new ArrayList<File>();
+            String delta = null;
+            //A delta never replaces a file it is built on.
+            if(previous != null && previous.chain.size() <= maxChain && previous.file.exists()
+                    && !previous.chain.contains(output.getAbsoluteFile()))
+            {
+                delta = diff(previous.tokens, tokens, relativize(file, previous.file), html);
+            }
+            if(delta != null && delta.length() < html.length() / 2)
+            {
+                FetchAssetWriter.write(delta.getBytes(StandardCharsets.UTF_8), output);
+                chain.addAll(previous.chain);
+            }
+            else
+            {
+                output = file;
+                byte[] content = html.getBytes(StandardCharsets.UTF_8);
+                if(file.getName().endsWith(FetchCompression.SUFFIX))
+                {
+                    content = FetchCompression.compress(new ByteArrayInputStream(content));
+                }
+                FetchAssetWriter.write(content, output);
+            }
+            chain.add(output.getAbsoluteFile());
+            pages.put(url, new Page(DigestUtils.sha1Hex(source), output, tokens, chain));
+            Iterator<Map.Entry<String, Page>> eldest = pages.entrySet().iterator();
+            while(pages.size() > maxPages && eldest.hasNext())
+            {
+                eldest.next();
+                eldest.remove();
+            }
+            return output;
+        }
+    }
+
+    /**
+     * Forget the previous captures, the next capture of each page is stored in full.
+     */
+    public void clear()
+    {
+        synchronized (pages)
+        {
+            pages.clear();
+        }
+    }
+
+    /**
+     * Read the HTML of a capture, rebuilding it when it is stored as a delta.
+     * @param file capture, page.html, page.html.gz or page.html.delta
+     * @return HTML of the page
+     * @throws IOException if error or the delta does not match its base
+     */
+    public static String read(final File file) throws IOException
+    {
+        if(file == null)
+        {
+            throw new IllegalArgumentException("File is required");
+        }
+        if(file.getName().endsWith(FetchCompression.SUFFIX))
+        {
+            InputStream in = new GZIPInputStream(new FileInputStream(file));
+            try
+            {
+                return IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        if(!file.getName().endsWith(SUFFIX))
+        {
+            return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try
+        {
+            String header = reader.readLine();
+            String base = reader.readLine();
+            String hash = reader.readLine();
+            if(!HEADER.equals(header) || base == null || !base.startsWith(BASE) || hash == null || !hash.startsWith(SHA1))
+            {
+                throw new IOException("Invalid delta " + file);
+            }
+            List<String> tokens = tokenize(read(new File(file.getAbsoluteFile().getParentFile(), base.substring(BASE.length()))));
+            StringBuilder html = new StringBuilder();
+            int index = 0;
+            String line;
+            while((line = reader.readLine()) != null && !line.isEmpty())
+            {
+                int count = Integer.parseInt(line.substring(1));
+                switch(line.charAt(0))
+                {
+                    case KEEP:
+                        for(int end = index + count; index < end; index++)
+                        {
+                            html.append(tokens.get(index));
+                        }
+                        break;
+                    case DELETE:
+                        index += count;
+                        break;
+                    case INSERT:
+                        char[] inserted = new char[count];
+                        if(IOUtils.read(reader, inserted) != count || reader.read() != '\n')
+                        {
+                            throw new IOException("Truncated delta " + file);
+                        }
+                        html.append(inserted);
+                        break;
+                    default:
+                        throw new IOException("Invalid delta " + file);
+                }
+            }
+            String result = html.toString();
+            if(!DigestUtils.sha1Hex(result).equals(hash.substring(SHA1.length())))
+            {
+                throw new IOException("Delta " + file + " does not match its base");
+            }
+            return result;
+        }
+        catch(RuntimeException e)
+        {
+            throw new IOException("Invalid delta " + file, e);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Split the HTML after each tag, a tag and the text before it form a token.
+     * @param html source
+     * @return tokens, joined they are the source
+     */
+    static List<String> tokenize(final String html)
+    {
+        List<String> tokens = new ArrayList<String>();
+        int start = 0;
+        for(int i = 0; i < html.length(); i++)
+        {
+            if(html.charAt(i) == '>')
+            {
+                tokens.add(html.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if(start < html.length())
+        {
+            tokens.add(html.substring(start));
+        }
+        return tokens;
+    }
+
+    /**
+     * Write the changes from the base to the target with the O(ND) difference
+     * algorithm of Myers, after skipping the common start and end.
+     * @param base tokens of the previous capture
+     * @param target tokens of the capture
+     * @param basePath path of the previous capture relative to the delta
+     * @param html target HTML
+     * @return the delta, null if there are too many edits
+     */
+    static String diff(final List<String> base, final List<String> target, final String basePath, final String html)
+    {
+        //Compare tokens by number.
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        int[] a = toIds(base, ids);
+        int[] b = toIds(target, ids);
+        int prefix = 0;
+        while(prefix < a.length && prefix < b.length && a[prefix] == b[prefix])
+        {
+            prefix++;
+        }
+        int suffix = 0;
+        while(suffix < a.length - prefix && suffix < b.length - prefix
+                && a[a.length - 1 - suffix] == b[b.length - 1 - suffix])
+        {
+            suffix++;
+        }
+        int n = a.length - prefix - suffix;
+        int m = b.length - prefix - suffix;
+        List<int[]> trace = new ArrayList<int[]>();
+        int[] previous = null;
+        boolean found = false;
+        for(int d = 0; d <= Math.min(n + m, MAX_EDITS) && !found; d++)
+        {
+            int[] v = new int[2 * d + 1];
+            for(int k = -d; k <= d; k += 2)
+            {
+                int x = d == 0 ? 0 : isDown(previous, d, k) ? previous[k + d] : previous[k + d - 2] + 1;
+                int y = x - k;
+                while(x < n && y < m && a[prefix + x] == b[prefix + y])
+                {
+                    x++;
+                    y++;
+                }
+                v[k + d] = x;
+                if(x >= n && y >= m)
+                {
+                    found = true;
+                    break;
+                }
+            }
+            trace.add(v);
+            previous = v;
+        }
+        if(!found)
+        {
+            return null;
+        }
+        //Walk back from the end to list the edits, last edit first.
+        List<int[]> edits = new ArrayList<int[]>();
+        int x = n;
+        int y = m;
+        for(int d = trace.size() - 1; d > 0; d--)
+        {
+            int[] v = trace.get(d - 1);
+            int k = x - y;
+            boolean down = isDown(v, d, k);
+            int previousK = down ? k + 1 : k - 1;
+            int previousX = v[previousK + d - 1];
+            int previousY = previousX - previousK;
+            int snakeX = down ? previousX : previousX + 1;
+            edits.add(new int[] {KEEP, x - snakeX});
+            edits.add(down ? new int[] {INSERT, prefix + previousY} : new int[] {DELETE, 1});
+            x = previousX;
+            y = previousY;
+        }
+        edits.add(new int[] {KEEP, prefix + x});
+        StringWriter out = new StringWriter();
+        out.write(HEADER + "\n" + BASE + basePath + "\n" + SHA1 + DigestUtils.sha1Hex(html) + "\n");
+        char op = 0;
+        int count = 0;
+        StringBuilder inserted = new StringBuilder();
+        for(int i = edits.size() - 1; i >= -1; i--)
+        {
+            int[] edit = i < 0 ? new int[] {KEEP, suffix} : edits.get(i);
+            if(edit[0] != op && op != 0)
+            {
+                writeEdit(out, op, count, inserted);
+                count = 0;
+                inserted.setLength(0);
+            }
+            op = (char) edit[0];
+            if(op == INSERT)
+            {
+                inserted.append(target.get(edit[1]));
+            }
+            else
+            {
+                count += edit[1];
+            }
+        }
+        writeEdit(out, op, count, inserted);
+        return out.toString();
+    }
+
+    /**
+     * @param v furthest points of the previous step, indexed by diagonal + d - 1
+     * @param d number of edits
+     * @param k diagonal
+     * @return true if the diagonal is reached by an insertion, false by a deletion
+     */
+    private static boolean isDown(final int[] v, final int d, final int k)
+    {
+        return k == -d || (k != d && v[k + d - 2] < v[k + d]);
+    }
+
+    private static void writeEdit(final StringWriter out, final char op, final int count, final StringBuilder inserted)
+    {
+        if(op == INSERT)
+        {
+            out.write(INSERT + Integer.toString(inserted.length()) + "\n" + inserted + "\n");
+        }
+        else if(count > 0)
+        {
+            out.write(op + Integer.toString(count) + "\n");
+        }
+    }
+
+    private static int[] toIds(final List<String> tokens, final Map<String, Integer> ids)
+    {
+        int[] values = new int[tokens.size()];
+        for(int i = 0; i < values.length; i++)
+        {
+            Integer id = ids.get(tokens.get(i));
+            if(id == null)
+            {
+                id = ids.size();
+                ids.put(tokens.get(i), id);
+            }
+            values[i] = id;
+        }
+        return values;
+    }
+
+    private static String relativize(final File file, final File base)
+    {
+        return file.getAbsoluteFile().getParentFile().toPath().normalize()
+                .relativize(base.getAbsoluteFile().toPath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Last capture of a url and the files it is rebuilt from, the full page first.
+     */
+    private static class Page
+    {
+        private final String hash;
+        private final File file;
+        private final List<String> tokens;
+        private final List<File> chain;
+
+        Page(final String hash, final File file, final List<String> tokens, final List<File> chain)
+        {
+            this.hash = hash;
+            this.file = file;
+            this.tokens = tokens;
+            this.chain = chain;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Downloads page assets concurrently using a fixed number of workers
+ * fed from a bounded queue. When the queue is full the calling thread
+ * runs the download itself, which throttles discovery to the speed of the network.
+ * <p>
+ * Stylesheets are resolved by a {@link FetchStylesheetGraph}, shared by the
+ * whole download, as soon as they arrive, on a worker, so they never hold up
+ * the remaining downloads and an asset referenced by several stylesheets is fetched once.
+ * A failing asset is logged and does not affect the rest of the page.
+ * <p>
+ * The defaults can be changed with the system properties
+ * <code>fetch.threads</code> and <code>fetch.queue</code>.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchDownloader implements Closeable
+{
+    private static final Log logger = LogFactory.getLog(FetchDownloader.class);
+    public static final int DEFAULT_THREADS = Integer.getInteger("fetch.threads", 8);
+    public static final int DEFAULT_QUEUE_SIZE = Integer.getInteger("fetch.queue", 64);
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+    static final int STYLESHEET = 1;
+    static final int SCRIPT = 2;
+    static final int IMAGE = 5;
+    /** Time given to the references of a stylesheet, abandoned at the deadline, to be listed as skipped. */
+    private static final long SETTLE_MILLIS = 250;
+    /** Extensions in download order when a capture has a deadline, images last. */
+    private static final String[][] PRIORITIES = {
+            {".html", ".htm", ".xhtml"},
+            {".css"},
+            {".js", ".mjs"},
+            {".woff2", ".woff", ".ttf", ".otf", ".eot"},
+            {".json", ".xml", ".txt"},
+            {".png", ".gif", ".jpg", ".jpeg", ".webp", ".svg", ".ico", ".bmp"}};
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a downloader with the default number of workers and queue size.
+     */
+    public FetchDownloader()
+    {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param threads number of concurrent downloads
+     * @param queueSize number of pending downloads held before the caller runs them
+     */
+    public FetchDownloader(final int threads, final int queueSize)
+    {
+        if(threads < 1)
+        {
+            throw new IllegalArgumentException("At least one worker thread is required");
+        }
+        if(queueSize < 1)
+        {
+            throw new IllegalArgumentException("Queue size must be greater than zero");
+        }
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new WorkerFactory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Downloads all the urls to the asset directory.
+     * @param urls collection of absolute urls to download
+     * @param client {@link CloseableHttpClient} able to serve concurrent requests
+     * @return the downloaded files in the same order as the urls, null for assets that failed
+     */
+    public List<File> download(final List<String> urls, final CloseableHttpClient client)
+    {
+        return download(urls, client, new File(FetchUtil.ASSET_DIR));
+    }
+
+    /**
+     * Downloads all the urls to a directory.
+     * @param urls collection of absolute urls to download
+     * @param client {@link CloseableHttpClient} able to serve concurrent requests
+     * @param directory where the assets are stored
+     * @return the downloaded files in the same order as the urls, null for assets that failed
+     */
+    public List<File> download(final List<String> urls, final CloseableHttpClient client, final File directory)
+    {
+        return download(urls, client, directory, 0, null);
+    }
+
+    /**
+     * Downloads the urls to a directory until the deadline, most useful assets first:
+     * pages, stylesheets, scripts, fonts, then images. Downloads not started by the
+     * deadline are skipped and running ones are abandoned, see {@link FetchPolicy}.
+     * @param urls collection of absolute urls to download
+     * @param client {@link CloseableHttpClient} able to serve concurrent requests
+     * @param directory where the assets are stored
+     * @param deadline {@link System#nanoTime()} to end by, 0 for no deadline
+     * @param skipped receives the urls not downloaded by the deadline or excluded by the {@link FetchPolicy}, may be null
+     * @return the downloaded files in the same order as the urls, null for assets that failed or were skipped
+     */
+    public List<File> download(final List<String> urls,
+                               final CloseableHttpClient client,
+                               final File directory,
+                               final long deadline,
+                               final Set<String> skipped)
+    {
+        if(null == directory)
+        {
+            throw new IllegalArgumentException("Asset directory is required");
+        }
+        FetchOutput output = new FetchOutput(directory, FetchUtil.ASSET_FOLDER, false, FetchUtil.isCompress(), deadline, 0, 0);
+        List<File> files = download(urls, client, output);
+        if(skipped != null)
+        {
+            skipped.addAll(output.getSkipped());
+        }
+        return files;
+    }
+
+    /**
+     * Downloads the urls as laid out by the {@link FetchOutput} of a capture.
+     * @param urls collection of absolute urls to download
+     * @param client {@link CloseableHttpClient} able to serve concurrent requests
+     * @param output where and how the assets are stored, collects the skipped urls
+     * @return the downloaded files in the same order as the urls, null for assets that failed or were skipped
+     */
+    List<File> download(final List<String> urls, final CloseableHttpClient client, final FetchOutput output)
+    {
+        if(null == urls)
+        {
+            throw new IllegalArgumentException("Collections of url's are required");
+        }
+        if(null == client)
+        {
+            throw new IllegalArgumentException("Http client is required");
+        }
+        final long deadline = output.getDeadline();
+        final Set<String> late = output.getSkipped();
+        FetchStylesheetGraph graph = new FetchStylesheetGraph(output, client, executor);
+        List<CompletableFuture<File>> fetched = new ArrayList<CompletableFuture<File>>(urls.size());
+        List<CompletableFuture<File>> futures = new ArrayList<CompletableFuture<File>>(urls.size());
+        for(int i = 0; i < urls.size(); i++)
+        {
+            fetched.add(null);
+            futures.add(null);
+        }
+        //The queue is first in first out, the most useful assets are queued first.
+        for(final int index : getOrder(urls, deadline != 0))
+        {
+            final String url = urls.get(index);
+            CompletableFuture<File> file = CompletableFuture.supplyAsync(() -> fetch(url, client, output), executor);
+            fetched.set(index, file);
+            CompletableFuture<File> complete = url.endsWith("css")
+                    ? file.thenComposeAsync(f -> parseStylesheet(url, f, graph), executor) : file;
+            //Archived captures take each asset as soon as it is complete.
+            futures.set(index, complete.thenApply(f ->
+            {
+                output.store(f);
+                return f;
+            }));
+        }
+        List<File> files = new ArrayList<File>(futures.size());
+        for(int i = 0; i < futures.size(); i++)
+        {
+            files.add(deadline == 0 ? futures.get(i).join() : await(urls.get(i), fetched.get(i), futures.get(i), deadline, late));
+        }
+        return files;
+    }
+
+    /**
+     * @param url of the asset
+     * @return rank of the asset, the lowest is downloaded first
+     */
+    public static int getPriority(final String url)
+    {
+        String path = url.toLowerCase();
+        int end = path.indexOf('?');
+        if(end < 0)
+        {
+            end = path.indexOf('#');
+        }
+        if(end >= 0)
+        {
+            path = path.substring(0, end);
+        }
+        for(int i = 0; i < PRIORITIES.length; i++)
+        {
+            for(String extension : PRIORITIES[i])
+            {
+                if(path.endsWith(extension))
+                {
+                    return i;
+                }
+            }
+        }
+        //Unknown types go before images.
+        return IMAGE - 1;
+    }
+
+    private static List<Integer> getOrder(final List<String> urls, final boolean prioritize)
+    {
+        List<Integer> order = new ArrayList<Integer>(urls.size());
+        for(int i = 0; i < urls.size(); i++)
+        {
+            order.add(i);
+        }
+        if(prioritize)
+        {
+            //Stable, assets of the same kind keep the order of the page.
+            order.sort(Comparator.comparingInt(i -> getPriority(urls.get(i))));
+        }
+        return order;
+    }
+
+    /**
+     * Wait for the download until the deadline, the download is skipped if it did not complete.
+     * A stylesheet downloaded in time is kept even if its own references are not.
+     */
+    private static File await(final String url,
+                              final CompletableFuture<File> fetched,
+                              final CompletableFuture<File> future,
+                              final long deadline,
+                              final Set<String> skipped)
+    {
+        try
+        {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            File file = fetched.getNow(null);
+            if(file != null && file.exists())
+            {
+                settle(future);
+                return file;
+            }
+            skipped.add(url);
+            future.cancel(false);
+            return null;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            skipped.add(url);
+            return null;
+        }
+        catch(ExecutionException e)
+        {
+            logger.error("Unable to fetch file " + url, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Wait briefly for the references of a stylesheet kept at the deadline, their
+     * downloads are abandoned at the deadline and then listed as skipped.
+     */
+    private static void settle(final CompletableFuture<File> future)
+    {
+        try
+        {
+            future.get(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException | TimeoutException e)
+        {
+            //Left to finish in the background.
+        }
+    }
+
+    /**
+     * @return number of concurrent downloads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return the executor running the downloads
+     */
+    Executor getExecutor()
+    {
+        return executor;
+    }
+
+    @Override
+    public void close()
+    {
+        executor.shutdown();
+    }
+
+    private static File fetch(final String url, final CloseableHttpClient client, final FetchOutput output)
+    {
+        long deadline = output.getDeadline();
+        Set<String> skipped = output.getSkipped();
+        if(deadline != 0 && deadline - System.nanoTime() <= 0)
+        {
+            skipped.add(url);
+            return null;
+        }
+        FetchPolicy.setDeadline(deadline);
+        try
+        {
+            File file = FetchUtil.getFile(url, client, output);
+            //Abandoned at the deadline rather than failed.
+            if(deadline != 0 && (file == null || !file.exists()) && deadline - System.nanoTime() <= 0)
+            {
+                skipped.add(url);
+            }
+            return file;
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to fetch file " + url, e);
+            return null;
+        }
+        finally
+        {
+            FetchPolicy.setDeadline(0);
+        }
+    }
+
+    private static CompletableFuture<File> parseStylesheet(final String url,
+                                                           final File file,
+                                                           final FetchStylesheetGraph graph)
+    {
+        if(file == null || !file.exists())
+        {
+            return CompletableFuture.completedFuture(file);
+        }
+        try
+        {
+            return graph.resolve(url, file).thenApply(v -> file);
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to parse stylesheet " + url, e);
+            return CompletableFuture.completedFuture(file);
+        }
+    }
+
+    /**
+     * Daemon workers so an unclosed downloader never keeps the JVM alive.
+     */
+    private static class WorkerFactory implements ThreadFactory
+    {
+        private final int pool = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "fetch-" + pool + "-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
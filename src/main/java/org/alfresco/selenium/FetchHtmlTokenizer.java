@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass tokenizer that locates the assets referenced by an HTML page.
+ * The page is traversed once, character by character, and the following are reported
+ * in document order with their position in the source:
+ * <ul>
+ * <li>src attributes of any element</li>
+ * <li>each candidate of srcset attributes</li>
+ * <li>href attributes of link elements</li>
+ * <li>url(...) found in style elements and style attributes</li>
+ * </ul>
+ * Comments and the content of script elements are skipped, as are
+ * empty, fragment and data: references.
+ * <p>
+ * The base, meta and head start tags are also reported, as a whole,
+ * so that the page can be rewritten in one pass.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchHtmlTokenizer
+{
+    private static final String[] IGNORED_PREFIXES = {"data:", "javascript:", "about:", "blob:", "mailto:", "#"};
+    private static final String QUOTE_ENTITY = "&quot;";
+    private static final String APOS_ENTITY = "&#39;";
+
+    /**
+     * Type of reference found.
+     */
+    public enum Kind
+    {
+        /** src attribute */
+        SRC,
+        /** candidate of a srcset attribute */
+        SRCSET,
+        /** href attribute of a link element */
+        LINK,
+        /** url() in a style element or attribute */
+        URL,
+        /** base tag */
+        BASE,
+        /** meta tag */
+        META,
+        /** head start tag */
+        HEAD
+    }
+
+    /**
+     * A reference to an asset and its location in the page source.
+     */
+    public static class Token
+    {
+        private final Kind kind;
+        private final int start;
+        private final int end;
+        private final String value;
+
+        Token(final Kind kind, final int start, final int end, final String value)
+        {
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+        }
+
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        /**
+         * @return index of the first character of the value in the source
+         */
+        public int getStart()
+        {
+            return start;
+        }
+
+        /**
+         * @return index after the last character of the value in the source
+         */
+        public int getEnd()
+        {
+            return end;
+        }
+
+        /**
+         * @return the reference as it appears in the source, or the whole tag
+         */
+        public String getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public String toString()
+        {
+            return kind + "[" + start + "," + end + "]=" + value;
+        }
+    }
+
+    /**
+     * Locate all the asset references of the page.
+     * @param html page source
+     * @return {@link Token} collection in document order
+     */
+    public static List<Token> tokenize(final String html)
+    {
+        if(html == null)
+        {
+            throw new IllegalArgumentException("HTML source input required");
+        }
+        List<Token> tokens = new ArrayList<Token>();
+        int length = html.length();
+        int i = 0;
+        while(i < length)
+        {
+            char c = html.charAt(i);
+            if(c == '<' && i + 1 < length)
+            {
+                char next = html.charAt(i + 1);
+                if(next == '!' && html.startsWith("<!--", i))
+                {
+                    int end = html.indexOf("-->", i + 4);
+                    i = end < 0 ? length : end + 3;
+                    continue;
+                }
+                if(isLetter(next))
+                {
+                    i = readTag(html, i + 1, tokens);
+                    continue;
+                }
+            }
+            else if((c == 'u' || c == 'U') && html.regionMatches(true, i, "url(", 0, 4))
+            {
+                i = readUrl(html, i + 4, length, tokens);
+                continue;
+            }
+            i++;
+        }
+        return tokens;
+    }
+
+    /**
+     * Reads a start tag and its attributes.
+     * @param html source
+     * @param from index of the first character of the tag name
+     * @param tokens collection to add references to
+     * @return index after the tag, or after the content of a script element
+     */
+    private static int readTag(final String html, final int from, final List<Token> tokens)
+    {
+        int length = html.length();
+        int i = from;
+        while(i < length && isNameChar(html.charAt(i)))
+        {
+            i++;
+        }
+        boolean link = isName(html, from, i, "link");
+        boolean script = isName(html, from, i, "script");
+        Kind tag = null;
+        if(isName(html, from, i, "base"))
+        {
+            tag = Kind.BASE;
+        }
+        else if(isName(html, from, i, "meta"))
+        {
+            tag = Kind.META;
+        }
+        else if(isName(html, from, i, "head"))
+        {
+            tag = Kind.HEAD;
+        }
+        int index = tokens.size();
+        while(i < length)
+        {
+            char c = html.charAt(i);
+            if(c == '>')
+            {
+                i++;
+                break;
+            }
+            if(isWhitespace(c) || c == '/')
+            {
+                i++;
+                continue;
+            }
+            //Attribute name
+            int nameStart = i;
+            while(i < length && !isWhitespace(html.charAt(i)) && html.charAt(i) != '='
+                    && html.charAt(i) != '>' && html.charAt(i) != '/')
+            {
+                i++;
+            }
+            int nameEnd = i;
+            while(i < length && isWhitespace(html.charAt(i)))
+            {
+                i++;
+            }
+            if(i >= length || html.charAt(i) != '=')
+            {
+                continue;
+            }
+            i++;
+            while(i < length && isWhitespace(html.charAt(i)))
+            {
+                i++;
+            }
+            if(i >= length)
+            {
+                break;
+            }
+            //Attribute value
+            int valueStart;
+            int valueEnd;
+            char quote = html.charAt(i);
+            if(quote == '"' || quote == '\'')
+            {
+                valueStart = i + 1;
+                valueEnd = html.indexOf(quote, valueStart);
+                if(valueEnd < 0)
+                {
+                    valueEnd = length;
+                }
+                i = Math.min(valueEnd + 1, length);
+            }
+            else
+            {
+                valueStart = i;
+                while(i < length && !isWhitespace(html.charAt(i)) && html.charAt(i) != '>')
+                {
+                    i++;
+                }
+                valueEnd = i;
+            }
+            if(isName(html, nameStart, nameEnd, "src"))
+            {
+                addToken(html, Kind.SRC, valueStart, valueEnd, tokens);
+            }
+            else if(isName(html, nameStart, nameEnd, "srcset"))
+            {
+                readSrcset(html, valueStart, valueEnd, tokens);
+            }
+            else if(link && isName(html, nameStart, nameEnd, "href"))
+            {
+                addToken(html, Kind.LINK, valueStart, valueEnd, tokens);
+            }
+            else if(isName(html, nameStart, nameEnd, "style"))
+            {
+                readStyle(html, valueStart, valueEnd, tokens);
+            }
+        }
+        if(tag != null)
+        {
+            //The tag comes before its attributes in document order.
+            tokens.add(index, new Token(tag, from - 1, i, html.substring(from - 1, i)));
+        }
+        return script ? skipScript(html, i) : i;
+    }
+
+    /**
+     * Reads the candidates of a srcset attribute, "image.png 1x, image-2x.png 2x".
+     */
+    private static void readSrcset(final String html, final int from, final int to, final List<Token> tokens)
+    {
+        int i = from;
+        while(i < to)
+        {
+            while(i < to && (isWhitespace(html.charAt(i)) || html.charAt(i) == ','))
+            {
+                i++;
+            }
+            int start = i;
+            while(i < to && !isWhitespace(html.charAt(i)))
+            {
+                i++;
+            }
+            int end = i;
+            //A trailing comma separates candidates without descriptors.
+            while(end > start && html.charAt(end - 1) == ',')
+            {
+                end--;
+            }
+            addToken(html, Kind.SRCSET, start, end, tokens);
+            //Skip the descriptors
+            while(i < to && html.charAt(i) != ',')
+            {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Reads all url() of a style attribute.
+     */
+    private static void readStyle(final String html, final int from, final int to, final List<Token> tokens)
+    {
+        int i = from;
+        while(i + 4 <= to)
+        {
+            char c = html.charAt(i);
+            if((c == 'u' || c == 'U') && html.regionMatches(true, i, "url(", 0, 4))
+            {
+                i = readUrl(html, i + 4, to, tokens);
+            }
+            else
+            {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Reads the value of url(...), quoted, entity quoted or unquoted.
+     * @param html source
+     * @param from index after the opening parenthesis
+     * @param to index the value can not go past
+     * @param tokens collection to add the reference to
+     * @return index after the closing parenthesis
+     */
+    private static int readUrl(final String html, final int from, final int to, final List<Token> tokens)
+    {
+        int i = from;
+        while(i < to && isWhitespace(html.charAt(i)))
+        {
+            i++;
+        }
+        String closing = ")";
+        if(i < to && (html.charAt(i) == '"' || html.charAt(i) == '\''))
+        {
+            closing = String.valueOf(html.charAt(i));
+            i++;
+        }
+        else if(html.startsWith(QUOTE_ENTITY, i))
+        {
+            closing = QUOTE_ENTITY;
+            i += QUOTE_ENTITY.length();
+        }
+        else if(html.startsWith(APOS_ENTITY, i))
+        {
+            closing = APOS_ENTITY;
+            i += APOS_ENTITY.length();
+        }
+        int start = i;
+        int end = -1;
+        while(i < to && html.charAt(i) != '\n')
+        {
+            if(html.startsWith(closing, i))
+            {
+                end = i;
+                break;
+            }
+            i++;
+        }
+        if(end < 0)
+        {
+            //Not a well formed url(), carry on after it.
+            return from;
+        }
+        int valueEnd = end;
+        if(")".equals(closing))
+        {
+            while(valueEnd > start && isWhitespace(html.charAt(valueEnd - 1)))
+            {
+                valueEnd--;
+            }
+        }
+        addToken(html, Kind.URL, start, valueEnd, tokens);
+        return end + closing.length();
+    }
+
+    /**
+     * Skip the content of a script element, it is not HTML.
+     * @param html source
+     * @param from index after the script start tag
+     * @return index of the script end tag
+     */
+    private static int skipScript(final String html, final int from)
+    {
+        int i = from;
+        while((i = html.indexOf("</", i)) >= 0)
+        {
+            if(html.regionMatches(true, i + 2, "script", 0, 6))
+            {
+                return i;
+            }
+            i += 2;
+        }
+        return html.length();
+    }
+
+    private static void addToken(final String html, final Kind kind, final int start, final int end, final List<Token> tokens)
+    {
+        if(end <= start)
+        {
+            return;
+        }
+        for(String prefix : IGNORED_PREFIXES)
+        {
+            if(html.regionMatches(true, start, prefix, 0, prefix.length()))
+            {
+                return;
+            }
+        }
+        tokens.add(new Token(kind, start, end, html.substring(start, end)));
+    }
+
+    private static boolean isName(final String html, final int start, final int end, final String name)
+    {
+        return end - start == name.length() && html.regionMatches(true, start, name, 0, name.length());
+    }
+
+    private static boolean isLetter(final char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(final char c)
+    {
+        return isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == ':' || c == '_';
+    }
+
+    private static boolean isWhitespace(final char c)
+    {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+}
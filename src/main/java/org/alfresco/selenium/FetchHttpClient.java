@@ -18,6 +18,16 @@
  */
 package org.alfresco.selenium;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.protocol.RequestAcceptEncoding;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
@@ -28,17 +38,142 @@ import org.openqa.selenium.WebDriver;
 /**
  * Fetch HttpClient factory, provides an Http client
  * with user session taken from the {@link WebDriver}
+ * <p>
+ * The session of a driver garbage collected without {@link #closeSession(WebDriver)}
+ * is closed on the next call, so its connections are not leaked.
  *
  * @author Michael Suzuki
  */
 public class FetchHttpClient
 {
+    private static final Map<DriverKey, FetchSession> sessions = new HashMap<DriverKey, FetchSession>();
+    private static final ReferenceQueue<WebDriver> collected = new ReferenceQueue<WebDriver>();
+    
+    /**
+     * Gets the pooled {@link FetchSession} of the {@link WebDriver}, creating it on first use.
+     * The session cookie is refreshed from the driver on every call.
+     * @param driver {@link WebDriver}
+     * @return {@link FetchSession} shared by all captures of the driver
+     */
+    public static FetchSession getSession(final WebDriver driver)
+    {
+        FetchSession session = lookup(driver);
+        session.updateCookies(driver);
+        return session;
+    }
+    
+    /**
+     * Gets the pooled {@link FetchSession} of the {@link WebDriver}, creating it on first use.
+     * The cookies are taken from the snapshot, the driver is not called.
+     * @param driver {@link WebDriver}
+     * @param snapshot {@link FetchSnapshot} of the current page
+     * @return {@link FetchSession} shared by all captures of the driver
+     */
+    public static FetchSession getSession(final WebDriver driver, final FetchSnapshot snapshot)
+    {
+        if(null == snapshot)
+        {
+            throw new IllegalArgumentException("Page snapshot is required");
+        }
+        FetchSession session = lookup(driver);
+        session.updateCookies(snapshot);
+        return session;
+    }
+    
+    private static FetchSession lookup(final WebDriver driver)
+    {
+        if(null == driver)
+        {
+            throw new IllegalArgumentException("WebDriver is required");
+        }
+        FetchSession session;
+        List<FetchSession> orphans;
+        synchronized (sessions)
+        {
+            orphans = sweep();
+            DriverKey key = new DriverKey(driver, null);
+            session = sessions.get(key);
+            if(session == null)
+            {
+                session = new FetchSession();
+                sessions.put(new DriverKey(driver, collected), session);
+            }
+        }
+        close(orphans);
+        return session;
+    }
+    
+    /**
+     * Remove the sessions of the drivers garbage collected, must hold the lock of the sessions.
+     * @return the sessions to close
+     */
+    private static List<FetchSession> sweep()
+    {
+        List<FetchSession> orphans = Collections.emptyList();
+        Reference<? extends WebDriver> reference;
+        while((reference = collected.poll()) != null)
+        {
+            FetchSession session = sessions.remove(reference);
+            if(session != null)
+            {
+                if(orphans.isEmpty())
+                {
+                    orphans = new ArrayList<FetchSession>();
+                }
+                orphans.add(session);
+            }
+        }
+        return orphans;
+    }
+    
+    private static void close(final List<FetchSession> orphans)
+    {
+        for(FetchSession session : orphans)
+        {
+            session.close();
+        }
+    }
+    
+    /**
+     * Closes the pooled connections of the {@link WebDriver} session,
+     * should be called when the driver quits.
+     * @param driver {@link WebDriver}
+     */
+    public static void closeSession(final WebDriver driver)
+    {
+        FetchSession session;
+        List<FetchSession> orphans;
+        synchronized (sessions)
+        {
+            orphans = sweep();
+            session = sessions.remove(new DriverKey(driver, null));
+        }
+        close(orphans);
+        if(session != null)
+        {
+            session.close();
+        }
+    }
+    
+    /**
+     * Creates a standalone client that the caller must close,
+     * prefer {@link #getSession(WebDriver)} which reuses connections.
+     * @param driver {@link WebDriver}
+     * @return {@link CloseableHttpClient}
+     */
     public static CloseableHttpClient getHttpClient(final WebDriver driver)
     {
         BasicCookieStore cookieStore = new BasicCookieStore();
         cookieStore.addCookie(generateSessionCookie(driver));
-        //Create http client to retrieve the file.
-        return HttpClientBuilder.create().setDefaultCookieStore(cookieStore).build();
+        //Create http client to retrieve the file, sized for the concurrent downloads.
+        return HttpClientBuilder.create()
+                .setDefaultCookieStore(cookieStore)
+                .setMaxConnPerRoute(FetchDownloader.DEFAULT_THREADS)
+                .setMaxConnTotal(FetchDownloader.DEFAULT_THREADS * 2)
+                //Gzip bodies are decoded by FetchUtil, or stored as received, see FetchCompression.
+                .disableContentCompression()
+                .addInterceptorFirst(new RequestAcceptEncoding(Collections.singletonList(FetchCompression.GZIP)))
+                .build();
     }
     /**
      * Prepare the client cookie based on the authenticated {@link WebDriver} 
@@ -62,4 +197,40 @@ public class FetchHttpClient
         resultCookie.setPath(originalCookie.getPath());
         return resultCookie;
     }
+    
+    /**
+     * Weak key of a driver, equal to the keys of the same driver instance.
+     * The key outlives its driver until the sessions are swept.
+     */
+    private static class DriverKey extends WeakReference<WebDriver>
+    {
+        private final int hash;
+
+        DriverKey(final WebDriver driver, final ReferenceQueue<WebDriver> queue)
+        {
+            super(driver, queue);
+            this.hash = System.identityHashCode(driver);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object other)
+        {
+            if(this == other)
+            {
+                return true;
+            }
+            if(!(other instanceof DriverKey))
+            {
+                return false;
+            }
+            WebDriver driver = get();
+            return driver != null && driver == ((DriverKey) other).get();
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Embeds small assets in the page and its stylesheets as base64 data uris,
+ * enabled with <code>fetch.inline</code>, so that a capture of many icons and
+ * sprites is a handful of files. Only images, fonts and scripts are embedded,
+ * stylesheets and frames keep their own file as their references are relative
+ * to it, and so do the assets stored gzip compressed.
+ *
+ * @author Michael Suzuki
+ */
+final class FetchInline
+{
+    private static final String[][] TYPES = {
+            {".png", "image/png"},
+            {".gif", "image/gif"},
+            {".jpg", "image/jpeg"},
+            {".jpeg", "image/jpeg"},
+            {".webp", "image/webp"},
+            {".svg", "image/svg+xml"},
+            {".ico", "image/x-icon"},
+            {".bmp", "image/bmp"},
+            {".woff2", "font/woff2"},
+            {".woff", "font/woff"},
+            {".ttf", "font/ttf"},
+            {".otf", "font/otf"},
+            {".eot", "application/vnd.ms-fontobject"},
+            {".js", "text/javascript"},
+            {".mjs", "text/javascript"}};
+
+    private FetchInline()
+    {
+    }
+
+    /**
+     * @param file downloaded asset
+     * @param threshold largest asset embedded in bytes, 0 for none
+     * @return the data uri of the asset, null if it keeps its file
+     * @throws IOException if error
+     */
+    static String getDataUri(final File file, final long threshold) throws IOException
+    {
+        if(!isInlined(file, threshold))
+        {
+            return null;
+        }
+        return "data:" + getType(file.getName()) + ";base64," + Base64.encodeBase64String(FileUtils.readFileToByteArray(file));
+    }
+
+    /**
+     * @param file downloaded asset
+     * @param threshold largest asset embedded in bytes, 0 for none
+     * @return true if the asset is embedded wherever it is referenced
+     */
+    static boolean isInlined(final File file, final long threshold)
+    {
+        return threshold > 0 && file != null && getType(file.getName()) != null
+                && file.isFile() && file.length() <= threshold;
+    }
+
+    /**
+     * @param name file name or url of the asset
+     * @return media type of the asset, null if it is not embedded
+     */
+    static String getType(final String name)
+    {
+        String path = name.toLowerCase();
+        int end = path.indexOf('?');
+        if(end < 0)
+        {
+            end = path.indexOf('#');
+        }
+        if(end >= 0)
+        {
+            path = path.substring(0, end);
+        }
+        for(String[] type : TYPES)
+        {
+            if(path.endsWith(type[0]))
+            {
+                return type[1];
+            }
+        }
+        return null;
+    }
+}
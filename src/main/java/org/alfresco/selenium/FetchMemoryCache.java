@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe in memory cache bounded by the number of bytes it holds.
+ * Downloaded assets are kept by their resolved url so repeated captures within
+ * the same JVM do not go back to the server, parsed stylesheets are kept by
+ * their content so {@link FetchCSS} does not parse the same stylesheet twice.
+ * The least recently used entries are evicted once the budget is exceeded,
+ * entries larger than a quarter of the budget are never cached.
+ * <p>
+ * The cache is enabled with {@link FetchUtil#setMemoryCache(FetchMemoryCache)}
+ * or the <code>fetch.memory</code> system property set to the budget in bytes.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchMemoryCache
+{
+    private static final String CONTENT_PREFIX = "url:";
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long size;
+
+    /**
+     * @param maxBytes budget of the cache in bytes
+     */
+    public FetchMemoryCache(final long maxBytes)
+    {
+        if(maxBytes < 1)
+        {
+            throw new IllegalArgumentException("Cache budget must be greater than zero");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 4);
+    }
+
+    /**
+     * @param url resolved url of the asset
+     * @return cached content or null
+     */
+    public byte[] getContent(final String url)
+    {
+        return (byte[]) get(CONTENT_PREFIX + url);
+    }
+
+    /**
+     * @param url resolved url of the asset
+     * @param content downloaded content
+     */
+    public void putContent(final String url, final byte[] content)
+    {
+        put(CONTENT_PREFIX + url, content, content.length);
+    }
+
+    /**
+     * @param key cache key
+     * @return cached value or null
+     */
+    Object get(final String key)
+    {
+        Entry entry;
+        synchronized (entries)
+        {
+            entry = entries.get(key);
+        }
+        if(entry == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * @param key cache key
+     * @param value value to cache
+     * @param bytes approximate size of the value in memory
+     */
+    void put(final String key, final Object value, final long bytes)
+    {
+        if(bytes > maxEntryBytes)
+        {
+            return;
+        }
+        synchronized (entries)
+        {
+            Entry previous = entries.put(key, new Entry(value, bytes));
+            if(previous != null)
+            {
+                size -= previous.bytes;
+            }
+            size += bytes;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while(size > maxBytes && eldest.hasNext())
+            {
+                size -= eldest.next().getValue().bytes;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param bytes size of the content
+     * @return true if content of the given size would be cached
+     */
+    public boolean accepts(final long bytes)
+    {
+        return bytes <= maxEntryBytes;
+    }
+
+    /**
+     * Remove all entries, the counters are kept.
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return bytes held by the cache
+     */
+    public long getSize()
+    {
+        synchronized (entries)
+        {
+            return size;
+        }
+    }
+
+    /**
+     * @return number of entries in the cache
+     */
+    public int getCount()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    private static class Entry
+    {
+        private final Object value;
+        private final long bytes;
+
+        Entry(final Object value, final long bytes)
+        {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+/**
+ * Listener of the work done by the captures, to measure where the time of a capture goes.
+ * All methods do nothing by default, implement the ones needed. Calls come from the
+ * capture and download threads at the same time, implementations must be thread safe.
+ * <p>
+ * Enabled with {@link FetchUtil#setMetrics(FetchMetrics)}, when not set the captures
+ * do not read the clock nor call any listener. {@link FetchMetricsRegistry} keeps
+ * histograms and counters and exports them through JMX.
+ *
+ * @author Michael Suzuki
+ */
+public interface FetchMetrics
+{
+    /**
+     * Phases of a capture.
+     */
+    enum Phase
+    {
+        /** Page source, url and cookies read from the browser. */
+        SNAPSHOT,
+        /** References found in the page and resolved to urls. */
+        EXTRACT,
+        /** All assets of the page downloaded, nested stylesheets included. */
+        DOWNLOAD,
+        /** One stylesheet rewritten. */
+        STYLESHEET,
+        /** Page written to disk. */
+        WRITE,
+        /** Whole capture, without the snapshot. */
+        CAPTURE
+    }
+
+    /**
+     * @param phase completed {@link Phase}
+     * @param nanos time taken
+     */
+    default void timed(final Phase phase, final long nanos)
+    {
+    }
+
+    /**
+     * @param host of the asset
+     * @param bytes downloaded and written for the asset
+     */
+    default void downloaded(final String host, final long bytes)
+    {
+    }
+
+    /**
+     * The asset was served by the memory or revalidation cache without a download.
+     * @param host of the asset
+     */
+    default void cacheHit(final String host)
+    {
+    }
+
+    /**
+     * @param host of the asset that could not be downloaded
+     */
+    default void failed(final String host)
+    {
+    }
+
+    /**
+     * A request failed with a transient error and is sent again, see {@link FetchPolicy}.
+     * @param host of the asset
+     */
+    default void retried(final String host)
+    {
+    }
+
+    /**
+     * @param url of the captured page
+     * @param assets number of assets of the page
+     * @param bytes size of the page written
+     */
+    default void captured(final String url, final int assets, final long bytes)
+    {
+    }
+}
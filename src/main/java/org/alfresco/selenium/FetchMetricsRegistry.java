@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link FetchMetrics} keeping a latency histogram per {@link FetchMetrics.Phase}
+ * and the downloads, bytes, cache hits, failures and retries per host.
+ * Recording is lock free, histograms count the times in power of two buckets
+ * of microseconds so percentiles are accurate to a factor of two.
+ * <p>
+ * Registered with JMX as <code>org.alfresco.fetch:type=Metrics</code> by {@link #register()},
+ * the <code>fetch.metrics</code> system property enables and registers a registry
+ * for all captures.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchMetricsRegistry implements FetchMetrics, FetchMetricsRegistryMBean
+{
+    private static final Log logger = LogFactory.getLog(FetchMetricsRegistry.class);
+    public static final String OBJECT_NAME = "org.alfresco.fetch:type=Metrics";
+    private final Map<Phase, Histogram> phases = new EnumMap<Phase, Histogram>(Phase.class);
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    private final LongAdder captures = new LongAdder();
+    private final LongAdder assets = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    public FetchMetricsRegistry()
+    {
+        for(Phase phase : Phase.values())
+        {
+            phases.put(phase, new Histogram());
+        }
+    }
+
+    @Override
+    public void timed(final Phase phase, final long nanos)
+    {
+        phases.get(phase).record(nanos);
+    }
+
+    @Override
+    public void downloaded(final String host, final long bytes)
+    {
+        Host stats = getHost(host);
+        stats.downloads.increment();
+        stats.bytes.add(bytes);
+    }
+
+    @Override
+    public void cacheHit(final String host)
+    {
+        getHost(host).hits.increment();
+    }
+
+    @Override
+    public void failed(final String host)
+    {
+        getHost(host).failures.increment();
+    }
+
+    @Override
+    public void retried(final String host)
+    {
+        getHost(host).retries.increment();
+    }
+
+    @Override
+    public void captured(final String url, final int count, final long bytes)
+    {
+        captures.increment();
+        assets.add(count);
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * @param phase {@link FetchMetrics.Phase}
+     * @return number of times the phase completed
+     */
+    public long getCount(final Phase phase)
+    {
+        return phases.get(phase).count.sum();
+    }
+
+    /**
+     * @param phase {@link FetchMetrics.Phase}
+     * @param percentile between 0 and 1, 0.99 for the 99th percentile
+     * @return upper bound of the time in milliseconds
+     */
+    public double getPercentile(final Phase phase, final double percentile)
+    {
+        return phases.get(phase).percentile(percentile) / 1000d;
+    }
+
+    @Override
+    public long getCaptures()
+    {
+        return captures.sum();
+    }
+
+    @Override
+    public long getAssets()
+    {
+        return assets.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded()
+    {
+        long bytes = 0;
+        for(Host host : hosts.values())
+        {
+            bytes += host.bytes.sum();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getCacheHits()
+    {
+        long hits = 0;
+        for(Host host : hosts.values())
+        {
+            hits += host.hits.sum();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getFailures()
+    {
+        long failures = 0;
+        for(Host host : hosts.values())
+        {
+            failures += host.failures.sum();
+        }
+        return failures;
+    }
+
+    @Override
+    public long getRetries()
+    {
+        long retries = 0;
+        for(Host host : hosts.values())
+        {
+            retries += host.retries.sum();
+        }
+        return retries;
+    }
+
+    @Override
+    public String[] getPhases()
+    {
+        List<String> lines = new ArrayList<String>();
+        for(Map.Entry<Phase, Histogram> entry : phases.entrySet())
+        {
+            Histogram histogram = entry.getValue();
+            long count = histogram.count.sum();
+            lines.add(String.format("%s count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", entry.getKey(), count,
+                    count == 0 ? 0 : histogram.total.sum() / 1e6 / count, histogram.percentile(0.5) / 1000d,
+                    histogram.percentile(0.99) / 1000d, histogram.max.get() / 1e6));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String[] getHosts()
+    {
+        List<String> lines = new ArrayList<String>();
+        for(Map.Entry<String, Host> entry : new TreeMap<String, Host>(hosts).entrySet())
+        {
+            Host host = entry.getValue();
+            lines.add(String.format("%s downloads=%d bytes=%d hits=%d failures=%d retries=%d", entry.getKey(),
+                    host.downloads.sum(), host.bytes.sum(), host.hits.sum(), host.failures.sum(), host.retries.sum()));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public void reset()
+    {
+        for(Histogram histogram : phases.values())
+        {
+            histogram.reset();
+        }
+        hosts.clear();
+        captures.reset();
+        assets.reset();
+        bytesWritten.reset();
+    }
+
+    /**
+     * Register with the platform MBean server, replacing a registry registered before.
+     * @return this registry
+     */
+    public FetchMetricsRegistry register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(server.isRegistered(name))
+            {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        }
+        catch(JMException e)
+        {
+            logger.error("Unable to register " + OBJECT_NAME, e);
+        }
+        return this;
+    }
+
+    /**
+     * Remove the registry from the platform MBean server.
+     */
+    public void unregister()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(server.isRegistered(name))
+            {
+                server.unregisterMBean(name);
+            }
+        }
+        catch(JMException e)
+        {
+            logger.error("Unable to unregister " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(String.format("captures=%d assets=%d downloaded=%d written=%d hits=%d failures=%d retries=%d",
+                getCaptures(), getAssets(), getBytesDownloaded(), getBytesWritten(), getCacheHits(), getFailures(), getRetries()));
+        for(String line : getPhases())
+        {
+            sb.append('\n').append(line);
+        }
+        return sb.toString();
+    }
+
+    private Host getHost(final String host)
+    {
+        return hosts.computeIfAbsent(host == null ? "unknown" : host, h -> new Host());
+    }
+
+    /**
+     * Counts of the times in power of two buckets of microseconds.
+     */
+    private static class Histogram
+    {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(final long nanos)
+        {
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        /**
+         * @return upper bound in microseconds of the bucket holding the percentile
+         */
+        long percentile(final double percentile)
+        {
+            long count = 0;
+            for(int i = 0; i < buckets.length(); i++)
+            {
+                count += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for(int i = 0; i < buckets.length(); i++)
+            {
+                seen += buckets.get(i);
+                if(seen >= rank && seen > 0)
+                {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        void reset()
+        {
+            for(int i = 0; i < buckets.length(); i++)
+            {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+
+    /**
+     * Counters of a host.
+     */
+    private static class Host
+    {
+        private final LongAdder downloads = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+    }
+}
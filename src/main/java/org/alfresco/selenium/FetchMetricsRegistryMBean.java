@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+/**
+ * JMX view of the {@link FetchMetricsRegistry}.
+ *
+ * @author Michael Suzuki
+ */
+public interface FetchMetricsRegistryMBean
+{
+    long getCaptures();
+
+    long getAssets();
+
+    long getBytesDownloaded();
+
+    long getBytesWritten();
+
+    long getCacheHits();
+
+    long getFailures();
+
+    long getRetries();
+
+    /**
+     * @return one line per phase: count, mean, p50, p99 and max in milliseconds
+     */
+    String[] getPhases();
+
+    /**
+     * @return one line per host: downloads, bytes, cache hits, failures and retries
+     */
+    String[] getHosts();
+
+    void reset();
+}
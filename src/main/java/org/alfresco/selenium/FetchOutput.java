@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.protocol.HttpClientContext;
+
+/**
+ * Where a capture stores its assets and how they are named, passed from the
+ * capture to the downloads so that concurrent captures with different settings
+ * never share state. By default assets are stored flat in the asset folder
+ * under the last segment of their url, app.js, as the static {@link FetchUtil} does.
+ * With hashed names the segment is prefixed by a hash of the url, 3f2a9c01d4-app.js,
+ * so two assets of the same name from different urls are kept apart.
+ * <p>
+ * An archived capture streams each asset into its {@link FetchArchive} as soon
+ * as it is complete, the directory only holds the assets still in progress.
+ *
+ * @author Michael Suzuki
+ */
+final class FetchOutput
+{
+    static final int HASH_LENGTH = 10;
+    private final File directory;
+    private final String folder;
+    private final boolean hashed;
+    private final boolean compress;
+    private final long deadline;
+    private final AtomicLong budget;
+    private final long inline;
+    private final CookieStore cookies;
+    private final Set<String> skipped = ConcurrentHashMap.newKeySet();
+    private final Set<File> inlined = ConcurrentHashMap.newKeySet();
+    private final Set<File> stored = ConcurrentHashMap.newKeySet();
+    private final Set<String> entries = new HashSet<String>();
+    private volatile FetchArchive archive;
+    private IOException failure;
+
+    /**
+     * @param directory where the assets are stored
+     * @param folder path of the directory relative to the page, ending with /
+     * @param hashed true to prefix the names with a hash of the url
+     * @param compress true to store text assets gzip compressed, see {@link FetchCompression}
+     * @param deadline {@link System#nanoTime()} the downloads must end by, 0 for none
+     * @param budget bytes the downloads of the capture may total, 0 for no limit
+     * @param inline largest asset embedded in the page and stylesheets as a data uri, 0 for none
+     */
+    FetchOutput(final File directory,
+                final String folder,
+                final boolean hashed,
+                final boolean compress,
+                final long deadline,
+                final long budget,
+                final long inline)
+    {
+        this(directory, folder, hashed, compress, deadline, budget, inline, null);
+    }
+
+    /**
+     * @param directory where the assets are stored
+     * @param folder path of the directory relative to the page, ending with /
+     * @param hashed true to prefix the names with a hash of the url
+     * @param compress true to store text assets gzip compressed, see {@link FetchCompression}
+     * @param deadline {@link System#nanoTime()} the downloads must end by, 0 for none
+     * @param budget bytes the downloads of the capture may total, 0 for no limit
+     * @param inline largest asset embedded in the page and stylesheets as a data uri, 0 for none
+     * @param cookies sent with the requests of the capture, null for those of the client
+     */
+    FetchOutput(final File directory,
+                final String folder,
+                final boolean hashed,
+                final boolean compress,
+                final long deadline,
+                final long budget,
+                final long inline,
+                final CookieStore cookies)
+    {
+        if(directory == null)
+        {
+            throw new IllegalArgumentException("Asset directory is required");
+        }
+        this.directory = directory;
+        this.folder = folder;
+        this.hashed = hashed;
+        this.compress = compress;
+        this.deadline = deadline;
+        this.budget = budget > 0 ? new AtomicLong(budget) : null;
+        this.inline = inline;
+        this.cookies = cookies;
+    }
+
+    /**
+     * @param directory where the assets are stored
+     * @param compress true to store text assets gzip compressed
+     * @return the flat layout of the static {@link FetchUtil}, without deadline, budget nor inlining
+     */
+    static FetchOutput of(final File directory, final boolean compress)
+    {
+        return new FetchOutput(directory, FetchUtil.ASSET_FOLDER, false, compress, 0, 0, 0);
+    }
+
+    File getDirectory()
+    {
+        return directory;
+    }
+
+    boolean isCompress()
+    {
+        return compress;
+    }
+
+    long getDeadline()
+    {
+        return deadline;
+    }
+
+    /**
+     * @return bytes left for the capture to download, shared by its downloads, null for no limit
+     */
+    AtomicLong getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * @return largest asset embedded as a data uri in bytes, 0 for none
+     */
+    long getInline()
+    {
+        return inline;
+    }
+
+    /**
+     * Requests of a capture are sent with its own cookies, captures of a
+     * session running at the same time may be of different pages or users.
+     * @return a new context for a request of the capture, null to use the cookies of the client
+     */
+    HttpClientContext createContext()
+    {
+        if(cookies == null)
+        {
+            return null;
+        }
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(cookies);
+        return context;
+    }
+
+    /**
+     * Stream the assets of the capture into an archive, see {@link #store(File)}.
+     * @param archive {@link FetchArchive} of the capture
+     */
+    void setArchive(final FetchArchive archive)
+    {
+        this.archive = archive;
+    }
+
+    /**
+     * Add a complete asset to the archive of the capture and delete its file.
+     * An asset is complete once downloaded, a stylesheet once its references are
+     * resolved. Assets small enough to be embedded as data uris stay on disk for
+     * the page and stylesheets to read them. Does nothing unless archived.
+     * @param file downloaded asset, may be null
+     */
+    synchronized void store(final File file)
+    {
+        if(archive != null && !FetchInline.isInlined(file, inline))
+        {
+            add(file);
+        }
+    }
+
+    /**
+     * Add the assets left in the directory, the resources not embedded and the
+     * stylesheets kept at the deadline while their references were downloading,
+     * and stop streaming into the archive.
+     * @throws IOException if an asset could not be added to the archive
+     */
+    synchronized void closeArchive() throws IOException
+    {
+        if(archive == null)
+        {
+            return;
+        }
+        addRemaining(directory);
+        archive = null;
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param file downloaded asset
+     * @return true if the asset was moved into the archive of the capture
+     */
+    boolean isStored(final File file)
+    {
+        return stored.contains(file);
+    }
+
+    private void addRemaining(final File parent)
+    {
+        File[] files = parent.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        for(File file : files)
+        {
+            if(file.isDirectory())
+            {
+                addRemaining(file);
+            }
+            else
+            {
+                add(file);
+            }
+        }
+    }
+
+    private void add(final File file)
+    {
+        if(file == null || failure != null || !file.isFile())
+        {
+            return;
+        }
+        Path base = directory.getAbsoluteFile().toPath().normalize();
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        //Same file fetched twice, as a duplicate url of the page, is added once.
+        if(!path.startsWith(base) || !entries.add(path.toString()))
+        {
+            return;
+        }
+        String name = (folder == null ? "" : folder) + base.relativize(path).toString().replace(File.separatorChar, '/');
+        try
+        {
+            archive.add(name, file);
+            stored.add(file);
+            Files.deleteIfExists(path);
+        }
+        catch(IOException e)
+        {
+            failure = e;
+        }
+        catch(RuntimeException e)
+        {
+            failure = new IOException("Unable to archive " + file, e);
+        }
+    }
+
+    /**
+     * @return files embedded as data uris, no longer needed once the capture is written
+     */
+    Set<File> getInlined()
+    {
+        return inlined;
+    }
+
+    /**
+     * @return urls not downloaded by the deadline, over the size limits or excluded by the {@link FetchPolicy}
+     */
+    Set<String> getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * @param url absolute url of the asset
+     * @return name of the file storing the asset in the directory
+     */
+    String getName(final String url)
+    {
+        String name = getLastSegment(url);
+        if(!hashed)
+        {
+            return name;
+        }
+        int query = name.indexOf('?');
+        if(query < 0)
+        {
+            query = name.indexOf('#');
+        }
+        if(query >= 0)
+        {
+            name = name.substring(0, query);
+        }
+        String hash = DigestUtils.sha1Hex(url).substring(0, HASH_LENGTH);
+        return name.isEmpty() ? hash : hash + "-" + name;
+    }
+
+    /**
+     * @param reference to the asset as found in the page
+     * @param url absolute url of the reference
+     * @return path of the asset relative to the page
+     */
+    String getPath(final String reference, final String url)
+    {
+        //The reference keeps the entities of the page, &amp; in a query.
+        return "./" + folder + (hashed ? getName(url) : getLastSegment(reference));
+    }
+
+    private static String getLastSegment(final String url)
+    {
+        String name = url.substring(url.lastIndexOf('/') + 1);
+        //Strip ? as it causes regex problems when its a prefix.
+        return name.startsWith("?") ? name.substring(1) : name;
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Limits how the assets of the captures are requested, so that a capture does not
+ * add load to the system under test and a stalled server can not hang a test.
+ * <ul>
+ * <li>At most <code>fetch.host.connections</code> requests run at the same time against a host,
+ * and no more than <code>fetch.host.rate</code> requests start per second, 0 for no limit.</li>
+ * <li>Connections, reads and whole requests are bounded by <code>fetch.timeout.connect</code>,
+ * <code>fetch.timeout.read</code> and <code>fetch.timeout.request</code>, in milliseconds.</li>
+ * <li>Network errors, 429 and 5xx answers are retried up to <code>fetch.retries</code> times,
+ * after a random delay of up to <code>fetch.retry.backoff</code> milliseconds doubled
+ * on each attempt, or the Retry-After of the answer, capped to 8 times the backoff.</li>
+ * <li>Urls matching one of the comma separated patterns of <code>fetch.exclude</code>, or answered
+ * with a Content-Type starting with one of <code>fetch.exclude.types</code>, video/ for instance,
+ * are not downloaded. Neither are assets larger than <code>fetch.max.size</code> bytes, 0 for
+ * no limit, which are abandoned as soon as their Content-Length or their content passes it.</li>
+ * </ul>
+ * Only GET requests are made for assets, they are all safe to retry.
+ * Changing the connection limit applies to the hosts contacted afterwards.
+ * <p>
+ * A capture with a deadline, see {@link FetchUtil#setDeadline(long)}, also bounds
+ * the waits, requests and retries of its downloads to the time it has left.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchPolicy
+{
+    public static final int DEFAULT_HOST_CONNECTIONS = Integer.getInteger("fetch.host.connections", FetchDownloader.DEFAULT_THREADS);
+    public static final int DEFAULT_HOST_RATE = Integer.getInteger("fetch.host.rate", 0);
+    public static final int DEFAULT_CONNECT_TIMEOUT = Integer.getInteger("fetch.timeout.connect", 5000);
+    public static final int DEFAULT_READ_TIMEOUT = Integer.getInteger("fetch.timeout.read", 15000);
+    public static final int DEFAULT_REQUEST_TIMEOUT = Integer.getInteger("fetch.timeout.request", 30000);
+    public static final int DEFAULT_RETRIES = Integer.getInteger("fetch.retries", 2);
+    public static final long DEFAULT_BACKOFF = Long.getLong("fetch.retry.backoff", 200);
+    public static final long DEFAULT_MAX_SIZE = Long.getLong("fetch.max.size", 0);
+    private static final int MAX_BACKOFF_FACTOR = 8;
+    /** Aborts the requests running past their deadline. */
+    private static final ScheduledExecutorService DEADLINES = createScheduler();
+    /** Deadline in nanoseconds of the capture the current thread downloads for, 0 for none. */
+    private static final ThreadLocal<long[]> CAPTURE_DEADLINE = ThreadLocal.withInitial(() -> new long[1]);
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    private volatile int hostConnections = DEFAULT_HOST_CONNECTIONS;
+    private volatile int hostRate = DEFAULT_HOST_RATE;
+    private volatile int retries = DEFAULT_RETRIES;
+    private volatile long backoff = DEFAULT_BACKOFF;
+    private volatile int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private volatile List<Pattern> excludedUrls = compile(split(System.getProperty("fetch.exclude")));
+    private volatile List<String> excludedTypes = toLowerCase(split(System.getProperty("fetch.exclude.types")));
+    private volatile long maxSize = DEFAULT_MAX_SIZE;
+    private volatile RequestConfig requestConfig = createRequestConfig(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+
+    /**
+     * Permission to send a request to a host, released once the response is consumed.
+     */
+    public interface Permit
+    {
+        void release();
+    }
+
+    /**
+     * An asset is larger than allowed, it is abandoned and not retried.
+     */
+    public static class LimitExceededException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(final String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * @param connections maximum requests running at the same time against a host
+     */
+    public void setHostConnections(final int connections)
+    {
+        if(connections < 1)
+        {
+            throw new IllegalArgumentException("At least one connection per host is required");
+        }
+        hostConnections = connections;
+        hosts.clear();
+    }
+
+    /**
+     * @return maximum requests running at the same time against a host
+     */
+    public int getHostConnections()
+    {
+        return hostConnections;
+    }
+
+    /**
+     * @param rate maximum requests started per second against a host, 0 for no limit
+     */
+    public void setHostRate(final int rate)
+    {
+        if(rate < 0)
+        {
+            throw new IllegalArgumentException("Rate can not be negative");
+        }
+        hostRate = rate;
+    }
+
+    /**
+     * @return maximum requests started per second against a host, 0 for no limit
+     */
+    public int getHostRate()
+    {
+        return hostRate;
+    }
+
+    /**
+     * @param connect milliseconds to open a connection
+     * @param read milliseconds without data before a response is abandoned
+     * @param request milliseconds for a whole request, waiting for the host included
+     */
+    public void setTimeouts(final int connect, final int read, final int request)
+    {
+        if(connect < 1 || read < 1 || request < 1)
+        {
+            throw new IllegalArgumentException("Timeouts must be greater than zero");
+        }
+        requestConfig = createRequestConfig(connect, read);
+        requestTimeout = request;
+    }
+
+    /**
+     * @return milliseconds for a whole request
+     */
+    public int getRequestTimeout()
+    {
+        return requestTimeout;
+    }
+
+    /**
+     * @param retries attempts made after the first one, 0 to disable retries
+     * @param backoff milliseconds, upper bound of the delay before the first retry
+     */
+    public void setRetries(final int retries, final long backoff)
+    {
+        if(retries < 0 || backoff < 0)
+        {
+            throw new IllegalArgumentException("Retries and backoff can not be negative");
+        }
+        this.retries = retries;
+        this.backoff = backoff;
+    }
+
+    /**
+     * @return attempts made after the first one
+     */
+    public int getRetries()
+    {
+        return retries;
+    }
+
+    /**
+     * @param patterns regular expressions, a url is excluded if one is found in it
+     */
+    public void setExcludedUrls(final String... patterns)
+    {
+        excludedUrls = compile(Arrays.asList(patterns));
+    }
+
+    /**
+     * @param types prefixes of the content types not downloaded, such as video/ or application/pdf
+     */
+    public void setExcludedTypes(final String... types)
+    {
+        excludedTypes = toLowerCase(Arrays.asList(types));
+    }
+
+    /**
+     * @param bytes largest asset downloaded, 0 for no limit
+     */
+    public void setMaxSize(final long bytes)
+    {
+        if(bytes < 0)
+        {
+            throw new IllegalArgumentException("Maximum size can not be negative");
+        }
+        maxSize = bytes;
+    }
+
+    /**
+     * @return largest asset downloaded in bytes, 0 for no limit
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @param url of the asset
+     * @return true if the asset must not be requested
+     */
+    public boolean isExcluded(final String url)
+    {
+        for(Pattern pattern : excludedUrls)
+        {
+            if(pattern.matcher(url).find())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decide from the headers of the response whether to read its content.
+     * @param response answer of the server
+     * @param budget bytes the capture may still download, -1 for no limit
+     * @return the reason the content is not read, null to read it
+     */
+    public String reject(final HttpResponse response, final long budget)
+    {
+        HttpEntity entity = response.getEntity();
+        if(entity == null)
+        {
+            return null;
+        }
+        Header type = entity.getContentType();
+        if(type != null)
+        {
+            String value = type.getValue().trim().toLowerCase();
+            for(String excluded : excludedTypes)
+            {
+                if(value.startsWith(excluded))
+                {
+                    return "excluded type " + value;
+                }
+            }
+        }
+        long length = entity.getContentLength();
+        if(maxSize > 0 && length > maxSize)
+        {
+            return length + " bytes over the maximum of " + maxSize;
+        }
+        if(budget >= 0 && length > budget)
+        {
+            return length + " bytes over the " + budget + " left in the capture budget";
+        }
+        return null;
+    }
+
+    /**
+     * Count the content as it is read, failing once the asset passes the maximum size
+     * or the capture its budget, so that an asset without Content-Length is abandoned early.
+     * The request is aborted first, closing the content would otherwise read the rest of it.
+     * @param in content of the response
+     * @param budget bytes the capture may still download, shared by its downloads, null for no limit
+     * @param request the request of the content, may be null
+     * @return content failing with {@link LimitExceededException} at the first byte over
+     */
+    public InputStream limit(final InputStream in, final AtomicLong budget, final HttpRequestBase request)
+    {
+        final long max = maxSize;
+        if(max <= 0 && budget == null)
+        {
+            return in;
+        }
+        return new FilterInputStream(in)
+        {
+            private long count;
+            private LimitExceededException exceeded;
+
+            @Override
+            public int read() throws IOException
+            {
+                check();
+                int read = super.read();
+                if(read >= 0)
+                {
+                    add(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                check();
+                int read = super.read(b, off, len);
+                if(read > 0)
+                {
+                    add(read);
+                }
+                return read;
+            }
+
+            //Readers such as channels may read again after a failure.
+            private void check() throws LimitExceededException
+            {
+                if(exceeded != null)
+                {
+                    throw exceeded;
+                }
+            }
+
+            private void add(final int read) throws IOException
+            {
+                count += read;
+                if(max > 0 && count > max)
+                {
+                    throw exceeded("Asset over the maximum of " + max + " bytes");
+                }
+                if(budget != null && budget.addAndGet(-read) < 0)
+                {
+                    throw exceeded("Capture budget exhausted");
+                }
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                catch(IOException e)
+                {
+                    //The aborted connection fails to close, the limit is what is reported.
+                    if(exceeded == null)
+                    {
+                        throw e;
+                    }
+                }
+            }
+
+            private LimitExceededException exceeded(final String message)
+            {
+                exceeded = new LimitExceededException(message);
+                if(request != null)
+                {
+                    request.abort();
+                }
+                return exceeded;
+            }
+        };
+    }
+
+    /**
+     * Apply the timeouts to the request and abort it once its deadline has passed.
+     * @param request the request about to be sent
+     * @return the scheduled abort, to cancel once the response is consumed
+     */
+    public ScheduledFuture<?> prepare(final HttpRequestBase request)
+    {
+        request.setConfig(requestConfig);
+        return DEADLINES.schedule(() -> request.abort(), getTimeLeft(requestTimeout), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A request aborted past its deadline may look complete to the reader,
+     * the returned stream fails instead so that no partial asset is stored.
+     * @param in content of the response
+     * @param request the request sending the content
+     * @return content failing at its end if the request was aborted
+     */
+    public static InputStream guard(final InputStream in, final HttpRequestBase request)
+    {
+        return new FilterInputStream(in)
+        {
+            @Override
+            public int read() throws IOException
+            {
+                return check(super.read());
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                return check(super.read(b, off, len));
+            }
+
+            private int check(final int read) throws IOException
+            {
+                if(read < 0 && request.isAborted())
+                {
+                    throw new IOException("Request aborted past its deadline " + request.getURI());
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wait for the host to accept one more request.
+     * @param host of the request
+     * @return {@link Permit} to release once the response is consumed
+     * @throws IOException if the host is still busy after the request timeout
+     */
+    public Permit acquire(final String host) throws IOException
+    {
+        final Host limits = hosts.computeIfAbsent(host == null ? "" : host, h -> new Host(hostConnections));
+        long timeout = getTimeLeft(requestTimeout);
+        if(timeout <= 0)
+        {
+            throw new IOException("Capture deadline passed, " + host + " not requested");
+        }
+        try
+        {
+            if(!limits.connections.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+            {
+                throw new IOException("Timed out waiting for a connection to " + host);
+            }
+            try
+            {
+                limits.pace(hostRate);
+            }
+            catch(InterruptedException e)
+            {
+                limits.connections.release();
+                throw e;
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + host);
+        }
+        return () -> limits.connections.release();
+    }
+
+    /**
+     * @param status of the response
+     * @return true if the server may answer the same request later
+     */
+    public boolean isRetryable(final int status)
+    {
+        return status == 429 || (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR
+                && status != HttpStatus.SC_NOT_IMPLEMENTED
+                && status != HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED);
+    }
+
+    /**
+     * @param e error of the request
+     * @return true if the error is transient, unknown hosts and certificates are not
+     */
+    public boolean isRetryable(final IOException e)
+    {
+        return !(e instanceof UnknownHostException || e instanceof SSLException || e instanceof LimitExceededException
+                || (e instanceof InterruptedIOException && Thread.currentThread().isInterrupted()));
+    }
+
+    /**
+     * Delay before the next attempt, full jitter so that the retries of
+     * concurrent downloads do not hit a recovering server at the same time.
+     * @param attempt number of the attempt that failed, from 1
+     * @param response answer of the failed attempt, may be null
+     * @return milliseconds to wait, -1 if no more attempts are allowed
+     */
+    public long getBackoff(final int attempt, final HttpResponse response)
+    {
+        if(attempt > retries)
+        {
+            return -1;
+        }
+        long cap = backoff * MAX_BACKOFF_FACTOR;
+        long retryAfter = getRetryAfter(response);
+        long ceiling = Math.min(cap, backoff << Math.min(attempt - 1, 30));
+        long delay = retryAfter >= 0 ? Math.min(retryAfter, cap)
+                : ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+        //No time left to try again.
+        return delay < getTimeLeft(Long.MAX_VALUE) ? delay : -1;
+    }
+
+    /**
+     * Bound the requests made by the current thread to the deadline of a capture.
+     * @param deadline {@link System#nanoTime()} the capture must end by, 0 for none
+     */
+    static void setDeadline(final long deadline)
+    {
+        CAPTURE_DEADLINE.get()[0] = deadline;
+    }
+
+    /**
+     * @param timeout milliseconds allowed without a deadline
+     * @return milliseconds left before the capture deadline, at most the timeout
+     */
+    private static long getTimeLeft(final long timeout)
+    {
+        long deadline = CAPTURE_DEADLINE.get()[0];
+        if(deadline == 0)
+        {
+            return timeout;
+        }
+        return Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * @param response answer of the server, may be null
+     * @return milliseconds of the Retry-After header in seconds, -1 if absent or a date
+     */
+    private static long getRetryAfter(final HttpResponse response)
+    {
+        Header header = response == null ? null : response.getFirstHeader("Retry-After");
+        if(header == null)
+        {
+            return -1;
+        }
+        try
+        {
+            return Math.max(0, Long.parseLong(header.getValue().trim())) * 1000;
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static List<String> split(final String value)
+    {
+        List<String> values = new ArrayList<String>();
+        if(value != null)
+        {
+            for(String item : value.split(","))
+            {
+                if(!item.trim().isEmpty())
+                {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static List<String> toLowerCase(final List<String> values)
+    {
+        List<String> lower = new ArrayList<String>(values.size());
+        for(String value : values)
+        {
+            lower.add(value.trim().toLowerCase());
+        }
+        return lower;
+    }
+
+    private static List<Pattern> compile(final List<String> patterns)
+    {
+        List<Pattern> compiled = new ArrayList<Pattern>(patterns.size());
+        for(String pattern : patterns)
+        {
+            compiled.add(Pattern.compile(pattern, Pattern.CASE_INSENSITIVE));
+        }
+        return compiled;
+    }
+
+    private static RequestConfig createRequestConfig(final int connect, final int read)
+    {
+        return RequestConfig.custom()
+                .setConnectTimeout(connect)
+                .setConnectionRequestTimeout(connect)
+                .setSocketTimeout(read)
+                .build();
+    }
+
+    private static ScheduledExecutorService createScheduler()
+    {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable ->
+        {
+            Thread thread = new Thread(runnable, "fetch-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Concurrency and pace of the requests to a host.
+     */
+    private static class Host
+    {
+        private final Semaphore connections;
+        private long next;
+
+        Host(final int connections)
+        {
+            this.connections = new Semaphore(connections, true);
+        }
+
+        /**
+         * Wait for the next slot, slots are one second divided by the rate apart.
+         */
+        void pace(final int rate) throws InterruptedException
+        {
+            if(rate <= 0)
+            {
+                return;
+            }
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long slot;
+            synchronized (this)
+            {
+                long now = System.nanoTime();
+                slot = next - now > 0 ? next : now;
+                next = slot + interval;
+            }
+            long wait = slot - System.nanoTime();
+            if(wait > 0)
+            {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
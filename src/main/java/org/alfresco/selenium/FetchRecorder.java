@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.rules.TestWatcher;
+import org.junit.runner.Description;
+import org.openqa.selenium.WebDriver;
+
+/**
+ * JUnit rule keeping the history of the pages visited by a test, saved only when the test fails.
+ * <p>
+ * Each call to {@link #record(WebDriver, String)} takes a {@link FetchSnapshot},
+ * the source, url and cookies of the page in one call to the browser, into a
+ * bounded buffer of the last snapshots of the test. Nothing is downloaded or
+ * written while the test runs. When the test fails the snapshots are saved
+ * with their assets, oldest first, as Class.method-1-label.html and so on.
+ * <p>
+ * Example usage:
+ * <pre>
+ * &#64;Rule
+ * public FetchRecorder recorder = new FetchRecorder();
+ * ...
+ * recorder.record(driver, "login");
+ * </pre>
+ * The number of snapshots kept defaults to the <code>fetch.history</code> system property, 5.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchRecorder extends TestWatcher
+{
+    private static final Log logger = LogFactory.getLog(FetchRecorder.class);
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("fetch.history", 5);
+    private final int capacity;
+    private final ArrayDeque<Step> steps;
+    private String name = "test";
+    private int count;
+
+    /**
+     * Keeps the last <code>fetch.history</code> snapshots.
+     */
+    public FetchRecorder()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of snapshots kept, the oldest are dropped
+     */
+    public FetchRecorder(final int capacity)
+    {
+        if(capacity < 1)
+        {
+            throw new IllegalArgumentException("Capacity must be greater than zero");
+        }
+        this.capacity = capacity;
+        this.steps = new ArrayDeque<Step>(capacity);
+    }
+
+    /**
+     * Record the current page.
+     * @param driver {@link WebDriver}
+     */
+    public void record(final WebDriver driver)
+    {
+        record(driver, null);
+    }
+
+    /**
+     * Record the current page.
+     * @param driver {@link WebDriver}
+     * @param label describes the step, used in the file name, may be null
+     */
+    public void record(final WebDriver driver, final String label)
+    {
+        FetchSnapshot snapshot = FetchSnapshot.take(driver);
+        synchronized (steps)
+        {
+            count++;
+            if(steps.size() == capacity)
+            {
+                steps.removeFirst();
+            }
+            steps.addLast(new Step(snapshot, label, count));
+        }
+    }
+
+    /**
+     * @return the recorded snapshots, oldest first
+     */
+    public List<FetchSnapshot> getSnapshots()
+    {
+        List<FetchSnapshot> snapshots = new ArrayList<FetchSnapshot>();
+        synchronized (steps)
+        {
+            for(Step step : steps)
+            {
+                snapshots.add(step.snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Save the recorded snapshots with their assets, the {@link WebDriver} is not used.
+     * A snapshot that can not be saved is logged and skipped.
+     * @return {@link FetchResult} of each saved snapshot, oldest first
+     */
+    public List<FetchResult> materialize()
+    {
+        List<Step> saved;
+        String prefix;
+        synchronized (steps)
+        {
+            saved = new ArrayList<Step>(steps);
+            prefix = name;
+        }
+        if(saved.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        List<FetchResult> results = new ArrayList<FetchResult>(saved.size());
+        FetchSession session = new FetchSession();
+        try
+        {
+            for(Step step : saved)
+            {
+                String filename = getFileName(prefix, step);
+                try
+                {
+                    results.add(FetchUtil.save(step.snapshot, session, filename));
+                }
+                catch(Exception e)
+                {
+                    logger.error("Unable to save " + step.snapshot.getUrl() + " to " + filename, e);
+                }
+            }
+        }
+        finally
+        {
+            session.close();
+        }
+        return results;
+    }
+
+    /**
+     * Drop the recorded snapshots.
+     */
+    public void clear()
+    {
+        synchronized (steps)
+        {
+            steps.clear();
+            count = 0;
+        }
+    }
+
+    @Override
+    protected void starting(final Description description)
+    {
+        clear();
+        synchronized (steps)
+        {
+            name = description.getTestClass() == null ? description.getDisplayName()
+                    : description.getTestClass().getSimpleName() + "." + description.getMethodName();
+        }
+    }
+
+    @Override
+    protected void failed(final Throwable e, final Description description)
+    {
+        List<FetchResult> results = materialize();
+        if(logger.isInfoEnabled() && !results.isEmpty())
+        {
+            logger.info("Saved " + results.size() + " pages of " + description.getDisplayName());
+        }
+    }
+
+    @Override
+    protected void finished(final Description description)
+    {
+        clear();
+    }
+
+    private static String getFileName(final String prefix, final Step step)
+    {
+        String filename = prefix + "-" + step.index;
+        if(step.label != null && !step.label.isEmpty())
+        {
+            filename += "-" + step.label;
+        }
+        //Pages are saved next to the content folder.
+        return filename.replaceAll("[^A-Za-z0-9._-]", "_") + ".html";
+    }
+
+    /**
+     * Snapshot of the page with its position in the test.
+     */
+    private static class Step
+    {
+        private final FetchSnapshot snapshot;
+        private final String label;
+        private final int index;
+
+        Step(final FetchSnapshot snapshot, final String label, final int index)
+        {
+            this.snapshot = snapshot;
+            this.label = label;
+            this.index = index;
+        }
+    }
+}
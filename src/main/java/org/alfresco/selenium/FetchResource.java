@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An asset the browser loaded for the page, as reported by the
+ * Resource Timing API or found on the elements of the page.
+ * <p>
+ * The browser has already resolved the url, including assets requested by
+ * scripts, so the list is both complete and free to compute on our side.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchResource
+{
+    /**
+     * Script returning the resources of the page, [url, initiator type, size, duration] each.
+     * Timing entries come first, then the elements for browsers without the API.
+     */
+    static final String RESOURCES_JS =
+            "(function(){var r = [], seen = {};"
+          + "function add(u, t, s, d){if(u && /^https?:/i.test(u) && !seen[u]){seen[u] = 1; r.push([u, t, s || 0, Math.round(d || 0)]);}}"
+          + "var p = window.performance;"
+          + "if(p && p.getEntriesByType){var e = p.getEntriesByType('resource');"
+          + "for(var i = 0; i < e.length; i++){add(e[i].name, e[i].initiatorType, e[i].transferSize || e[i].encodedBodySize, e[i].duration);}}"
+          + "var tags = ['img', 'script', 'link', 'source', 'video', 'audio', 'embed'];"
+          + "for(var j = 0; j < tags.length; j++){var n = document.getElementsByTagName(tags[j]);"
+          + "for(var k = 0; k < n.length; k++){var el = n[k];"
+          + "if(tags[j] == 'link' && !/stylesheet|icon/i.test(el.rel)){continue;}"
+          + "add(el.currentSrc || el.src || el.href, tags[j]);}}"
+          + "return r;})()";
+    private static final String[] REQUEST_INITIATORS = {"xmlhttprequest", "fetch", "beacon", "other"};
+    private static final String[] STATIC_EXTENSIONS = {".js", ".css", ".png", ".gif", ".jpg", ".jpeg", ".svg",
+            ".ico", ".woff", ".woff2", ".ttf", ".eot", ".otf", ".webp", ".html"};
+    private final String url;
+    private final String initiator;
+    private final long size;
+    private final long duration;
+
+    /**
+     * @param url absolute url of the asset
+     * @param initiator how the asset was requested, img, script, link, css, xmlhttprequest..
+     * @param size bytes transferred, 0 when unknown
+     * @param duration time in milliseconds taken by the browser to load it, 0 when unknown
+     */
+    public FetchResource(final String url, final String initiator, final long size, final long duration)
+    {
+        if(url == null || url.isEmpty())
+        {
+            throw new IllegalArgumentException("Resource url is required");
+        }
+        this.url = url;
+        this.initiator = initiator;
+        this.size = size;
+        this.duration = duration;
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public String getInitiator()
+    {
+        return initiator;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Requests made by scripts are only assets when they look like one,
+     * the others are calls to services.
+     * @return true if the resource should be part of the capture
+     */
+    public boolean isAsset()
+    {
+        boolean request = false;
+        for(String type : REQUEST_INITIATORS)
+        {
+            if(type.equalsIgnoreCase(initiator))
+            {
+                request = true;
+                break;
+            }
+        }
+        if(!request)
+        {
+            return true;
+        }
+        String path = url;
+        int end = path.indexOf('?');
+        path = (end < 0 ? path : path.substring(0, end)).toLowerCase();
+        for(String extension : STATIC_EXTENSIONS)
+        {
+            if(path.endsWith(extension))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Convert the value returned by {@link #RESOURCES_JS}.
+     * @param value list of [url, initiator type, size, duration]
+     * @return {@link FetchResource} collection, empty if the value is not a list
+     */
+    static List<FetchResource> parse(final Object value)
+    {
+        if(!(value instanceof List))
+        {
+            return Collections.emptyList();
+        }
+        List<FetchResource> resources = new ArrayList<FetchResource>();
+        for(Object item : (List<?>) value)
+        {
+            if(!(item instanceof List) || ((List<?>) item).size() < 4 || ((List<?>) item).get(0) == null)
+            {
+                continue;
+            }
+            List<?> entry = (List<?>) item;
+            resources.add(new FetchResource(entry.get(0).toString(),
+                    entry.get(1) == null ? null : entry.get(1).toString(),
+                    toLong(entry.get(2)),
+                    toLong(entry.get(3))));
+        }
+        return resources;
+    }
+
+    private static long toLong(final Object value)
+    {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return url + " [" + initiator + ", " + size + " bytes, " + duration + "ms]";
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a page capture, where the page was written and
+ * how many of its assets were downloaded, failed or were skipped.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchResult
+{
+    private final File file;
+    private final String url;
+    private final int assets;
+    private final int failed;
+    private final long duration;
+    private final List<String> skipped;
+
+    public FetchResult(final File file, final String url, final int assets, final int failed, final long duration)
+    {
+        this(file, url, assets, failed, duration, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param skipped urls of the assets not downloaded by the capture deadline or over its limits
+     */
+    public FetchResult(final File file,
+                       final String url,
+                       final int assets,
+                       final int failed,
+                       final long duration,
+                       final List<String> skipped)
+    {
+        this.file = file;
+        this.url = url;
+        this.assets = assets;
+        this.failed = failed;
+        this.duration = duration;
+        this.skipped = Collections.unmodifiableList(skipped);
+    }
+
+    /**
+     * @return the HTML file written
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return url of the captured page
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * @return number of assets referenced by the page
+     */
+    public int getAssets()
+    {
+        return assets;
+    }
+
+    /**
+     * @return number of assets that could not be downloaded, skipped ones excluded
+     */
+    public int getFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * @return urls of the assets skipped at the capture deadline, see {@link FetchUtil#setDeadline(long)},
+     * excluded by the {@link FetchPolicy} or over the capture budget, see {@link FetchUtil#setBudget(long)}
+     */
+    public List<String> getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * @return time in milliseconds spent downloading and writing the capture
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    @Override
+    public String toString()
+    {
+        return url + " -> " + file + " [" + (assets - failed - skipped.size()) + "/" + assets + " assets, "
+                + (skipped.isEmpty() ? "" : skipped.size() + " skipped, ") + duration + "ms]";
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.openqa.selenium.WebDriver;
+
+/**
+ * A long lived capture session which holds a pooled {@link CloseableHttpClient}
+ * shared by all the downloads made for a {@link WebDriver} session.
+ * Connections are kept alive between captures and stylesheets, idle connections
+ * are evicted in the background.
+ * <p>
+ * Sessions are normally obtained with {@link FetchHttpClient#getSession(WebDriver)}
+ * and released with {@link FetchHttpClient#closeSession(WebDriver)} once the driver quits.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchSession implements Closeable
+{
+    public static final int DEFAULT_MAX_PER_ROUTE = FetchDownloader.DEFAULT_THREADS;
+    public static final int DEFAULT_MAX_TOTAL = FetchDownloader.DEFAULT_THREADS * 4;
+    public static final long DEFAULT_IDLE_SECONDS = 30;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final BasicCookieStore cookieStore;
+    private final CloseableHttpClient client;
+
+    /**
+     * Creates a session with the default pool limits.
+     */
+    public FetchSession()
+    {
+        this(DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_TOTAL, DEFAULT_IDLE_SECONDS);
+    }
+
+    /**
+     * @param maxPerRoute maximum connections to a single host
+     * @param maxTotal maximum connections in the pool
+     * @param idleSeconds time a connection is kept alive when unused
+     */
+    public FetchSession(final int maxPerRoute, final int maxTotal, final long idleSeconds)
+    {
+        if(maxPerRoute < 1 || maxTotal < maxPerRoute)
+        {
+            throw new IllegalArgumentException("Invalid connection pool limits");
+        }
+        if(idleSeconds < 1)
+        {
+            throw new IllegalArgumentException("Idle time must be greater than zero");
+        }
+        connectionManager = new PoolingHttpClientConnectionManager(idleSeconds, TimeUnit.SECONDS);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setMaxTotal(maxTotal);
+        cookieStore = new BasicCookieStore();
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultCookieStore(cookieStore)
+                .setKeepAliveStrategy(new KeepAliveStrategy(idleSeconds))
+                .evictExpiredConnections()
+                .evictIdleConnections(idleSeconds, TimeUnit.SECONDS)
+                //Gzip bodies are decoded by FetchUtil, or stored as received, see FetchCompression.
+                .disableContentCompression()
+                .addInterceptorFirst(new RequestAcceptEncoding(Collections.singletonList(FetchCompression.GZIP)))
+                .build();
+    }
+
+    /**
+     * Refresh the session cookie from the authenticated {@link WebDriver},
+     * the cookie may change between captures, after a login for instance.
+     * @param driver {@link WebDriver}
+     */
+    public void updateCookies(final WebDriver driver)
+    {
+        setSessionCookie(FetchHttpClient.generateSessionCookie(driver));
+    }
+
+    /**
+     * Replace the cookies used by all requests with the cookies of the page,
+     * does not use the {@link WebDriver}.
+     * Captures send their own cookies, see {@link #createCookieStore(FetchSnapshot)},
+     * those of the session are only used by requests made with {@link #getClient()}.
+     * @param snapshot {@link FetchSnapshot} of the page
+     */
+    public void updateCookies(final FetchSnapshot snapshot)
+    {
+        synchronized (cookieStore)
+        {
+            cookieStore.clear();
+            addCookies(snapshot, cookieStore);
+        }
+    }
+
+    /**
+     * The cookies of a page for the requests of its capture only, the session
+     * cookies may be replaced by a later capture while it is still downloading.
+     * @param snapshot {@link FetchSnapshot} of the page
+     * @return {@link CookieStore} holding the cookies of the page
+     */
+    public static CookieStore createCookieStore(final FetchSnapshot snapshot)
+    {
+        BasicCookieStore store = new BasicCookieStore();
+        addCookies(snapshot, store);
+        return store;
+    }
+
+    private static void addCookies(final FetchSnapshot snapshot, final CookieStore store)
+    {
+        String host = snapshot.getHost();
+        for(Map.Entry<String, String> entry : snapshot.getCookies().entrySet())
+        {
+            BasicClientCookie cookie = new BasicClientCookie(entry.getKey(), entry.getValue());
+            cookie.setDomain(host);
+            cookie.setPath("/");
+            store.addCookie(cookie);
+        }
+    }
+
+    /**
+     * Replace the session cookie used by all requests.
+     * @param cookie session cookie, null to clear it
+     */
+    public void setSessionCookie(final BasicClientCookie cookie)
+    {
+        synchronized (cookieStore)
+        {
+            cookieStore.clear();
+            if(cookie != null)
+            {
+                cookieStore.addCookie(cookie);
+            }
+        }
+    }
+
+    /**
+     * @return shared {@link CloseableHttpClient}, must not be closed by the caller
+     */
+    public CloseableHttpClient getClient()
+    {
+        return client;
+    }
+
+    /**
+     * @return statistics of the connection pool
+     */
+    public PoolStats getTotalStats()
+    {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void close()
+    {
+        HttpClientUtils.closeQuietly(client);
+    }
+
+    /**
+     * Honours the server keep alive header and falls back to the idle time
+     * when the server does not specify one.
+     */
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy
+    {
+        private final long idleMillis;
+
+        KeepAliveStrategy(final long idleSeconds)
+        {
+            this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+        {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, idleMillis) : idleMillis;
+        }
+    }
+}
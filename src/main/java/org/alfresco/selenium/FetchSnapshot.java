@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Immutable state of the page needed to capture it: source, url, origin,
+ * base uri and cookies. It is gathered with a single script execution so
+ * that a capture costs one round trip to the browser, however many assets and
+ * stylesheets the page has, and it is used by the capture instead of the
+ * {@link WebDriver} from then on.
+ * <p>
+ * When asked, the same call also returns the {@link FetchResource} list of the page.
+ * <p>
+ * The session cookie is usually HttpOnly, hidden from scripts, in which case
+ * it is read from the driver with one additional call.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchSnapshot
+{
+    private static final Log logger = LogFactory.getLog(FetchSnapshot.class);
+    public static final String SESSION_COOKIE = "JSESSIONID";
+    private static final String SNAPSHOT_JS_COMMAND =
+            "var d = document, l = d.location;"
+          + "return [(d.doctype ? '<!DOCTYPE ' + d.doctype.name + '>' : '') + d.documentElement.outerHTML,"
+          + " l.href, l.origin || (l.protocol + '//' + l.host), d.cookie, d.baseURI";
+    private final String html;
+    private final String url;
+    private final String origin;
+    private final String baseUri;
+    private final Map<String, String> cookies;
+    private final List<FetchResource> resources;
+    private final long timestamp;
+
+    /**
+     * @param html page source
+     * @param url current url of the page
+     * @param origin site domain url, http://localhost:8080
+     * @param baseUri url relative references are resolved against, the url when null
+     * @param cookies name and value of the cookies of the page
+     */
+    public FetchSnapshot(final String html,
+                         final String url,
+                         final String origin,
+                         final String baseUri,
+                         final Map<String, String> cookies)
+    {
+        this(html, url, origin, baseUri, cookies, null);
+    }
+
+    /**
+     * @param html page source
+     * @param url current url of the page
+     * @param origin site domain url, http://localhost:8080
+     * @param baseUri url relative references are resolved against, the url when null
+     * @param cookies name and value of the cookies of the page
+     * @param resources assets loaded by the browser, null when not discovered
+     */
+    public FetchSnapshot(final String html,
+                         final String url,
+                         final String origin,
+                         final String baseUri,
+                         final Map<String, String> cookies,
+                         final List<FetchResource> resources)
+    {
+        if(html == null)
+        {
+            throw new IllegalArgumentException("HTML source is required");
+        }
+        if(url == null || url.isEmpty())
+        {
+            throw new IllegalArgumentException("Page url is required");
+        }
+        this.html = html;
+        this.url = url;
+        this.origin = origin == null || origin.isEmpty() || "null".equals(origin) ? getOrigin(url) : origin;
+        this.baseUri = baseUri == null || baseUri.isEmpty() ? url : baseUri;
+        this.cookies = cookies == null ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, String>(cookies));
+        this.resources = resources == null ? null : Collections.unmodifiableList(new ArrayList<FetchResource>(resources));
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Take the snapshot of the current page in one round trip, falling back to
+     * the individual {@link WebDriver} calls when the driver can not run scripts.
+     * @param driver {@link WebDriver}
+     * @return {@link FetchSnapshot}
+     */
+    public static FetchSnapshot take(final WebDriver driver)
+    {
+        return take(driver, false);
+    }
+
+    /**
+     * Take the snapshot of the current page in one round trip, falling back to
+     * the individual {@link WebDriver} calls when the driver can not run scripts.
+     * @param driver {@link WebDriver}
+     * @param discover true to also list the {@link FetchResource} loaded by the browser
+     * @return {@link FetchSnapshot}
+     */
+    public static FetchSnapshot take(final WebDriver driver, final boolean discover)
+    {
+        if(driver == null)
+        {
+            throw new IllegalArgumentException("WebDriver is required");
+        }
+        FetchSnapshot snapshot = null;
+        if(driver instanceof JavascriptExecutor)
+        {
+            try
+            {
+                String script = SNAPSHOT_JS_COMMAND + (discover ? ", " + FetchResource.RESOURCES_JS : "") + "];";
+                Object result = ((JavascriptExecutor) driver).executeScript(script);
+                if(result instanceof List && ((List<?>) result).size() == (discover ? 6 : 5))
+                {
+                    List<?> values = (List<?>) result;
+                    snapshot = new FetchSnapshot(toString(values.get(0)), toString(values.get(1)),
+                            toString(values.get(2)), toString(values.get(4)), parseCookies(toString(values.get(3))),
+                            discover ? FetchResource.parse(values.get(5)) : null);
+                }
+            }
+            catch(RuntimeException e)
+            {
+                if(logger.isDebugEnabled())
+                {
+                    logger.debug("Unable to take snapshot in one call", e);
+                }
+            }
+        }
+        if(snapshot == null)
+        {
+            String url = driver.getCurrentUrl();
+            return new FetchSnapshot(driver.getPageSource(), url, null, null, getCookies(driver, null));
+        }
+        if(!snapshot.cookies.containsKey(SESSION_COOKIE))
+        {
+            return new FetchSnapshot(snapshot.html, snapshot.url, snapshot.origin, snapshot.baseUri,
+                    getCookies(driver, snapshot.cookies), snapshot.resources);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return page source
+     */
+    public String getHtml()
+    {
+        return html;
+    }
+
+    /**
+     * @return current url of the page
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * @return site domain url, http://localhost:8080
+     */
+    public String getOrigin()
+    {
+        return origin;
+    }
+
+    /**
+     * @return url relative references are resolved against
+     */
+    public String getBaseUri()
+    {
+        return baseUri;
+    }
+
+    /**
+     * @return host name of the page, the domain of its cookies
+     */
+    public String getHost()
+    {
+        try
+        {
+            return new URI(url).getHost();
+        }
+        catch(Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return name and value of the cookies of the page
+     */
+    public Map<String, String> getCookies()
+    {
+        return cookies;
+    }
+
+    /**
+     * @return assets loaded by the browser, null when they were not discovered
+     */
+    public List<FetchResource> getResources()
+    {
+        return resources;
+    }
+
+    /**
+     * @return time the snapshot was taken in milliseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Parse the document.cookie value, "name=value; other=value".
+     * @param cookie value of document.cookie
+     * @return name and value of each cookie
+     */
+    static Map<String, String> parseCookies(final String cookie)
+    {
+        Map<String, String> cookies = new LinkedHashMap<String, String>();
+        if(cookie == null)
+        {
+            return cookies;
+        }
+        for(String pair : cookie.split(";"))
+        {
+            int index = pair.indexOf('=');
+            if(index > 0)
+            {
+                cookies.put(pair.substring(0, index).trim(), pair.substring(index + 1).trim());
+            }
+        }
+        return cookies;
+    }
+
+    private static Map<String, String> getCookies(final WebDriver driver, final Map<String, String> found)
+    {
+        Map<String, String> cookies = new LinkedHashMap<String, String>();
+        if(found != null)
+        {
+            cookies.putAll(found);
+        }
+        Cookie session = driver.manage().getCookieNamed(SESSION_COOKIE);
+        if(session != null)
+        {
+            cookies.put(session.getName(), session.getValue());
+        }
+        return cookies;
+    }
+
+    private static String getOrigin(final String url)
+    {
+        try
+        {
+            URI uri = new URI(url);
+            return uri.getScheme() + "://" + uri.getRawAuthority();
+        }
+        catch(Exception e)
+        {
+            throw new IllegalArgumentException("Invalid page url " + url, e);
+        }
+    }
+
+    private static String toString(final Object value)
+    {
+        return value == null ? null : value.toString();
+    }
+}
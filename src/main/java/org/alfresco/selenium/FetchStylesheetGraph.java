@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.selenium.FetchCSS.Reference;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Resolves the stylesheets of a capture and everything they depend on.
+ * <p>
+ * Each stylesheet is amended by {@link FetchCSS}, its references are then
+ * downloaded in parallel and the nested stylesheets, from @import chains, are
+ * resolved in turn as soon as they arrive, level after level.
+ * Every url is fetched once per graph whatever the number of stylesheets
+ * referencing it, which also stops import cycles, a cycle is logged and
+ * the stylesheet is not revisited.
+ * <p>
+ * Work is only ever composed on the executor, never waited on, so the graph
+ * is safe to run on the bounded pool of the {@link FetchDownloader}.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchStylesheetGraph
+{
+    private static final Log logger = LogFactory.getLog(FetchStylesheetGraph.class);
+    private final File root;
+    private final CloseableHttpClient client;
+    private final Executor executor;
+    private final FetchOutput output;
+    private final ConcurrentMap<String, CompletableFuture<File>> resolved = new ConcurrentHashMap<String, CompletableFuture<File>>();
+    private final ConcurrentMap<String, String> locations = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger stylesheets = new AtomicInteger();
+    private final AtomicInteger cycles = new AtomicInteger();
+
+    /**
+     * @param root asset directory, where top level stylesheets are stored
+     * @param client {@link CloseableHttpClient} able to serve concurrent requests
+     * @param executor runs the downloads
+     */
+    public FetchStylesheetGraph(final File root, final CloseableHttpClient client, final Executor executor)
+    {
+        this(root, client, executor, 0);
+    }
+
+    /**
+     * @param root asset directory, where top level stylesheets are stored
+     * @param client {@link CloseableHttpClient} able to serve concurrent requests
+     * @param executor runs the downloads
+     * @param deadline {@link System#nanoTime()} the downloads must end by, 0 for no deadline
+     */
+    public FetchStylesheetGraph(final File root, final CloseableHttpClient client, final Executor executor, final long deadline)
+    {
+        this(new FetchOutput(root, FetchUtil.ASSET_FOLDER, false, FetchUtil.isCompress(), deadline, 0, 0), client, executor);
+    }
+
+    /**
+     * @param output assets of the capture, the stylesheets are stored in its directory
+     * @param client {@link CloseableHttpClient} able to serve concurrent requests
+     * @param executor runs the downloads
+     */
+    FetchStylesheetGraph(final FetchOutput output, final CloseableHttpClient client, final Executor executor)
+    {
+        if(output == null)
+        {
+            throw new IllegalArgumentException("Asset directory is required");
+        }
+        if(client == null)
+        {
+            throw new IllegalArgumentException("Http client is required");
+        }
+        if(executor == null)
+        {
+            throw new IllegalArgumentException("Executor is required");
+        }
+        this.root = output.getDirectory();
+        this.output = output;
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Amend a top level stylesheet and fetch its dependencies.
+     * @param url of the stylesheet, or the site domain url, used to resolve relative references
+     * @param file downloaded stylesheet, stored in the asset directory
+     * @return completes once all the dependencies have been fetched, failures are logged
+     * @throws IOException if the stylesheet can not be amended
+     */
+    public CompletableFuture<Void> resolve(final String url, final File file) throws IOException
+    {
+        if(file == null)
+        {
+            throw new IllegalArgumentException("CSS source is required");
+        }
+        if(url != null && resolved.putIfAbsent(url, CompletableFuture.completedFuture(file)) == null)
+        {
+            //Nested stylesheets importing it point to this copy.
+            locations.put(url, file.getName());
+        }
+        List<String> ancestors = url == null ? Collections.<String>emptyList() : Collections.singletonList(url);
+        return resolve(url, file, file.getName(), ancestors);
+    }
+
+    /**
+     * @return number of stylesheets amended
+     */
+    public int getStylesheets()
+    {
+        return stylesheets.get();
+    }
+
+    /**
+     * @return number of distinct urls fetched or being fetched, top level stylesheets included
+     */
+    public int getResolved()
+    {
+        return resolved.size();
+    }
+
+    /**
+     * @return number of import cycles found
+     */
+    public int getCycles()
+    {
+        return cycles.get();
+    }
+
+    private CompletableFuture<Void> resolve(final String url,
+                                            final File file,
+                                            final String location,
+                                            final List<String> ancestors) throws IOException
+    {
+        stylesheets.incrementAndGet();
+        List<Reference> references = FetchCSS.rewrite(file, url, location, locations);
+        List<CompletableFuture<?>> children = new ArrayList<CompletableFuture<?>>(references.size());
+        final List<Reference> assets = new ArrayList<Reference>();
+        boolean inline = output.getInline() > 0;
+        for(final Reference reference : references)
+        {
+            CompletableFuture<File> future = new CompletableFuture<File>();
+            CompletableFuture<File> existing = resolved.putIfAbsent(reference.getUrl(), future);
+            if(inline && !reference.isStylesheet())
+            {
+                assets.add(reference);
+                if(existing != null)
+                {
+                    //Fetched for another stylesheet, it must be complete to be embedded.
+                    children.add(existing);
+                }
+            }
+            if(existing != null)
+            {
+                if(reference.isStylesheet() && ancestors.contains(reference.getUrl()))
+                {
+                    cycles.incrementAndGet();
+                    if(logger.isDebugEnabled())
+                    {
+                        logger.debug("Import cycle " + ancestors + " -> " + reference.getUrl());
+                    }
+                }
+                continue;
+            }
+            final File destination = getFile(reference.getPath());
+            if(destination == null)
+            {
+                logger.warn("Dropped css reference " + reference.getUrl() + " stored outside of " + root);
+                future.complete(null);
+                continue;
+            }
+            CompletableFuture.supplyAsync(() -> fetch(reference.getUrl(), destination), executor).whenComplete((f, e) ->
+            {
+                if(!reference.isStylesheet())
+                {
+                    //Stylesheets are complete once their own references are resolved.
+                    output.store(f);
+                }
+                if(e != null)
+                {
+                    future.completeExceptionally(e);
+                }
+                else
+                {
+                    future.complete(f);
+                }
+            });
+            if(reference.isStylesheet())
+            {
+                final List<String> path = new ArrayList<String>(ancestors);
+                path.add(reference.getUrl());
+                children.add(future.thenComposeAsync(f -> resolveNested(reference, f, path).thenRun(() -> output.store(f)),
+                        executor));
+            }
+            else
+            {
+                children.add(future);
+            }
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(children.toArray(new CompletableFuture<?>[children.size()]));
+        if(assets.isEmpty())
+        {
+            return all;
+        }
+        return all.thenRun(() -> inline(file, location, assets));
+    }
+
+    /**
+     * Embed the small assets of the stylesheet once they are downloaded, see {@link FetchInline}.
+     * @param file amended stylesheet
+     * @param location path of the stylesheet relative to the asset directory
+     * @param assets references of the stylesheet that are not stylesheets
+     */
+    private void inline(final File file, final String location, final List<Reference> assets)
+    {
+        String directory = FetchCSS.getDirectory(location);
+        Map<String, String> replacements = new HashMap<String, String>();
+        try
+        {
+            for(Reference reference : assets)
+            {
+                File asset = getFile(reference.getPath());
+                if(asset == null)
+                {
+                    continue;
+                }
+                String data = FetchInline.getDataUri(asset, output.getInline());
+                if(data != null)
+                {
+                    replacements.put(FetchCSS.relativize(directory, reference.getPath()), data);
+                    output.getInlined().add(asset);
+                }
+            }
+            if(!replacements.isEmpty())
+            {
+                FetchCSS.inline(file, replacements);
+            }
+        }
+        catch(IOException e)
+        {
+            logger.error("Unable to inline the assets of stylesheet " + file, e);
+        }
+    }
+
+    private CompletableFuture<Void> resolveNested(final Reference reference, final File file, final List<String> ancestors)
+    {
+        if(file == null || !file.exists())
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+        try
+        {
+            return resolve(reference.getUrl(), file, reference.getPath(), ancestors);
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to parse stylesheet " + reference.getUrl(), e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Fetch a reference, as {@link FetchDownloader} does, the references skipped
+     * at the deadline are listed with the other skipped assets of the capture.
+     */
+    private File fetch(final String url, final File file)
+    {
+        long deadline = output.getDeadline();
+        Set<String> skipped = output.getSkipped();
+        if(deadline != 0 && deadline - System.nanoTime() <= 0)
+        {
+            skipped.add(url);
+            return null;
+        }
+        FetchPolicy.setDeadline(deadline);
+        try
+        {
+            File target = file.getParentFile();
+            if(!target.exists())
+            {
+                target.mkdirs();
+            }
+            File fetched = FetchUtil.retrieveFile(url, client, file, output);
+            //Abandoned at the deadline rather than failed.
+            if(deadline != 0 && (fetched == null || !fetched.exists()) && deadline - System.nanoTime() <= 0)
+            {
+                skipped.add(url);
+            }
+            return fetched;
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to fetch file " + url, e);
+            return null;
+        }
+        finally
+        {
+            FetchPolicy.setDeadline(0);
+        }
+    }
+
+    /**
+     * The file of a reference, as long as it is within the asset directory.
+     * The path is decoded, an encoded separator could otherwise lead out of it.
+     * @param path of the reference relative to the asset directory
+     * @return the file, null if it resolves outside of the asset directory
+     */
+    private File getFile(final String path)
+    {
+        File file = new File(root, getFilePath(path));
+        try
+        {
+            String directory = root.getCanonicalPath() + File.separator;
+            return file.getCanonicalPath().startsWith(directory) ? file : null;
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Decode the path, a url path, to the name of the file.
+     */
+    private static String getFilePath(final String path)
+    {
+        try
+        {
+            return new URI(path).getPath();
+        }
+        catch(Exception e)
+        {
+            return path;
+        }
+    }
+}
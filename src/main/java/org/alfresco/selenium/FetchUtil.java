@@ -18,23 +18,49 @@
  */
 package org.alfresco.selenium;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.HttpClientUtils;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -53,53 +79,838 @@ import org.openqa.selenium.WebDriver;
  * <p>
  * Example usage:
  * FetchUtil.save(driver, name.html)
+ * <p>
+ * Or, to leave the test running while the assets are downloaded:
+ * FetchUtil.saveAsync(driver, name.html) and FetchUtil.flush() when the suite ends.
  *
  * @author Michael Suzuki
  */
 public class FetchUtil
 {
     private static final Log logger = LogFactory.getLog(FetchUtil.class);
-    private static final String GET_BASE_URL_JS_COMMAND = "return document.location.origin;";
+    private static final String GET_BASE_URL_JS_COMMAND =
+            "return document.location.origin || (document.location.protocol + '//' + document.location.host);";
     private static final String URL_PATH_SEPARATOR = "/";
-    /* regex to locate and extract source of all assets */
-    private static final Pattern SRC_PATTERN = Pattern.compile("(?<=src=\")[^\"]*(?<!\")");
-    private static final Pattern CSS_PATTERN = Pattern.compile("(?<=url\\(\").*?(?=\"\\))");
-    private static final Pattern CSS_LINK_PATTERN = Pattern.compile("<link.*?\\>");
+    private static final int BUFFER_SIZE = 8192;
+    //Required to handle strange characters on the page.
+    private static final String UTF8_HTML = "<meta http-equiv=\"content-type\" content=\"text/html; charset=UTF-8\">";
+    public static final String OUTPUT_DIR = "./target/public/";
+    public static final String ASSET_FOLDER =  "content/";
+    public static final String ASSET_DIR = OUTPUT_DIR + ASSET_FOLDER;
+    /** Suffix of the manifest listing the assets skipped by the deadline or the size limits, page.html.skipped. */
+    public static final String MANIFEST_SUFFIX = ".skipped";
+    //Transparent 1x1 gif standing for images that were not downloaded.
+    private static final String PLACEHOLDER_IMAGE = "data:image/gif;base64,R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7";
+    private static final FetchDownloader downloader = new FetchDownloader();
+    public static final int DEFAULT_CAPTURE_THREADS = Integer.getInteger("fetch.captures", 2);
+    private static final AtomicInteger CAPTURE_COUNT = new AtomicInteger();
+    private static final ThreadPoolExecutor captureExecutor = createCaptureExecutor(DEFAULT_CAPTURE_THREADS);
+    private static final Set<CompletableFuture<FetchResult>> pending = ConcurrentHashMap.newKeySet();
+    private static volatile FetchContentStore contentStore = createContentStore(System.getProperty("fetch.store"));
+    private static volatile FetchCache cache = createCache(System.getProperty("fetch.cache"));
+    private static volatile FetchMemoryCache memoryCache = createMemoryCache(Long.getLong("fetch.memory", 0));
+    private static volatile boolean resourceDiscovery = Boolean.getBoolean("fetch.resources");
+    private static volatile boolean archive = Boolean.getBoolean("fetch.archive");
+    private static volatile boolean compress = Boolean.getBoolean("fetch.compress");
+    private static volatile FetchDelta delta = Boolean.getBoolean("fetch.delta") ? new FetchDelta() : null;
+    private static volatile FetchPolicy policy = new FetchPolicy();
+    private static volatile long deadline = Long.getLong("fetch.deadline", 0);
+    private static volatile long budget = Long.getLong("fetch.budget", 0);
+    private static volatile long inline = Long.getLong("fetch.inline", 0);
+    private static volatile FetchMetrics metrics = Boolean.getBoolean("fetch.metrics") ? new FetchMetricsRegistry().register() : null;
+    
+    /**
+     * Saves the current page as seen by the WebDriver
+     * @param driver {@link WebDriver}
+     * @param filename name of the HTML file output
+     * @throws PageCaptureException if error
+     * @throws IOException
+     */
+    public static void save(final WebDriver driver,final String filename) throws IOException 
+    {
+        FetchSnapshot snapshot = takeSnapshot(driver);
+        FetchSession session = FetchHttpClient.getSession(driver, snapshot);
+        capture(snapshot, session, filename);
+    }
+    
+    /**
+     * Saves a page from a snapshot taken earlier, the {@link WebDriver} is not
+     * used and may have moved on or quit. The assets are requested with the
+     * cookies of the snapshot.
+     * @param snapshot {@link FetchSnapshot} of the page
+     * @param session {@link FetchSession} used to download the assets
+     * @param filename name of the HTML file output
+     * @return {@link FetchResult} of the capture
+     * @throws IOException if error
+     */
+    public static FetchResult save(final FetchSnapshot snapshot,
+                                   final FetchSession session,
+                                   final String filename) throws IOException
+    {
+        if(snapshot == null)
+        {
+            throw new IllegalArgumentException("Snapshot is required");
+        }
+        if(session == null)
+        {
+            throw new IllegalArgumentException("Session is required");
+        }
+        if(filename == null || filename.isEmpty())
+        {
+            throw new IllegalArgumentException("File name is required");
+        }
+        return capture(snapshot, session, filename);
+    }
+    
+    /**
+     * Saves the current page as seen by the WebDriver without waiting for
+     * its assets. Only the {@link FetchSnapshot} of the page is taken on
+     * the calling thread, the download of the assets and the writing of the page
+     * happen in the background, the {@link WebDriver} is free to move on.
+     * <p>
+     * At most <code>fetch.captures</code> captures run at the same time,
+     * when more are queued the calling thread runs the capture itself.
+     * Call {@link #flush()} before the JVM exits, background captures do not keep it alive.
+     * @param driver {@link WebDriver}
+     * @param filename name of the HTML file output
+     * @return {@link FetchResult} of the capture, completed exceptionally if the capture failed
+     */
+    public static CompletableFuture<FetchResult> saveAsync(final WebDriver driver, final String filename)
+    {
+        if(driver == null)
+        {
+            throw new IllegalArgumentException("WebDriver is required");
+        }
+        if(filename == null || filename.isEmpty())
+        {
+            throw new IllegalArgumentException("File name is required");
+        }
+        final FetchSnapshot snapshot = takeSnapshot(driver);
+        final FetchSession session = FetchHttpClient.getSession(driver, snapshot);
+        final CompletableFuture<FetchResult> result = new CompletableFuture<FetchResult>();
+        pending.add(result);
+        result.whenComplete((r, e) -> pending.remove(result));
+        captureExecutor.execute(() ->
+        {
+            try
+            {
+                result.complete(capture(snapshot, session, filename));
+            }
+            catch(Throwable e)
+            {
+                logger.error("Unable to capture " + snapshot.getUrl() + " to " + filename, e);
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Waits for all the captures started by {@link #saveAsync(WebDriver, String)}.
+     */
+    public static void flush()
+    {
+        flush(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Waits for all the captures started by {@link #saveAsync(WebDriver, String)}.
+     * @param timeout maximum time to wait
+     * @param unit of the timeout
+     * @return true if all captures completed, false if the timeout elapsed first
+     */
+    public static boolean flush(final long timeout, final TimeUnit unit)
+    {
+        long start = System.nanoTime();
+        long wait = unit.toNanos(timeout);
+        while(!pending.isEmpty())
+        {
+            CompletableFuture<?>[] futures = pending.toArray(new CompletableFuture<?>[0]);
+            try
+            {
+                CompletableFuture.allOf(futures).get(Math.max(0, wait - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch(TimeoutException e)
+            {
+                return false;
+            }
+            catch(ExecutionException e)
+            {
+                //Failures are reported by the capture futures.
+            }
+            //Wait for the completion callbacks to clear the pending captures.
+            for(CompletableFuture<?> future : futures)
+            {
+                pending.remove(future);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Downloads the assets of the page and writes it, does not use the {@link WebDriver}.
+     * @param snapshot {@link FetchSnapshot} of the page
+     * @param session {@link FetchSession} of the driver
+     * @param filename name of the HTML file output
+     * @return {@link FetchResult}
+     * @throws IOException if error
+     */
+    private static FetchResult capture(final FetchSnapshot snapshot,
+                                       final FetchSession session,
+                                       final String filename) throws IOException
+    {
+        //The static captures share one output folder.
+        Fetcher defaults = Fetcher.builder()
+                .hashNames(false)
+                .isolated(false)
+                .delta(delta)
+                .build();
+        return capture(snapshot, session, filename, defaults);
+    }
+    
+    /**
+     * Captures the page as configured by the {@link Fetcher}.
+     * @param snapshot {@link FetchSnapshot} of the page
+     * @param session {@link FetchSession} of the driver
+     * @param filename name of the HTML file output
+     * @param fetcher output directory and settings of the capture
+     * @return {@link FetchResult}
+     * @throws IOException if error
+     */
+    static FetchResult capture(final FetchSnapshot snapshot,
+                               final FetchSession session,
+                               final String filename,
+                               final Fetcher fetcher) throws IOException
+    {
+        FetchMetrics listener = metrics;
+        if(listener == null)
+        {
+            return capture(snapshot, session, filename, fetcher, null);
+        }
+        long begin = System.nanoTime();
+        FetchResult result = capture(snapshot, session, filename, fetcher, listener);
+        listener.timed(FetchMetrics.Phase.CAPTURE, System.nanoTime() - begin);
+        listener.captured(snapshot.getUrl(), result.getAssets(), result.getFile().length());
+        return result;
+    }
+    
+    private static FetchResult capture(final FetchSnapshot snapshot,
+                                       final FetchSession session,
+                                       final String filename,
+                                       final Fetcher fetcher,
+                                       final FetchMetrics listener) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long allowed = fetcher.getDeadline();
+        long end = allowed > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(allowed) : 0;
+        long phase = now(listener);
+        String sourceHtml = snapshot.getHtml();
+        //download all assets: js,img and stylesheet.
+        List<String> files = extractFiles(sourceHtml);
+        Map<String, String> references = new HashMap<String, String>();
+        List<String> urls = addResources(parseURL(files, snapshot.getOrigin(), snapshot.getBaseUri(), references), snapshot);
+        phase = timed(listener, FetchMetrics.Phase.EXTRACT, phase);
+        File root = fetcher.getOutputDir();
+        String folder = fetcher.getAssetFolder(filename);
+        if(fetcher.isArchive())
+        {
+            return captureArchive(snapshot, session, filename, references, urls, start, end, fetcher, listener);
+        }
+        FetchDelta pageDelta = fetcher.getDelta();
+        if(pageDelta != null)
+        {
+            //Nothing changed since the last capture of the page, nor are the assets fetched again.
+            File previous = pageDelta.getUnchanged(snapshot.getUrl(), sourceHtml);
+            if(previous != null)
+            {
+                return new FetchResult(previous, snapshot.getUrl(), 0, 0, System.currentTimeMillis() - start);
+            }
+        }
+        FetchOutput output = new FetchOutput(new File(root, folder), folder, fetcher.isHashNames(), fetcher.isCompress(), end,
+                fetcher.getBudget(), fetcher.getInline(), FetchSession.createCookieStore(snapshot));
+        List<File> downloaded = urls.isEmpty() ? Collections.<File>emptyList()
+                : downloader.download(urls, session.getClient(), output);
+        phase = timed(listener, FetchMetrics.Phase.DOWNLOAD, phase);
+        List<String> skipped = getSkipped(urls, output.getSkipped());
+        Map<String, String> locations = getLocations(references, urls, downloaded, output);
+        int failed = countFailed(urls, downloaded, output);
+        File file = new File(root, filename + (fetcher.isCompress() ? FetchCompression.SUFFIX : ""));
+        if(pageDelta != null)
+        {
+            StringWriter writer = new StringWriter(sourceHtml.length() + UTF8_HTML.length() + 1);
+            rewriteHtml(sourceHtml, locations, writer);
+            file = pageDelta.write(snapshot.getUrl(), sourceHtml, writer.toString(), file);
+        }
+        else
+        {
+            writeHtml(sourceHtml, locations, file);
+        }
+        if(fetcher.isIsolated())
+        {
+            //Only the page refers to its own folder.
+            deleteInlined(output);
+        }
+        File manifest = new File(root, filename + MANIFEST_SUFFIX);
+        if(skipped.isEmpty())
+        {
+            //Left by an earlier capture of the same name.
+            Files.deleteIfExists(manifest.toPath());
+        }
+        else
+        {
+            FetchAssetWriter.write(getManifest(snapshot.getUrl(), allowed, skipped), manifest);
+        }
+        timed(listener, FetchMetrics.Phase.WRITE, phase);
+        return new FetchResult(file, snapshot.getUrl(), urls.size(), failed, System.currentTimeMillis() - start, skipped);
+    }
+    
+    /**
+     * Captures the page into a single {@link FetchArchive}. Each asset is streamed into
+     * the archive as soon as it is downloaded, a stylesheet once its references are
+     * resolved, and its file deleted, the HTML is added last once the assets are known.
+     * The small assets embedded as data uris are only kept on disk until the page is written.
+     * @param snapshot {@link FetchSnapshot} of the page
+     * @param session {@link FetchSession} of the driver
+     * @param filename name of the HTML file output, the archive is named after it
+     * @param references url of each reference found in the HTML
+     * @param urls assets to download
+     * @param start time the capture started
+     * @param end {@link System#nanoTime()} deadline of the downloads, 0 for none
+     * @param fetcher output directory and settings of the capture
+     * @param listener {@link FetchMetrics} of the capture, null if disabled
+     * @return {@link FetchResult} with the archive as file
+     * @throws IOException if error
+     */
+    private static FetchResult captureArchive(final FetchSnapshot snapshot,
+                                              final FetchSession session,
+                                              final String filename,
+                                              final Map<String, String> references,
+                                              final List<String> urls,
+                                              final long start,
+                                              final long end,
+                                              final Fetcher fetcher,
+                                              final FetchMetrics listener) throws IOException
+    {
+        File staging = Files.createTempDirectory("fetch-archive").toFile();
+        File file = new File(fetcher.getOutputDir(), getArchiveName(filename));
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        FetchArchive zip = new FetchArchive(file);
+        try
+        {
+            String folder = fetcher.getAssetFolder(filename);
+            long phase = now(listener);
+            FetchOutput output = new FetchOutput(new File(staging, folder), folder, fetcher.isHashNames(), fetcher.isCompress(), end,
+                    fetcher.getBudget(), fetcher.getInline(), FetchSession.createCookieStore(snapshot));
+            output.setArchive(zip);
+            List<File> downloaded = urls.isEmpty() ? Collections.<File>emptyList()
+                    : downloader.download(urls, session.getClient(), output);
+            phase = timed(listener, FetchMetrics.Phase.DOWNLOAD, phase);
+            final List<String> skipped = getSkipped(urls, output.getSkipped());
+            final Map<String, String> locations = getLocations(references, urls, downloaded, output);
+            deleteInlined(output);
+            output.closeArchive();
+            int failed = countFailed(urls, downloaded, output);
+            String page = new File(filename).getName();
+            zip.add(page, out ->
+            {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                rewriteHtml(snapshot.getHtml(), locations, writer);
+                writer.flush();
+            });
+            if(!skipped.isEmpty())
+            {
+                zip.add(page + MANIFEST_SUFFIX, out -> out.write(getManifest(snapshot.getUrl(), fetcher.getDeadline(), skipped)));
+            }
+            zip.close();
+            timed(listener, FetchMetrics.Phase.WRITE, phase);
+            return new FetchResult(file, snapshot.getUrl(), urls.size(), failed, System.currentTimeMillis() - start, skipped);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            zip.abort();
+            throw e;
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(staging);
+        }
+    }
+    
+    /**
+     * @param filename name of the HTML file output
+     * @return name of the archive, page.html is saved as page.zip
+     */
+    public static String getArchiveName(final String filename)
+    {
+        int dot = filename.lastIndexOf('.');
+        int slash = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf(File.separatorChar));
+        return (dot > slash ? filename.substring(0, dot) : filename) + ".zip";
+    }
+    
+    /**
+     * Take the snapshot of the page, timed when the metrics are enabled.
+     * @param driver {@link WebDriver}
+     * @return {@link FetchSnapshot}
+     */
+    static FetchSnapshot takeSnapshot(final WebDriver driver)
+    {
+        FetchMetrics listener = metrics;
+        long start = now(listener);
+        FetchSnapshot snapshot = FetchSnapshot.take(driver, resourceDiscovery);
+        timed(listener, FetchMetrics.Phase.SNAPSHOT, start);
+        return snapshot;
+    }
+    
+    /**
+     * @param listener {@link FetchMetrics}, null if disabled
+     * @return current time in nanoseconds, 0 when the metrics are disabled
+     */
+    static long now(final FetchMetrics listener)
+    {
+        return listener == null ? 0 : System.nanoTime();
+    }
+    
+    /**
+     * Report the time of a phase.
+     * @param listener {@link FetchMetrics}, null if disabled
+     * @param phase completed {@link FetchMetrics.Phase}
+     * @param start time the phase started, from {@link #now(FetchMetrics)}
+     * @return current time, the start of the next phase
+     */
+    static long timed(final FetchMetrics listener, final FetchMetrics.Phase phase, final long start)
+    {
+        if(listener == null)
+        {
+            return 0;
+        }
+        long now = System.nanoTime();
+        listener.timed(phase, now - start);
+        return now;
+    }
+    
+    /**
+     * @param urls assets of the page
+     * @param late urls skipped by the deadline or the {@link FetchPolicy}
+     * @return the skipped urls in the order of the page, followed by those referenced by its stylesheets
+     */
+    private static List<String> getSkipped(final List<String> urls, final Set<String> late)
+    {
+        if(late.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        Set<String> remaining = new LinkedHashSet<String>(late);
+        List<String> skipped = new ArrayList<String>(late.size());
+        for(String url : new LinkedHashSet<String>(urls))
+        {
+            if(remaining.remove(url))
+            {
+                skipped.add(url);
+            }
+        }
+        skipped.addAll(remaining);
+        return skipped;
+    }
+    
+    /**
+     * The references are matched to their file through their url, the urls may
+     * have lost the duplicates of the page and gained the discovered resources.
+     * @param references url of each reference found in the HTML
+     * @param urls assets of the page
+     * @param downloaded files of the assets, in the order of the urls
+     * @param output {@link FetchOutput} of the capture
+     * @return the local path of each reference, a placeholder for the skipped ones
+     * and a data uri for the small ones when inlining is enabled
+     * @throws IOException if error
+     */
+    private static Map<String, String> getLocations(final Map<String, String> references,
+                                                    final List<String> urls,
+                                                    final List<File> downloaded,
+                                                    final FetchOutput output) throws IOException
+    {
+        Map<String, File> assets = new HashMap<String, File>();
+        for(int i = 0; i < urls.size() && i < downloaded.size(); i++)
+        {
+            if(downloaded.get(i) != null)
+            {
+                assets.putIfAbsent(urls.get(i), downloaded.get(i));
+            }
+        }
+        Set<String> late = output.getSkipped();
+        Map<String, String> locations = new HashMap<String, String>();
+        for(Map.Entry<String, String> reference : references.entrySet())
+        {
+            String file = reference.getKey();
+            String url = reference.getValue();
+            if(late.contains(url))
+            {
+                locations.put(file, getPlaceholder(file));
+                continue;
+            }
+            File asset = assets.get(url);
+            String data = FetchInline.getDataUri(asset, output.getInline());
+            if(data != null)
+            {
+                output.getInlined().add(asset);
+            }
+            locations.put(file, data != null ? data : output.getPath(file, url));
+        }
+        return locations;
+    }
+    
+    /**
+     * Delete the files embedded as data uris, when the asset folder belongs to the capture.
+     * @param output {@link FetchOutput} of the capture
+     */
+    private static void deleteInlined(final FetchOutput output)
+    {
+        for(File asset : output.getInlined())
+        {
+            FileUtils.deleteQuietly(asset);
+        }
+    }
+    
+    /**
+     * @param url of the page
+     * @param allowed deadline of the capture in milliseconds, 0 for none
+     * @param skipped urls not downloaded
+     * @return manifest listing the skipped assets, one url per line
+     */
+    private static byte[] getManifest(final String url, final long allowed, final List<String> skipped)
+    {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("# Assets of ").append(url).append(" not downloaded");
+        if(allowed > 0)
+        {
+            manifest.append(" within ").append(allowed).append("ms");
+        }
+        manifest.append(", or excluded by the size and type limits\n");
+        for(String asset : skipped)
+        {
+            manifest.append(asset).append('\n');
+        }
+        return manifest.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * @param urls assets of the page
+     * @param downloaded files of the assets, in the order of the urls
+     * @param output {@link FetchOutput} of the capture, its skipped urls are not counted as failed
+     * @return number of assets that could not be downloaded
+     */
+    private static int countFailed(final List<String> urls, final List<File> downloaded, final FetchOutput output)
+    {
+        Set<String> skipped = output.getSkipped();
+        int failed = 0;
+        for(int i = 0; i < downloaded.size(); i++)
+        {
+            File asset = downloaded.get(i);
+            //Archived assets are no longer on disk.
+            if((asset == null || !(asset.exists() || output.isStored(asset))) && !skipped.contains(urls.get(i)))
+            {
+                failed++;
+            }
+        }
+        return failed;
+    }
+    
+    /**
+     * Add the assets reported by the browser that the HTML does not reference.
+     * @param urls assets referenced by the HTML
+     * @param snapshot {@link FetchSnapshot} of the page
+     * @return all the urls to download, without duplicates
+     */
+    private static List<String> addResources(final List<String> urls, final FetchSnapshot snapshot)
+    {
+        List<FetchResource> resources = snapshot.getResources();
+        if(resources == null || resources.isEmpty())
+        {
+            return urls;
+        }
+        Set<String> all = new LinkedHashSet<String>(urls);
+        for(FetchResource resource : resources)
+        {
+            if(resource.isAsset() && !resource.getUrl().equals(snapshot.getUrl()))
+            {
+                all.add(resource.getUrl());
+            }
+        }
+        return new ArrayList<String>(all);
+    }
+    
+    private static ThreadPoolExecutor createCaptureExecutor(final int threads)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 8),
+                runnable ->
+                {
+                    Thread thread = new Thread(runnable, "fetch-capture-" + CAPTURE_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    /**
+     * Enables the discovery of assets by the browser, see {@link FetchResource}.
+     * The assets loaded by scripts, not referenced by the HTML, are then captured too.
+     * @param enabled true to ask the browser for the assets it loaded
+     */
+    public static void setResourceDiscovery(final boolean enabled)
+    {
+        resourceDiscovery = enabled;
+    }
+    
+    public static boolean isResourceDiscovery()
+    {
+        return resourceDiscovery;
+    }
+    
+    /**
+     * Enables the archive output, each capture is written as a single zip of
+     * the page and its content folder instead of loose files, see {@link FetchArchiveReader}.
+     * @param enabled true to write page.zip instead of page.html
+     */
+    public static void setArchive(final boolean enabled)
+    {
+        archive = enabled;
+    }
+    
+    public static boolean isArchive()
+    {
+        return archive;
+    }
+    
+    /**
+     * Bound the time spent downloading the assets of each capture. Assets are then
+     * downloaded most useful first, pages, stylesheets and scripts before images,
+     * those not downloaded in time are replaced by placeholders in the page and
+     * listed in a manifest written next to it, page.html.skipped.
+     * @param millis time allowed from the start of a capture, 0 for no deadline
+     */
+    public static void setDeadline(final long millis)
+    {
+        if(millis < 0)
+        {
+            throw new IllegalArgumentException("Deadline can not be negative");
+        }
+        deadline = millis;
+    }
+    
+    /**
+     * @return time in milliseconds allowed for a capture, 0 for no deadline
+     */
+    public static long getDeadline()
+    {
+        return deadline;
+    }
+    
+    /**
+     * Bound the bytes downloaded by each capture. Assets requested once the budget
+     * is spent, or announcing more than what is left of it, are skipped as they are
+     * at the deadline, an asset passing it while downloading is abandoned.
+     * The limits applying to each asset are set on the {@link FetchPolicy}.
+     * @param bytes bytes a capture may download, 0 for no limit
+     */
+    public static void setBudget(final long bytes)
+    {
+        if(bytes < 0)
+        {
+            throw new IllegalArgumentException("Budget can not be negative");
+        }
+        budget = bytes;
+    }
+    
+    /**
+     * @return bytes a capture may download, 0 for no limit
+     */
+    public static long getBudget()
+    {
+        return budget;
+    }
+    
+    /**
+     * Embed the small images, fonts and scripts in the page and its stylesheets as
+     * base64 data uris instead of files. When each capture has its own folder, see
+     * {@link Fetcher.Builder#isolated(boolean)}, or is archived the embedded files are
+     * not kept. Stylesheets and assets stored compressed always keep their file.
+     * @param bytes largest asset embedded, 0 to disable
+     */
+    public static void setInline(final long bytes)
+    {
+        if(bytes < 0)
+        {
+            throw new IllegalArgumentException("Inline threshold can not be negative");
+        }
+        inline = bytes;
+    }
+    
+    /**
+     * @return largest asset embedded as a data uri in bytes, 0 if disabled
+     */
+    public static long getInline()
+    {
+        return inline;
+    }
+    
+    /**
+     * Enables the gzip storage of the page and its text assets, see {@link FetchCompression}.
+     * Assets the server sent compressed are stored without being decompressed.
+     * @param enabled true to write page.html.gz and content/app.js.gz
+     */
+    public static void setCompress(final boolean enabled)
+    {
+        compress = enabled;
+    }
+    
+    public static boolean isCompress()
+    {
+        return compress;
+    }
+    
+    /**
+     * Enables the deduplicated storage of assets.
+     * @param store {@link FetchContentStore} to use, null to write assets directly
+     */
+    public static void setContentStore(final FetchContentStore store)
+    {
+        contentStore = store;
+    }
+    
+    /**
+     * @return {@link FetchContentStore} in use, null if disabled
+     */
+    public static FetchContentStore getContentStore()
+    {
+        return contentStore;
+    }
+    
+    private static FetchContentStore createContentStore(final String dir)
+    {
+        return StringUtils.isBlank(dir) ? null : new FetchContentStore(new File(dir));
+    }
+    
+    /**
+     * Enables the persistent revalidation cache of downloaded assets.
+     * @param fetchCache {@link FetchCache} to use, null to always download assets
+     */
+    public static void setCache(final FetchCache fetchCache)
+    {
+        cache = fetchCache;
+    }
+    
+    /**
+     * @return {@link FetchCache} in use, null if disabled
+     */
+    public static FetchCache getCache()
+    {
+        return cache;
+    }
+    
+    private static FetchCache createCache(final String dir)
+    {
+        return StringUtils.isBlank(dir) ? null : new FetchCache(new File(dir));
+    }
+    
+    /**
+     * Enables the JVM wide in memory cache of assets and parsed stylesheets.
+     * @param fetchMemoryCache {@link FetchMemoryCache} to use, null to disable
+     */
+    public static void setMemoryCache(final FetchMemoryCache fetchMemoryCache)
+    {
+        memoryCache = fetchMemoryCache;
+    }
+    
+    /**
+     * @return {@link FetchMemoryCache} in use, null if disabled
+     */
+    public static FetchMemoryCache getMemoryCache()
+    {
+        return memoryCache;
+    }
+    
+    /**
+     * Replace the limits, timeouts and retries of the asset requests.
+     * @param fetchPolicy {@link FetchPolicy}
+     */
+    public static void setPolicy(final FetchPolicy fetchPolicy)
+    {
+        if(fetchPolicy == null)
+        {
+            throw new IllegalArgumentException("Fetch policy is required");
+        }
+        policy = fetchPolicy;
+    }
     
-    private static final Pattern HREF_PATTERN = Pattern.compile("(?<=href=\").*?(?=\")");
-    //Required to handle strange characters on the page.
-    private static final String UTF8_HTML = "<meta http-equiv=\"content-type\" content=\"text/html; charset=UTF-8\">";
-    public static final String OUTPUT_DIR = "./target/public/";
-    public static final String ASSET_FOLDER =  "content/";
-    public static final String ASSET_DIR = OUTPUT_DIR + ASSET_FOLDER;
+    /**
+     * @return {@link FetchPolicy} of the asset requests
+     */
+    public static FetchPolicy getPolicy()
+    {
+        return policy;
+    }
     
     /**
-     * Saves the current page as seen by the WebDriver
-     * @param driver {@link WebDriver}
-     * @param filename name of the HTML file output
-     * @throws PageCaptureException if error
-     * @throws IOException
+     * Enables the capture metrics, see {@link FetchMetricsRegistry}.
+     * @param fetchMetrics {@link FetchMetrics} to notify, null to disable
      */
-    public static void save(final WebDriver driver,final String filename) throws IOException 
+    public static void setMetrics(final FetchMetrics fetchMetrics)
     {
-        String sourceHtml = driver.getPageSource();
-        String currentUrl = driver.getCurrentUrl();
-        
-        //download all assets: js,img and stylesheet.
-        List<String> files = extractFiles(sourceHtml);
-        List<String> urls = parseURL(files, getHost(driver), currentUrl); 
-        getFiles(urls, driver);
-        String html = parseHtml(sourceHtml, files);
-        File file = new File(OUTPUT_DIR + filename);
-        file.delete();
-        FileUtils.writeStringToFile(file, html);
+        metrics = fetchMetrics;
+    }
+    
+    /**
+     * @return {@link FetchMetrics} in use, null if disabled
+     */
+    public static FetchMetrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    /**
+     * Enables the delta storage of successive captures of the same page,
+     * not used by archived captures.
+     * @param fetchDelta {@link FetchDelta} to use, null to write every capture in full
+     */
+    public static void setDelta(final FetchDelta fetchDelta)
+    {
+        delta = fetchDelta;
+    }
+    
+    /**
+     * @return {@link FetchDelta} in use, null if disabled
+     */
+    public static FetchDelta getDelta()
+    {
+        return delta;
+    }
+    
+    /**
+     * @return the {@link FetchDownloader} shared by all captures
+     */
+    static FetchDownloader getDownloader()
+    {
+        return downloader;
+    }
+
+    private static FetchMemoryCache createMemoryCache(final long maxBytes)
+    {
+        return maxBytes > 0 ? new FetchMemoryCache(maxBytes) : null;
     }
+    
     public static String getHost(WebDriver driver)
     {
         return (String)((JavascriptExecutor) driver).executeScript(GET_BASE_URL_JS_COMMAND);
     }
     /**
-     * Extract source location of all files related to HTML.
+     * Extract source location of all files related to HTML,
+     * the page is scanned once by the {@link FetchHtmlTokenizer}.
      * @param html
      * @return List of all source locations relating to js, css and images
      */
@@ -109,30 +920,30 @@ public class FetchUtil
         {
             throw new IllegalArgumentException("HTML source input required");
         }
-        List<String> list = new ArrayList<String>();
-        //Find all src=
-        Matcher matchSrc = SRC_PATTERN.matcher(html);
-        while (matchSrc.find()) 
-        {
-            String i = matchSrc.group(0);
-            list.add(i);
-        } 
-        //find all url('')
-        Matcher css = CSS_PATTERN.matcher(html);
-        while (css.find()) 
-        {
-            list.add(css.group(0));
-        } 
-        //Find all <link href="">
-        Matcher css2 = CSS_LINK_PATTERN.matcher(html);
-        while (css2.find()) 
+        List<String> sources = new ArrayList<String>();
+        List<String> styles = new ArrayList<String>();
+        List<String> links = new ArrayList<String>();
+        for(FetchHtmlTokenizer.Token token : FetchHtmlTokenizer.tokenize(html))
         {
-            Matcher href = HREF_PATTERN.matcher(css2.group(0));
-            if (href.find())
+            switch (token.getKind())
             {
-                list.add(href.group(0));
+                case SRC:
+                case SRCSET:
+                    sources.add(token.getValue());
+                    break;
+                case URL:
+                    styles.add(token.getValue());
+                    break;
+                case LINK:
+                    links.add(token.getValue());
+                    break;
             }
-        } 
+        }
+        //Keep the order of src, url('') then <link href="">
+        List<String> list = new ArrayList<String>(sources.size() + styles.size() + links.size());
+        list.addAll(sources);
+        list.addAll(styles);
+        list.addAll(links);
         return list;
     }
     
@@ -144,6 +955,22 @@ public class FetchUtil
      * @return Collection of URL
      */
     public static List<String> parseURL(List<String> files,final String baseUrl, final String currentURL)
+    {
+        return parseURL(files, baseUrl, currentURL, null);
+    }
+    
+    /**
+     * Parses file paths to URLs, recording the url of each path.
+     * @param files collection of paths
+     * @param baseUrl Site domain URL, http://localhost:8080
+     * @param currentURL the driver.getCurrentUrl() value 
+     * @param references filled with the url of each path, may be null
+     * @return Collection of URL, in the order of the paths
+     */
+    static List<String> parseURL(List<String> files,
+                                 final String baseUrl,
+                                 final String currentURL,
+                                 final Map<String, String> references)
     {
         if(null == baseUrl || baseUrl.isEmpty())
         {
@@ -160,10 +987,10 @@ public class FetchUtil
         //Strip tail "/"
         String base = StringUtils.removeEnd(baseUrl, URL_PATH_SEPARATOR);
         List<String> urls = new ArrayList<String>();
-        for(String url : files)
+        for(String file : files)
         {
             //replace amp&; with &
-            url = url.replaceAll("&amp;", "&");
+            String url = file.replaceAll("&amp;", "&");
             if(!url.startsWith("http"))
             {
                 if(url.startsWith("."))
@@ -182,38 +1009,34 @@ public class FetchUtil
             {
                 urls.add(url);
             }
+            if(references != null)
+            {
+                references.put(file, urls.get(urls.size() - 1));
+            }
         } 
         return urls;
     }
     /**
      * Download all external files to local directory.
+     * The files are downloaded concurrently, see {@link FetchDownloader}, using
+     * the pooled connections of the driver {@link FetchSession}.
      * @param files collection to download
      * @param driver {@link WebDriver}
+     * @return the downloaded files in the same order as the urls, null for assets that failed
      * @throws IOException 
      */
-    public static void getFiles(List<String> files, WebDriver driver) throws IOException
+    public static List<File> getFiles(List<String> files, WebDriver driver) throws IOException
     {
         if(null == files)
         {
             throw new IllegalArgumentException("Collections of url's are required");
         }
-        //Create a client to get content.
-        CloseableHttpClient client = FetchHttpClient.getHttpClient(driver);
-        try
-        {
-            for(String source: files)
-            {
-                File file = getFile(source, client);
-                if(source.endsWith("css"))
-                {
-                    FetchCSS.getCSSFiles(file, driver);
-                }
-            }
-        }
-        finally
+        if(files.isEmpty())
         {
-            HttpClientUtils.closeQuietly(client);
+            return Collections.emptyList();
         }
+        FetchSession session = FetchHttpClient.getSession(driver);
+        return downloader.download(files, session.getClient());
     }
     /**
      * Gets the name from path
@@ -229,24 +1052,31 @@ public class FetchUtil
      * Gets the external file using http client.
      * @param source file name
      * @param client {@link CloseableHttpClient}
+     * @param directory where the file is stored
      * @return {@link File} output.
      * @throws IOException if error
      */
-    private static File getFile(final String source, final CloseableHttpClient client) throws IOException
+    static File getFile(final String source, final CloseableHttpClient client, final File directory) throws IOException
     {
-        String name = getName(source);
-        //Strip ? as it causes regex problems when its a prefix. 
-        if(name.startsWith("?"))
-        {
-            name = name.replaceFirst("\\?", "");
-        }
-        File target = new File(ASSET_DIR);
-        if(!target.exists()) 
+        return getFile(source, client, FetchOutput.of(directory, compress));
+    }
+    /**
+     * Gets the external file using http client.
+     * @param source file name
+     * @param client {@link CloseableHttpClient}
+     * @param output {@link FetchOutput} of the capture
+     * @return {@link File} output.
+     * @throws IOException if error
+     */
+    static File getFile(final String source, final CloseableHttpClient client, final FetchOutput output) throws IOException
+    {
+        File directory = output.getDirectory();
+        if(!directory.exists()) 
         {
-            target.mkdirs();
+            directory.mkdirs();
         }
-        File destination = new File(ASSET_DIR + URL_PATH_SEPARATOR + name);
-        return retrieveFile(source, client, destination);
+        File destination = new File(directory, output.getName(source));
+        return retrieveFile(source, client, destination, output);
     }
     /**
      * Updates the HTML with the new locations of assets.
@@ -255,95 +1085,477 @@ public class FetchUtil
      * @return update html source
      */
     public static String parseHtml(String html, List<String> files)
+    {
+        return parseHtml(html, files, Collections.<String>emptySet());
+    }
+    
+    /**
+     * Updates the HTML with the new locations of assets and placeholders for the skipped ones.
+     * @param html page source
+     * @param files the references to rewrite
+     * @param skipped the references not downloaded, replaced by placeholders
+     * @return update html source
+     */
+    public static String parseHtml(String html, List<String> files, Set<String> skipped)
     {
         if(html == null || html.isEmpty())
         {
             throw new IllegalArgumentException("Html source code is required");
         }
-        String value = html.substring(0);
-        value = stripBaseTag(value);
-        value = stripMetaTag(value);
-        //Add the only meta tag we need that remove strange characters from page.
-        value = value.replaceFirst("<head>", "<head>\n" + UTF8_HTML);
+        StringWriter writer = new StringWriter(html.length() + UTF8_HTML.length() + 1);
+        try
+        {
+            parseHtml(html, files, skipped, writer);
+        }
+        catch(IOException e)
+        {
+            //StringWriter does not throw.
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+    
+    /**
+     * Writes the HTML with the new locations of assets.
+     * The page is tokenized once and copied to the output, the base and meta
+     * tags are removed and the references to the files are replaced, using the
+     * positions found by the {@link FetchHtmlTokenizer}, so the rewrite is linear
+     * in the size of the page whatever the number of assets.
+     * @param html page source
+     * @param files the references to rewrite as returned by {@link #extractFiles(String)}
+     * @param out {@link Writer} to write the page to
+     * @throws IOException if error
+     */
+    public static void parseHtml(String html, List<String> files, Writer out) throws IOException
+    {
+        parseHtml(html, files, Collections.<String>emptySet(), out);
+    }
+    
+    /**
+     * Writes the HTML with the new locations of assets, the skipped references
+     * are replaced by placeholders: a blank image, an empty stylesheet or script.
+     * @param html page source
+     * @param files the references to rewrite as returned by {@link #extractFiles(String)}
+     * @param skipped the references not downloaded, may be empty
+     * @param out {@link Writer} to write the page to
+     * @throws IOException if error
+     */
+    public static void parseHtml(String html, List<String> files, Set<String> skipped, Writer out) throws IOException
+    {
+        Map<String, String> locations = new HashMap<String, String>();
         if(files != null)
         {
             for(String file : files)
             {
-                //Get the name of the asset.
-                int index = file.lastIndexOf(URL_PATH_SEPARATOR);
-                String name = file.substring(index + 1);
-                if(name.startsWith("?"))
-                {
-                    try
+                locations.put(file, skipped.contains(file) ? getPlaceholder(file) : getAssetPath(file));
+            }
+        }
+        rewriteHtml(html, locations, out);
+    }
+    
+    /**
+     * Copies the HTML to the output replacing the references to the assets.
+     * @param html page source
+     * @param locations new value of each reference to replace
+     * @param out {@link Writer} to write the page to
+     * @throws IOException if error
+     */
+    private static void rewriteHtml(final String html, final Map<String, String> locations, final Writer out) throws IOException
+    {
+        if(html == null || html.isEmpty())
+        {
+            throw new IllegalArgumentException("Html source code is required");
+        }
+        if(out == null)
+        {
+            throw new IllegalArgumentException("Output is required");
+        }
+        boolean head = false;
+        int position = 0;
+        for(FetchHtmlTokenizer.Token token : FetchHtmlTokenizer.tokenize(html))
+        {
+            if(token.getStart() < position)
+            {
+                //Within a removed tag.
+                continue;
+            }
+            switch (token.getKind())
+            {
+                case BASE:
+                case META:
+                    out.write(html, position, token.getStart() - position);
+                    position = token.getEnd();
+                    break;
+                case HEAD:
+                    if(!head)
                     {
-                        //Java Regex cant handle ?[a-z]=
-                        String t[] = file.split("\\?");
-                        String prefix = t[0];
-                        String rest = t[1];
-                        //Remove ? from new filename.
-                        String updatedName = name.replaceFirst("\\?", ""); 
-                        value = value.replaceFirst(prefix + "\\?" + rest, "./" + ASSET_FOLDER + updatedName);
+                        //Add the only meta tag we need that remove strange characters from page.
+                        out.write(html, position, token.getEnd() - position);
+                        out.write("\n" + UTF8_HTML);
+                        position = token.getEnd();
+                        head = true;
                     }
-                    catch(Exception e)
+                    break;
+                default:
+                    String location = locations.get(token.getValue());
+                    if(location != null)
                     {
-                        logger.error("Unable to parse new url",e);
+                        out.write(html, position, token.getStart() - position);
+                        out.write(location);
+                        position = token.getEnd();
                     }
-                }
-                else
-                {
-                    value = value.replaceFirst(file, "./" + ASSET_FOLDER + name);
-                }
             }
         }
-        return value;
+        out.write(html, position, html.length() - position);
+    }
+    
+    /**
+     * Gets the path of the downloaded asset relative to the page.
+     * @param file reference to the asset as found in the page
+     * @return path to the asset in the asset folder
+     */
+    private static String getAssetPath(final String file)
+    {
+        String name = getName(file);
+        //Remove ? from new filename.
+        if(name.startsWith("?"))
+        {
+            name = name.substring(1);
+        }
+        return "./" + ASSET_FOLDER + name;
+    }
+    
+    /**
+     * @param file reference to an asset that was not downloaded
+     * @return an empty resource of the same kind
+     */
+    private static String getPlaceholder(final String file)
+    {
+        switch (FetchDownloader.getPriority(file))
+        {
+            case FetchDownloader.STYLESHEET:
+                return "data:text/css,";
+            case FetchDownloader.SCRIPT:
+                return "data:text/javascript,";
+            case FetchDownloader.IMAGE:
+                return PLACEHOLDER_IMAGE;
+            default:
+                return "about:blank";
+        }
+    }
+    
+    /**
+     * Streams the updated HTML to the file, replacing it once complete.
+     * The HTML is gzip compressed when the file name ends with .gz.
+     * @param html page source
+     * @param locations new value of each reference to replace
+     * @param file output
+     * @throws IOException if error
+     */
+    private static void writeHtml(final String html,
+                                  final Map<String, String> locations,
+                                  final File file) throws IOException
+    {
+        File temp = FetchAssetWriter.createTempFile(file);
+        try
+        {
+            OutputStream out = new FileOutputStream(temp);
+            if(file.getName().endsWith(FetchCompression.SUFFIX))
+            {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            try
+            {
+                rewriteHtml(html, locations, writer);
+            }
+            finally
+            {
+                writer.close();
+            }
+            FetchAssetWriter.move(temp, file);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
     }
     /**
      * Retrieve file with authentication, using {@link WebDriver} cookie we
      * keep the session and use HttpClient to download files that requires
-     * user to be authenticated. 
+     * user to be authenticated. The content is streamed to disk by
+     * {@link FetchAssetWriter} so a failed download leaves no partial file,
+     * or into the {@link FetchContentStore} when enabled. When the {@link FetchCache}
+     * is enabled fresh assets are not requested and stale ones are revalidated,
+     * the {@link FetchMemoryCache} is consulted before either.
+     * <p>
+     * Gzip encoded responses are decoded, unless compression is enabled and the asset
+     * is text, see {@link FetchCompression}, in which case the received bytes are stored as is.
      * @param resourceUrl path to file to download
-     * @param driver {@link WebDriver}
+     * @param client {@link CloseableHttpClient}
      * @param output path to output the file
+     * @return the file written, output or its compressed file, null if the download failed or the server answered with an error
      * @throws IOException if error
      */
     protected static File retrieveFile(final String resourceUrl,
                                        final CloseableHttpClient client,
                                        final File output) throws IOException 
     {
-        HttpGet httpGet = new HttpGet(resourceUrl);
-        BufferedOutputStream bos = null;
-        BufferedInputStream bis = null;
-        HttpResponse response = null; 
-        try 
+        return retrieveFile(resourceUrl, client, output, FetchOutput.of(output.getAbsoluteFile().getParentFile(), compress));
+    }
+    
+    /**
+     * Retrieve file with authentication, see {@link #retrieveFile(String, CloseableHttpClient, File)}.
+     * Assets excluded by the {@link FetchPolicy} or over the size limits are not written
+     * and are added to the skipped urls of the capture.
+     * @param resourceUrl url of the asset
+     * @param client {@link CloseableHttpClient}
+     * @param output destination file
+     * @param capture {@link FetchOutput} of the capture, its compression, budget and skipped urls
+     * @return {@link File} written, null if the download failed, the server answered with an error or the asset was skipped
+     * @throws IOException if error
+     */
+    static File retrieveFile(final String resourceUrl,
+                             final CloseableHttpClient client,
+                             final File output,
+                             final FetchOutput capture) throws IOException 
+    {
+        FetchPolicy fetchPolicy = policy;
+        if(fetchPolicy.isExcluded(resourceUrl))
         {
-            response = client.execute(httpGet);
-            HttpEntity entity = response.getEntity();
-            bos = new BufferedOutputStream(new FileOutputStream(output));
-            bis = new BufferedInputStream(entity.getContent());
-            int inByte;
-            while((inByte = bis.read()) != -1) bos.write(inByte);
-            HttpClientUtils.closeQuietly(response);
+            return skip(resourceUrl, capture, "excluded url");
         }
-        catch(Exception e)
+        boolean compressed = capture.isCompress() && FetchCompression.isCompressible(output.getName());
+        File target = compressed ? FetchCompression.getCompressedFile(output) : output;
+        //Compressed and plain copies of an asset are cached separately.
+        String key = compressed ? resourceUrl + FetchCompression.SUFFIX : resourceUrl;
+        FetchMetrics listener = metrics;
+        FetchMemoryCache memory = memoryCache;
+        byte[] content = memory == null ? null : memory.getContent(key);
+        if(content != null)
         {
-            logger.error("Unable to fetch file " + resourceUrl, e);
+            writeAsset(new ByteArrayInputStream(content), target);
+            if(listener != null)
+            {
+                listener.cacheHit(getHostName(resourceUrl));
+            }
+            return target;
         }
-        finally
+        FetchCache fetchCache = cache;
+        FetchCache.Entry cached = fetchCache == null ? null : fetchCache.get(key);
+        if(cached != null && cached.isFresh() && fetchCache.restore(cached, target))
+        {
+            if(listener != null)
+            {
+                listener.cacheHit(getHostName(resourceUrl));
+            }
+            return target;
+        }
+        AtomicLong remaining = capture.getBudget();
+        if(remaining != null && remaining.get() <= 0)
+        {
+            return skip(resourceUrl, capture, "capture budget exhausted");
+        }
+        String host = getHostName(resourceUrl);
+        boolean written = false;
+        for(int attempt = 1; ; attempt++)
         {
-            if(response != null)
+            HttpGet httpGet = new HttpGet(resourceUrl);
+            if(cached != null)
+            {
+                cached.addValidators(httpGet);
+            }
+            long delay = -1;
+            CloseableHttpResponse response = null;
+            FetchPolicy.Permit permit = null;
+            ScheduledFuture<?> deadline = null;
+            try
+            {
+                permit = fetchPolicy.acquire(host);
+                deadline = fetchPolicy.prepare(httpGet);
+                response = client.execute(httpGet, capture.createContext());
+                int status = response.getStatusLine().getStatusCode();
+                if(cached != null && status == HttpStatus.SC_NOT_MODIFIED)
+                {
+                    fetchCache.refresh(cached, response);
+                    fetchCache.restore(cached, target);
+                    if(listener != null)
+                    {
+                        listener.cacheHit(host);
+                    }
+                    return target;
+                }
+                if(fetchPolicy.isRetryable(status))
+                {
+                    delay = fetchPolicy.getBackoff(attempt, response);
+                }
+                //Error pages are not assets.
+                if(status >= HttpStatus.SC_BAD_REQUEST && delay < 0)
+                {
+                    logger.error("Unable to fetch file " + resourceUrl + ", status " + status);
+                    if(listener != null)
+                    {
+                        listener.failed(host);
+                    }
+                    return null;
+                }
+                HttpEntity entity = response.getEntity();
+                String rejected = delay < 0 ? fetchPolicy.reject(response, remaining == null ? -1 : remaining.get()) : null;
+                if(rejected != null)
+                {
+                    //Closing the response would read the rest of the content.
+                    httpGet.abort();
+                    return skip(resourceUrl, capture, rejected);
+                }
+                if(entity != null && delay < 0)
+                {
+                    InputStream in = fetchPolicy.limit(FetchPolicy.guard(entity.getContent(), httpGet), remaining, httpGet);
+                    long bytes = writeAsset(getContent(entity, in, compressed), target);
+                    written = true;
+                    if(logger.isDebugEnabled())
+                    {
+                        logger.debug("Fetched " + bytes + " bytes from " + resourceUrl);
+                    }
+                    if(listener != null)
+                    {
+                        listener.downloaded(host, bytes);
+                    }
+                    if(fetchCache != null && status == HttpStatus.SC_OK)
+                    {
+                        fetchCache.put(key, response, target);
+                    }
+                    if(memory != null && status == HttpStatus.SC_OK && memory.accepts(bytes)
+                            && FetchCache.getExpiry(response, 0) != FetchCache.NO_STORE)
+                    {
+                        memory.putContent(key, FileUtils.readFileToByteArray(target));
+                    }
+                }
+            }
+            catch(FetchPolicy.LimitExceededException e)
+            {
+                return skip(resourceUrl, capture, e.getMessage());
+            }
+            catch(IOException e)
+            {
+                //A request past its deadline is not tried again.
+                if(!httpGet.isAborted() && fetchPolicy.isRetryable(e))
+                {
+                    delay = fetchPolicy.getBackoff(attempt, null);
+                }
+                if(delay < 0)
+                {
+                    logger.error("Unable to fetch file " + resourceUrl, e);
+                    if(listener != null)
+                    {
+                        listener.failed(host);
+                    }
+                }
+            }
+            catch(Exception e)
+            {
+                logger.error("Unable to fetch file " + resourceUrl, e);
+                if(listener != null)
+                {
+                    listener.failed(host);
+                }
+            }
+            finally
             {
+                if(deadline != null)
+                {
+                    deadline.cancel(false);
+                }
                 HttpClientUtils.closeQuietly(response);
+                if(permit != null)
+                {
+                    permit.release();
+                }
+            }
+            if(delay < 0)
+            {
+                break;
+            }
+            if(logger.isDebugEnabled())
+            {
+                logger.debug("Retrying " + resourceUrl + " in " + delay + " ms, attempt " + (attempt + 1));
+            }
+            if(listener != null)
+            {
+                listener.retried(host);
             }
-            if(bis != null)
+            try
             {
-                bis.close();
+                Thread.sleep(delay);
             }
-            if(bos != null)
+            catch(InterruptedException e)
             {
-                bos.close();
+                Thread.currentThread().interrupt();
+                return null;
             }
         }
-        return output;
+        //Failed, or out of retries, nothing was written.
+        return written ? target : null;
+    }
+    /**
+     * Leave out an asset the capture does not download, it is listed in the manifest of the page.
+     * @param url of the asset
+     * @param capture {@link FetchOutput} of the capture
+     * @param reason why the asset is not downloaded
+     * @return null, no file is written
+     */
+    private static File skip(final String url, final FetchOutput capture, final String reason)
+    {
+        if(logger.isInfoEnabled())
+        {
+            logger.info("Skipped " + url + ", " + reason);
+        }
+        capture.getSkipped().add(url);
+        return null;
+    }
+    /**
+     * @param entity response body
+     * @param in content of the body as received
+     * @param compressed true to get gzip bytes, false to get the decoded content
+     * @return the content to store
+     * @throws IOException if error
+     */
+    private static InputStream getContent(final HttpEntity entity,
+                                          final InputStream in,
+                                          final boolean compressed) throws IOException
+    {
+        boolean gzip = FetchCompression.isGzip(entity);
+        if(compressed)
+        {
+            return gzip ? in : new ByteArrayInputStream(FetchCompression.compress(in));
+        }
+        return gzip ? new GZIPInputStream(in) : in;
+    }
+    /**
+     * @param url absolute url
+     * @return host of the url, null if invalid
+     */
+    private static String getHostName(final String url)
+    {
+        try
+        {
+            return new URI(url).getHost();
+        }
+        catch(URISyntaxException e)
+        {
+            return null;
+        }
+    }
+    /**
+     * Write the asset to disk, through the {@link FetchContentStore} when enabled.
+     * @param in content of the asset
+     * @param output destination file
+     * @return number of bytes written
+     * @throws IOException if error
+     */
+    private static long writeAsset(final InputStream in, final File output) throws IOException
+    {
+        FetchContentStore store = contentStore;
+        return store == null ? FetchAssetWriter.write(in, output) : store.write(in, output);
     }
     private static final Pattern BASE_TAG = Pattern.compile("<base.*?\\>");
     private static final Pattern META_TAG = Pattern.compile("<meta.*?\\>");
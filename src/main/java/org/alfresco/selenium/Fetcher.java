@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.selenium;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Captures pages into its own output directory, so that tests running in
+ * parallel, in threads or in forks, never write over each other's captures.
+ * <p>
+ * Unlike the static {@link FetchUtil}, which stores every asset in one shared
+ * content folder under the last segment of its url, a fetcher by default
+ * stores the assets of each capture in their own folder, content/login/ for
+ * login.html, under names prefixed by a hash of their url, so main.js of two
+ * different urls are two files. Downloads, connection pools, caches, the
+ * {@link FetchPolicy} and {@link FetchMetrics} are shared with the static API.
+ * <p>
+ * Example usage:
+ * <pre>
+ * Fetcher fetcher = Fetcher.builder().outputDir(new File("./target/public/" + testName)).build();
+ * fetcher.save(driver, "login.html");
+ * </pre>
+ * A fetcher is immutable and safe to share between threads.
+ *
+ * @author Michael Suzuki
+ */
+public class Fetcher
+{
+    private final File outputDir;
+    private final boolean hashNames;
+    private final boolean isolated;
+    private final boolean archive;
+    private final boolean compress;
+    private final long deadline;
+    private final long budget;
+    private final long inline;
+    private final FetchDelta delta;
+
+    private Fetcher(final Builder builder)
+    {
+        this.outputDir = builder.outputDir;
+        this.hashNames = builder.hashNames;
+        this.isolated = builder.isolated;
+        this.archive = builder.archive;
+        this.compress = builder.compress;
+        this.deadline = builder.deadline;
+        this.budget = builder.budget;
+        this.inline = builder.inline;
+        this.delta = builder.delta;
+    }
+
+    /**
+     * @return {@link Builder} with the defaults: ./target/public, hashed names,
+     * a folder per capture and the archive, compression, deadline, budget and inline settings of {@link FetchUtil}
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Saves the current page as seen by the WebDriver.
+     * @param driver {@link WebDriver}
+     * @param filename name of the HTML file output, relative to the output directory
+     * @return {@link FetchResult} of the capture
+     * @throws IOException if error
+     */
+    public FetchResult save(final WebDriver driver, final String filename) throws IOException
+    {
+        if(driver == null)
+        {
+            throw new IllegalArgumentException("WebDriver is required");
+        }
+        if(filename == null || filename.isEmpty())
+        {
+            throw new IllegalArgumentException("File name is required");
+        }
+        FetchSnapshot snapshot = FetchUtil.takeSnapshot(driver);
+        return FetchUtil.capture(snapshot, FetchHttpClient.getSession(driver, snapshot), filename, this);
+    }
+
+    /**
+     * Saves a page from a snapshot taken earlier, see {@link FetchUtil#save(FetchSnapshot, FetchSession, String)}.
+     * @param snapshot {@link FetchSnapshot} of the page
+     * @param session {@link FetchSession} used to download the assets
+     * @param filename name of the HTML file output, relative to the output directory
+     * @return {@link FetchResult} of the capture
+     * @throws IOException if error
+     */
+    public FetchResult save(final FetchSnapshot snapshot, final FetchSession session, final String filename) throws IOException
+    {
+        if(snapshot == null)
+        {
+            throw new IllegalArgumentException("Snapshot is required");
+        }
+        if(session == null)
+        {
+            throw new IllegalArgumentException("Session is required");
+        }
+        if(filename == null || filename.isEmpty())
+        {
+            throw new IllegalArgumentException("File name is required");
+        }
+        return FetchUtil.capture(snapshot, session, filename, this);
+    }
+
+    /**
+     * @return directory the pages are written to
+     */
+    public File getOutputDir()
+    {
+        return outputDir;
+    }
+
+    /**
+     * @param filename name of the HTML file output
+     * @return folder of the assets of the capture relative to the page, ending with /
+     */
+    String getAssetFolder(final String filename)
+    {
+        if(!isolated)
+        {
+            return FetchUtil.ASSET_FOLDER;
+        }
+        String name = new File(filename).getName();
+        int dot = name.lastIndexOf('.');
+        if(dot > 0)
+        {
+            name = name.substring(0, dot);
+        }
+        return FetchUtil.ASSET_FOLDER + name.replaceAll("[^A-Za-z0-9._-]", "_") + "/";
+    }
+
+    boolean isIsolated()
+    {
+        return isolated;
+    }
+
+    boolean isHashNames()
+    {
+        return hashNames;
+    }
+
+    boolean isArchive()
+    {
+        return archive;
+    }
+
+    boolean isCompress()
+    {
+        return compress;
+    }
+
+    long getDeadline()
+    {
+        return deadline;
+    }
+
+    long getBudget()
+    {
+        return budget;
+    }
+
+    long getInline()
+    {
+        return inline;
+    }
+
+    FetchDelta getDelta()
+    {
+        return delta;
+    }
+
+    /**
+     * Configures a {@link Fetcher}.
+     */
+    public static class Builder
+    {
+        private File outputDir = new File(FetchUtil.OUTPUT_DIR);
+        private boolean hashNames = true;
+        private boolean isolated = true;
+        private boolean archive = FetchUtil.isArchive();
+        private boolean compress = FetchUtil.isCompress();
+        private long deadline = FetchUtil.getDeadline();
+        private long budget = FetchUtil.getBudget();
+        private long inline = FetchUtil.getInline();
+        private FetchDelta delta;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * @param directory where the pages and their content folder are written
+         * @return this builder
+         */
+        public Builder outputDir(final File directory)
+        {
+            if(directory == null)
+            {
+                throw new IllegalArgumentException("Output directory is required");
+            }
+            this.outputDir = directory;
+            return this;
+        }
+
+        /**
+         * @param enabled true to prefix the asset names with a hash of their url
+         * @return this builder
+         */
+        public Builder hashNames(final boolean enabled)
+        {
+            this.hashNames = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled true to store the assets of each capture in their own folder
+         * @return this builder
+         */
+        public Builder isolated(final boolean enabled)
+        {
+            this.isolated = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled true to write each capture as a single zip, see {@link FetchUtil#setArchive(boolean)}
+         * @return this builder
+         */
+        public Builder archive(final boolean enabled)
+        {
+            this.archive = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled true to store the page and text assets gzip compressed, see {@link FetchCompression}
+         * @return this builder
+         */
+        public Builder compress(final boolean enabled)
+        {
+            this.compress = enabled;
+            return this;
+        }
+
+        /**
+         * @param millis time allowed for the downloads of a capture, 0 for no deadline,
+         * see {@link FetchUtil#setDeadline(long)}
+         * @return this builder
+         */
+        public Builder deadline(final long millis)
+        {
+            if(millis < 0)
+            {
+                throw new IllegalArgumentException("Deadline can not be negative");
+            }
+            this.deadline = millis;
+            return this;
+        }
+
+        /**
+         * @param bytes bytes the downloads of a capture may total, 0 for no limit,
+         * see {@link FetchUtil#setBudget(long)}
+         * @return this builder
+         */
+        public Builder budget(final long bytes)
+        {
+            if(bytes < 0)
+            {
+                throw new IllegalArgumentException("Budget can not be negative");
+            }
+            this.budget = bytes;
+            return this;
+        }
+
+        /**
+         * @param bytes largest asset embedded in the page and stylesheets as a data uri, 0 to disable,
+         * see {@link FetchUtil#setInline(long)}
+         * @return this builder
+         */
+        public Builder inline(final long bytes)
+        {
+            if(bytes < 0)
+            {
+                throw new IllegalArgumentException("Inline threshold can not be negative");
+            }
+            this.inline = bytes;
+            return this;
+        }
+
+        /**
+         * @param pageDelta {@link FetchDelta} storing successive captures as deltas, null to disable
+         * @return this builder
+         */
+        public Builder delta(final FetchDelta pageDelta)
+        {
+            this.delta = pageDelta;
+            return this;
+        }
+
+        /**
+         * @return the configured {@link Fetcher}
+         */
+        public Fetcher build()
+        {
+            return new Fetcher(this);
+        }
+    }
+}
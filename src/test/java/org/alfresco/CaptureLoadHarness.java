@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchHttpClient;
+import org.alfresco.selenium.FetchResult;
+import org.alfresco.selenium.FetchSession;
+import org.alfresco.selenium.FetchSnapshot;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+
+/**
+ * End to end capture load on an embedded server, no Share, browser or internet required.
+ * The server generates pages with the configured number of scripts, images and
+ * stylesheets importing each other, delays the assets and fails a share of them.
+ * A stub {@link WebDriver} loads the pages so that only the capture is measured.
+ * Not a unit test, run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.alfresco.CaptureLoadHarness -Dexec.classpathScope=test
+ *     -Dharness.assets=200 -Dharness.latency=20 -Dharness.threads=4
+ * </pre>
+ * Options, system properties: harness.pages, harness.assets, harness.size (bytes of each asset),
+ * harness.depth (nested stylesheets), harness.latency (ms), harness.failures (0 to 1),
+ * harness.captures, harness.warmup and harness.threads.
+ *
+ * @author Michael Suzuki
+ */
+public class CaptureLoadHarness
+{
+    private final int pages;
+    private final int assets;
+    private final int size;
+    private final int depth;
+    private final long latency;
+    private final double failures;
+    private final AtomicInteger requests = new AtomicInteger();
+    private Server server;
+    private String domain;
+
+    /**
+     * @param pages number of distinct pages
+     * @param assets assets referenced by each page, a fifth are stylesheets
+     * @param size bytes of each asset
+     * @param depth stylesheets imported by each stylesheet of the page, one per level
+     * @param latency milliseconds before each asset is served
+     * @param failures share of assets answered with an error, 0 to 1
+     */
+    public CaptureLoadHarness(final int pages,
+                              final int assets,
+                              final int size,
+                              final int depth,
+                              final long latency,
+                              final double failures)
+    {
+        if(pages < 1 || assets < 0 || size < 0 || depth < 0 || latency < 0 || failures < 0 || failures > 1)
+        {
+            throw new IllegalArgumentException("Invalid harness options");
+        }
+        this.pages = pages;
+        this.assets = assets;
+        this.size = size;
+        this.depth = depth;
+        this.latency = latency;
+        this.failures = failures;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        CaptureLoadHarness harness = new CaptureLoadHarness(Integer.getInteger("harness.pages", 10),
+                Integer.getInteger("harness.assets", 50),
+                Integer.getInteger("harness.size", 8 * 1024),
+                Integer.getInteger("harness.depth", 2),
+                Long.getLong("harness.latency", 10),
+                Double.parseDouble(System.getProperty("harness.failures", "0")));
+        harness.start();
+        try
+        {
+            harness.run(Integer.getInteger("harness.warmup", 20), Integer.getInteger("harness.threads", 2));
+            System.out.println(harness.run(Integer.getInteger("harness.captures", 100), Integer.getInteger("harness.threads", 2)));
+        }
+        finally
+        {
+            harness.stop();
+        }
+    }
+
+    /**
+     * Start the embedded server on a free port.
+     * @throws Exception if error
+     */
+    public void start() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                serve(target, response);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+    }
+
+    public void stop() throws Exception
+    {
+        server.stop();
+    }
+
+    /**
+     * @return number of requests served
+     */
+    public int getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Capture the pages in turn, each thread with its own driver.
+     * @param captures number of captures
+     * @param threads number of captures at the same time
+     * @return {@link Report} of the run
+     * @throws Exception if a capture fails
+     */
+    public Report run(final int captures, final int threads) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicInteger next = new AtomicInteger();
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>(captures));
+        final AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for(int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    StubDriver driver = new StubDriver();
+                    try
+                    {
+                        int i;
+                        while((i = next.getAndIncrement()) < captures)
+                        {
+                            driver.get(domain + "/harness/page-" + (i % pages) + ".html");
+                            long begin = System.nanoTime();
+                            FetchSnapshot snapshot = FetchSnapshot.take(driver);
+                            FetchSession session = FetchHttpClient.getSession(driver, snapshot);
+                            FetchResult result = FetchUtil.save(snapshot, session, "harness-" + (i % pages) + ".html");
+                            latencies.add(System.nanoTime() - begin);
+                            failed.addAndGet(result.getFailed());
+                        }
+                    }
+                    finally
+                    {
+                        FetchHttpClient.closeSession(driver);
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        return new Report(latencies, failed.get(), System.nanoTime() - start);
+    }
+
+    private void serve(final String target, final HttpServletResponse response) throws IOException
+    {
+        requests.incrementAndGet();
+        if(target.endsWith(".html"))
+        {
+            response.setContentType("text/html");
+            response.getWriter().write(getPage());
+            return;
+        }
+        sleep(latency);
+        //The same assets always fail.
+        if((target.hashCode() & Integer.MAX_VALUE) % 1000 < failures * 1000)
+        {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        if(target.endsWith(".css"))
+        {
+            response.setContentType("text/css");
+            response.getWriter().write(getStylesheet(target));
+        }
+        else
+        {
+            response.setContentType(target.endsWith(".js") ? "text/javascript" : "image/png");
+            response.getWriter().write(pad("/* " + target + " */", size));
+        }
+    }
+
+    private String getPage()
+    {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head>");
+        StringBuilder body = new StringBuilder("<body>");
+        for(int i = 0; i < assets; i++)
+        {
+            switch(i % 5)
+            {
+                case 0:
+                    html.append("<link rel=\"stylesheet\" href=\"/harness/css/skin-").append(i).append("-0.css\">");
+                    break;
+                case 1:
+                case 2:
+                    html.append("<script src=\"/harness/js/module-").append(i).append(".js\"></script>");
+                    break;
+                default:
+                    body.append("<div class=\"row\"><img src=\"/harness/img/image-").append(i).append(".png\"></div>");
+            }
+        }
+        return html.append("</head>").append(body).append("</body></html>").toString();
+    }
+
+    /**
+     * @param target skin-{n}-{level}.css
+     * @return stylesheet importing the next level and referencing an image
+     */
+    private String getStylesheet(final String target)
+    {
+        String name = target.substring(target.lastIndexOf('/') + 1, target.length() - ".css".length());
+        String[] parts = name.split("-");
+        int level = Integer.parseInt(parts[2]);
+        StringBuilder css = new StringBuilder();
+        if(level < depth)
+        {
+            css.append("@import url(\"skin-").append(parts[1]).append("-").append(level + 1).append(".css\");\n");
+        }
+        css.append(".skin-").append(parts[1]).append("-").append(level)
+           .append("{background:url(../img/background-").append(parts[1]).append("-").append(level).append(".png)}\n");
+        return pad(css.toString(), size);
+    }
+
+    private static String pad(final String content, final int length)
+    {
+        StringBuilder sb = new StringBuilder(Math.max(length, content.length())).append(content);
+        char[] filler = new char[Math.max(0, length - content.length())];
+        Arrays.fill(filler, ' ');
+        return sb.append(filler).toString();
+    }
+
+    private static void sleep(final long millis)
+    {
+        if(millis < 1)
+        {
+            return;
+        }
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Captures per second and latency percentiles of a run.
+     */
+    public static class Report
+    {
+        private final int captures;
+        private final int failed;
+        private final double throughput;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        Report(final List<Long> latencies, final int failed, final long elapsed)
+        {
+            List<Long> sorted = new ArrayList<Long>(latencies);
+            Collections.sort(sorted);
+            this.captures = sorted.size();
+            this.failed = failed;
+            this.throughput = captures / (elapsed / 1e9);
+            this.p50 = percentile(sorted, 0.5);
+            this.p99 = percentile(sorted, 0.99);
+            this.max = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1) / 1000000;
+        }
+
+        private static long percentile(final List<Long> sorted, final double percentile)
+        {
+            if(sorted.isEmpty())
+            {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index)) / 1000000;
+        }
+
+        public int getCaptures()
+        {
+            return captures;
+        }
+
+        /**
+         * @return assets that could not be downloaded over all captures
+         */
+        public int getFailed()
+        {
+            return failed;
+        }
+
+        /**
+         * @return captures per second
+         */
+        public double getThroughput()
+        {
+            return throughput;
+        }
+
+        /**
+         * @return median capture time in milliseconds
+         */
+        public long getP50()
+        {
+            return p50;
+        }
+
+        /**
+         * @return 99th percentile of the capture time in milliseconds
+         */
+        public long getP99()
+        {
+            return p99;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d captures, %.1f captures/sec, p50 %d ms, p99 %d ms, max %d ms, %d failed assets",
+                    captures, throughput, p50, p99, max, failed);
+        }
+    }
+
+    /**
+     * Driver loading the page source over http, without a browser. The snapshot
+     * script is answered from the loaded page, every other call is unsupported.
+     */
+    static class StubDriver implements WebDriver, JavascriptExecutor
+    {
+        private String url;
+        private String html;
+
+        @Override
+        public void get(final String location)
+        {
+            try
+            {
+                InputStream in = new URL(location).openStream();
+                try
+                {
+                    html = IOUtils.toString(in, StandardCharsets.UTF_8);
+                }
+                finally
+                {
+                    in.close();
+                }
+                url = location;
+            }
+            catch(IOException e)
+            {
+                throw new IllegalStateException("Unable to load " + location, e);
+            }
+        }
+
+        @Override
+        public Object executeScript(final String script, final Object... args)
+        {
+            URL page = toURL();
+            String origin = page.getProtocol() + "://" + page.getAuthority();
+            //Page source, url, origin, cookies and base uri.
+            return Arrays.<Object>asList(html, url, origin, FetchSnapshot.SESSION_COOKIE + "=harness", url);
+        }
+
+        @Override
+        public Object executeAsyncScript(final String script, final Object... args)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getCurrentUrl()
+        {
+            return url;
+        }
+
+        @Override
+        public String getPageSource()
+        {
+            return html;
+        }
+
+        @Override
+        public String getTitle()
+        {
+            return "";
+        }
+
+        @Override
+        public List<WebElement> findElements(final By by)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public WebElement findElement(final By by)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public void quit()
+        {
+        }
+
+        @Override
+        public Set<String> getWindowHandles()
+        {
+            return Collections.singleton(getWindowHandle());
+        }
+
+        @Override
+        public String getWindowHandle()
+        {
+            return "harness";
+        }
+
+        @Override
+        public TargetLocator switchTo()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Navigation navigate()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Options manage()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private URL toURL()
+        {
+            try
+            {
+                return new URL(url);
+            }
+            catch(IOException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
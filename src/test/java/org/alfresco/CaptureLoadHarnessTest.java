@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import org.alfresco.CaptureLoadHarness.Report;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs a short load to keep the {@link CaptureLoadHarness} working.
+ *
+ * @author Michael Suzuki
+ */
+public class CaptureLoadHarnessTest
+{
+    @Test
+    public void run() throws Exception
+    {
+        CaptureLoadHarness harness = new CaptureLoadHarness(2, 10, 1024, 2, 5, 0);
+        harness.start();
+        try
+        {
+            Report report = harness.run(6, 2);
+            Assert.assertEquals(6, report.getCaptures());
+            Assert.assertEquals(0, report.getFailed());
+            Assert.assertTrue(report.getThroughput() > 0);
+            Assert.assertTrue(report.getP50() <= report.getP99());
+            //Each capture requests the page, 10 assets and 2 levels of stylesheets with their images.
+            Assert.assertEquals(6 * (1 + 10 + 2 * 2 + 2 * 3), harness.getRequests());
+        }
+        finally
+        {
+            harness.stop();
+        }
+    }
+
+    @Test
+    public void failures() throws Exception
+    {
+        CaptureLoadHarness harness = new CaptureLoadHarness(1, 50, 64, 0, 0, 0.5);
+        harness.start();
+        try
+        {
+            Report report = harness.run(2, 1);
+            Assert.assertTrue(report.getFailed() > 0);
+            Assert.assertEquals(0, report.getFailed() % 2);
+        }
+        finally
+        {
+            harness.stop();
+        }
+    }
+}
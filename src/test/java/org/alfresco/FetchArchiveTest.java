@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchArchiveReader;
+import org.alfresco.selenium.FetchHttpClient;
+import org.alfresco.selenium.FetchResult;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests the page and its assets are captured as a single archive.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchArchiveTest
+{
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/archive/skin.css\"></head>"
+                            + "<body><img src=\"/archive/logo.png\"></body></html>");
+                }
+                else if(target.endsWith(".css"))
+                {
+                    response.getWriter().write(".a{background:url(images/bg.png)}");
+                }
+                else
+                {
+                    response.getWriter().write("image " + target);
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(true);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        FetchUtil.setArchive(false);
+        FetchHttpClient.closeSession(driver);
+        driver.quit();
+        server.stop();
+    }
+
+    @Test
+    public void saveArchive() throws Exception
+    {
+        driver.get(domain + "/archive/page.html");
+        FetchUtil.setArchive(true);
+        FetchResult result;
+        try
+        {
+            result = FetchUtil.saveAsync(driver, "archived.html").get(10, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            FetchUtil.setArchive(false);
+        }
+        File file = new File(FetchUtil.OUTPUT_DIR, "archived.zip");
+        Assert.assertEquals(file.getCanonicalFile(), result.getFile().getCanonicalFile());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertFalse(new File(FetchUtil.OUTPUT_DIR, "archived.html").exists());
+        FetchArchiveReader reader = new FetchArchiveReader(file);
+        try
+        {
+            List<String> entries = reader.getEntries();
+            Assert.assertEquals("archived.html", reader.getPage());
+            //Assets are streamed in as they complete, the page is written last.
+            Assert.assertEquals("archived.html", entries.get(entries.size() - 1));
+            Assert.assertTrue(entries.contains("content/logo.png"));
+            Assert.assertTrue(entries.contains("content/skin.css"));
+            Assert.assertTrue(entries.contains("content/localhost/archive/images/bg.png"));
+            Assert.assertEquals("image /archive/images/bg.png", read(reader, "content/localhost/archive/images/bg.png"));
+            Assert.assertTrue(read(reader, "archived.html").contains("./content/logo.png"));
+            Assert.assertNull(reader.open("content/missing.png"));
+
+            File directory = new File("./target/archived");
+            FileUtils.deleteQuietly(directory);
+            File page = reader.extract(directory);
+            Assert.assertEquals(new File(directory, "archived.html"), page);
+            Assert.assertTrue(FileUtils.readFileToString(new File(directory, "content/skin.css"))
+                    .contains("localhost/archive/images/bg.png"));
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void archiveName()
+    {
+        Assert.assertEquals("page.zip", FetchUtil.getArchiveName("page.html"));
+        Assert.assertEquals("page.zip", FetchUtil.getArchiveName("page"));
+        Assert.assertEquals("v1.2/page.zip", FetchUtil.getArchiveName("v1.2/page"));
+    }
+
+    private static String read(final FetchArchiveReader reader, final String name) throws IOException
+    {
+        InputStream in = reader.open(name);
+        try
+        {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.alfresco.selenium.FetchAssetWriter;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the streaming of downloaded assets to disk.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchAssetWriterTest
+{
+    private File dir;
+
+    @Before
+    public void setup() throws IOException
+    {
+        dir = new File(FetchUtil.OUTPUT_DIR + "writer");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+    }
+
+    @Test
+    public void writeLargeFile() throws IOException
+    {
+        byte[] content = new byte[5 * 1024 * 1024 + 13];
+        new Random(7).nextBytes(content);
+        File output = new File(dir, "bundle.js");
+        long bytes = FetchAssetWriter.write(new ByteArrayInputStream(content), output);
+        Assert.assertEquals(content.length, bytes);
+        Assert.assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(output)));
+        Assert.assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void replaceExisting() throws IOException
+    {
+        File output = new File(dir, "style.css");
+        FileUtils.writeStringToFile(output, "old");
+        FetchAssetWriter.write(new ByteArrayInputStream("new".getBytes()), output);
+        Assert.assertEquals("new", FileUtils.readFileToString(output));
+        Assert.assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void failedDownloadLeavesNoFile()
+    {
+        File output = new File(dir, "broken.js");
+        InputStream in = new InputStream()
+        {
+            private int count;
+            @Override
+            public int read() throws IOException
+            {
+                if(count++ > 1000)
+                {
+                    throw new IOException("Connection reset");
+                }
+                return 'a';
+            }
+        };
+        try
+        {
+            FetchAssetWriter.write(in, output);
+            Assert.fail("Expected the download to fail");
+        }
+        catch(IOException e)
+        {
+            Assert.assertEquals("Connection reset", e.getMessage());
+        }
+        Assert.assertFalse(output.exists());
+        Assert.assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeNull() throws IOException
+    {
+        FetchAssetWriter.write((InputStream) null, new File(dir, "null.js"));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.alfresco.selenium.FetchCSS;
+import org.alfresco.selenium.FetchCSS.Reference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the streaming stylesheet rewrite finds all url() and @import forms.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchCSSRewriteTest
+{
+    private static final String BASE = "http://localhost:8080/share/res/css/skin.css";
+
+    @Test
+    public void urlForms() throws IOException
+    {
+        String css = "body{background:#fff url(\"../images/bg.png\") repeat-x}"
+                + ".a{background-image:url( 'icons/a.png' )}"
+                + ".b{cursor:URL(/share/res/cursor.cur),auto}"
+                + "@font-face{font-family:x;src:url(fonts/x.woff2?v=1) format('woff2'),url(fonts/x.svg#x) format('svg')}"
+                + ".c{background:url(//cdn.alfresco.com/c.gif)}";
+        StringWriter out = new StringWriter();
+        List<Reference> references = FetchCSS.rewrite(new StringReader(css), out, BASE, null);
+        Assert.assertEquals(6, references.size());
+        Assert.assertEquals("http://localhost:8080/share/res/images/bg.png", references.get(0).getUrl());
+        Assert.assertEquals("localhost/share/res/images/bg.png", references.get(0).getPath());
+        Assert.assertEquals("localhost/share/res/css/icons/a.png", references.get(1).getPath());
+        Assert.assertEquals("http://localhost:8080/share/res/cursor.cur", references.get(2).getUrl());
+        Assert.assertEquals("http://localhost:8080/share/res/css/fonts/x.woff2?v=1", references.get(3).getUrl());
+        Assert.assertEquals("localhost/share/res/css/fonts/1d365e2dc4-x.woff2", references.get(3).getPath());
+        Assert.assertEquals("http://localhost:8080/share/res/css/fonts/x.svg", references.get(4).getUrl());
+        Assert.assertEquals("http://cdn.alfresco.com/c.gif", references.get(5).getUrl());
+        Assert.assertEquals("cdn.alfresco.com/c.gif", references.get(5).getPath());
+        Assert.assertEquals("body{background:#fff url(\"localhost/share/res/images/bg.png\") repeat-x}"
+                + ".a{background-image:url( 'localhost/share/res/css/icons/a.png' )}"
+                + ".b{cursor:URL(localhost/share/res/cursor.cur),auto}"
+                + "@font-face{font-family:x;src:url(localhost/share/res/css/fonts/1d365e2dc4-x.woff2) format('woff2'),"
+                + "url(localhost/share/res/css/fonts/x.svg#x) format('svg')}"
+                + ".c{background:url(cdn.alfresco.com/c.gif)}", out.toString());
+    }
+
+    @Test
+    public void nestedLocation() throws IOException
+    {
+        String css = ".a{background:url(../images/bg.png)}.b{background:url(icons/a.png)}"
+                + ".c{cursor:url(/share/res/cursor.cur)}.d{background:url(//cdn.alfresco.com/c.gif)}";
+        StringWriter out = new StringWriter();
+        List<Reference> references = FetchCSS.rewrite(new StringReader(css), out, BASE, "localhost/share/res/css/skin.css");
+        Assert.assertEquals(4, references.size());
+        Assert.assertEquals(".a{background:url(../images/bg.png)}.b{background:url(icons/a.png)}"
+                + ".c{cursor:url(../cursor.cur)}.d{background:url(../../../../cdn.alfresco.com/c.gif)}", out.toString());
+    }
+
+    @Test
+    public void imports() throws IOException
+    {
+        String css = "@import \"base.css\";@import url('print.css') print;@IMPORT 'theme.css' screen;"
+                + ".a{content:\"url(not-an-asset.png)\"}";
+        StringWriter out = new StringWriter();
+        List<Reference> references = FetchCSS.rewrite(new StringReader(css), out, BASE, null);
+        Assert.assertEquals(3, references.size());
+        for(Reference reference : references)
+        {
+            Assert.assertTrue(reference.isStylesheet());
+        }
+        Assert.assertEquals("http://localhost:8080/share/res/css/theme.css", references.get(2).getUrl());
+        Assert.assertEquals("@import \"localhost/share/res/css/base.css\";"
+                + "@import url('localhost/share/res/css/print.css') print;"
+                + "@IMPORT 'localhost/share/res/css/theme.css' screen;"
+                + ".a{content:\"url(not-an-asset.png)\"}", out.toString());
+    }
+
+    @Test
+    public void ignoreCommentsDataAndDuplicates() throws IOException
+    {
+        String css = "/* url(comment.png) @import 'x.css'; */"
+                + ".a{background:url(data:image/png;base64,AAAA)}"
+                + ".b{background:url(a.png)}.c{background:url(\"a.png\")}.d{background:url()}";
+        StringWriter out = new StringWriter();
+        List<Reference> references = FetchCSS.rewrite(new StringReader(css), out, BASE, "localhost/share/res/css/skin.css");
+        Assert.assertEquals(1, references.size());
+        Assert.assertFalse(references.get(0).isStylesheet());
+        Assert.assertEquals(css, out.toString());
+    }
+
+    @Test
+    public void malformed() throws IOException
+    {
+        String css = ".a{background:url(open.png";
+        StringWriter out = new StringWriter();
+        List<Reference> references = FetchCSS.rewrite(new StringReader(css), out, BASE, null);
+        Assert.assertEquals(1, references.size());
+        Assert.assertEquals(".a{background:url(localhost/share/res/css/open.png", out.toString());
+    }
+
+    @Test
+    public void pathsStayInAssetDirectory() throws IOException
+    {
+        String css = ".a{background:url(/../../x.png)}"
+                + ".b{background:url(http://evil.com/%2e%2e/%2E%2E/y.png)}"
+                + ".c{background:url(/share/./res/../z.png)}";
+        StringWriter out = new StringWriter();
+        List<Reference> references = FetchCSS.rewrite(new StringReader(css), out, BASE, null);
+        Assert.assertEquals(3, references.size());
+        Assert.assertEquals("localhost/x.png", references.get(0).getPath());
+        Assert.assertEquals("evil.com/y.png", references.get(1).getPath());
+        Assert.assertEquals("localhost/share/z.png", references.get(2).getPath());
+    }
+
+    @Test
+    public void queryVariants() throws IOException
+    {
+        String css = ".a{background:url(img/sprite.png?v=1)}.b{background:url(img/sprite.png?v=2)}"
+                + ".c{background:url(img/sprite.png)}";
+        StringWriter out = new StringWriter();
+        List<Reference> references = FetchCSS.rewrite(new StringReader(css), out, BASE, "localhost/share/res/css/skin.css");
+        Assert.assertEquals(3, references.size());
+        Assert.assertEquals("localhost/share/res/css/img/1d365e2dc4-sprite.png", references.get(0).getPath());
+        Assert.assertEquals("localhost/share/res/css/img/f67bbdbffc-sprite.png", references.get(1).getPath());
+        Assert.assertEquals("localhost/share/res/css/img/sprite.png", references.get(2).getPath());
+        Assert.assertEquals(".a{background:url(img/1d365e2dc4-sprite.png)}.b{background:url(img/f67bbdbffc-sprite.png)}"
+                + ".c{background:url(img/sprite.png)}", out.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rewriteNull() throws IOException
+    {
+        FetchCSS.rewrite(null, new StringWriter(), BASE, null);
+    }
+}
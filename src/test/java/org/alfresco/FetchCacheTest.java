@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchCache;
+import org.alfresco.selenium.FetchDownloader;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests assets are revalidated or reused from the persistent cache.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchCacheTest
+{
+    private static final String ETAG = "\"v1\"";
+    private static final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+    private static final ConcurrentMap<String, AtomicInteger> downloads = new ConcurrentHashMap<String, AtomicInteger>();
+    private static Server server;
+    private static String domain;
+    private FetchDownloader downloader;
+    private CloseableHttpClient client;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                count(requests, target);
+                if(target.contains("immutable"))
+                {
+                    response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+                }
+                else if(target.contains("nostore"))
+                {
+                    response.setHeader("Cache-Control", "no-store");
+                }
+                else
+                {
+                    response.setHeader("ETag", ETAG);
+                    if(ETAG.equals(request.getHeader("If-None-Match")))
+                    {
+                        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                        baseRequest.setHandled(true);
+                        return;
+                    }
+                }
+                count(downloads, target);
+                response.getWriter().write("var asset = '" + target + "';");
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+    }
+
+    @AfterClass
+    public static void clean() throws Exception
+    {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws IOException
+    {
+        File dir = new File(FetchUtil.OUTPUT_DIR + "cache-test");
+        FileUtils.deleteDirectory(dir);
+        FetchUtil.setCache(new FetchCache(dir));
+        requests.clear();
+        downloads.clear();
+        downloader = new FetchDownloader(2, 2);
+        client = HttpClientBuilder.create().build();
+    }
+
+    @After
+    public void after()
+    {
+        FetchUtil.setCache(null);
+        HttpClientUtils.closeQuietly(client);
+        downloader.close();
+    }
+
+    @Test
+    public void revalidate() throws IOException
+    {
+        File first = fetch("/cache/etag-asset.js");
+        FileUtils.deleteQuietly(first);
+        File second = fetch("/cache/etag-asset.js");
+        Assert.assertEquals(2, requests.get("/cache/etag-asset.js").get());
+        Assert.assertEquals(1, downloads.get("/cache/etag-asset.js").get());
+        Assert.assertEquals("var asset = '/cache/etag-asset.js';", FileUtils.readFileToString(second));
+    }
+
+    @Test
+    public void skipImmutable() throws IOException
+    {
+        fetch("/cache/immutable-asset.js");
+        File second = fetch("/cache/immutable-asset.js");
+        Assert.assertEquals(1, requests.get("/cache/immutable-asset.js").get());
+        Assert.assertEquals("var asset = '/cache/immutable-asset.js';", FileUtils.readFileToString(second));
+    }
+
+    @Test
+    public void noStore() throws IOException
+    {
+        fetch("/cache/nostore-asset.js");
+        fetch("/cache/nostore-asset.js");
+        Assert.assertEquals(2, downloads.get("/cache/nostore-asset.js").get());
+        Assert.assertNull(FetchUtil.getCache().get(domain + "/cache/nostore-asset.js"));
+    }
+
+    private File fetch(final String path)
+    {
+        List<String> urls = Arrays.asList(domain + path);
+        return downloader.download(urls, client).get(0);
+    }
+
+    private static void count(final ConcurrentMap<String, AtomicInteger> counts, final String target)
+    {
+        counts.putIfAbsent(target, new AtomicInteger());
+        counts.get(target).incrementAndGet();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchCompression;
+import org.alfresco.selenium.FetchHttpClient;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests text assets are stored compressed, as sent by the server when gzip encoded.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchCompressionTest
+{
+    private static final String SCRIPT = "var gzipped = 'sent compressed by the server';";
+    private static final String PLAIN = "var plain = 'sent as is by the server';";
+    private static final String CSS = ".gzip{color:red}";
+    private static byte[] gzipScript;
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        gzipScript = FetchCompression.compress(new ByteArrayInputStream(SCRIPT.getBytes(StandardCharsets.UTF_8)));
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                String encoding = request.getHeader("Accept-Encoding");
+                boolean gzip = encoding != null && encoding.contains("gzip");
+                if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><script src=\"/gzip/gzipped.js\"></script>"
+                            + "<script src=\"/gzip/plain.js\"></script>"
+                            + "<link rel=\"stylesheet\" href=\"/gzip/gzipped.css\"></head>"
+                            + "<body><img src=\"/gzip/gzipped.png\"></body></html>");
+                }
+                else if(gzip && target.endsWith("gzipped.js"))
+                {
+                    response.setHeader("Content-Encoding", "gzip");
+                    response.getOutputStream().write(gzipScript);
+                }
+                else if(gzip && target.endsWith("gzipped.css"))
+                {
+                    response.setHeader("Content-Encoding", "gzip");
+                    response.getOutputStream().write(FetchCompression.compress(
+                            new ByteArrayInputStream(CSS.getBytes(StandardCharsets.UTF_8))));
+                }
+                else
+                {
+                    response.getWriter().write(target.endsWith("gzipped.js") ? SCRIPT
+                            : target.endsWith(".css") ? CSS : target.endsWith(".png") ? "image" : PLAIN);
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(true);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        FetchUtil.setCompress(false);
+        FetchHttpClient.closeSession(driver);
+        driver.quit();
+        server.stop();
+    }
+
+    @Test
+    public void saveCompressed() throws Exception
+    {
+        driver.get(domain + "/gzip/page.html");
+        FetchUtil.setCompress(true);
+        try
+        {
+            FetchUtil.save(driver, "compressed.html");
+        }
+        finally
+        {
+            FetchUtil.setCompress(false);
+        }
+        File page = new File(FetchUtil.OUTPUT_DIR, "compressed.html.gz");
+        Assert.assertTrue(gunzip(page).contains("./content/gzipped.js"));
+        //Kept as sent by the server.
+        Assert.assertArrayEquals(gzipScript, FileUtils.readFileToByteArray(new File(FetchUtil.ASSET_DIR, "gzipped.js.gz")));
+        Assert.assertEquals(PLAIN, gunzip(new File(FetchUtil.ASSET_DIR, "plain.js.gz")));
+        //Stylesheets are rewritten, they are decoded and stored as text.
+        Assert.assertEquals(CSS, FileUtils.readFileToString(new File(FetchUtil.ASSET_DIR, "gzipped.css")));
+        Assert.assertEquals("image", FileUtils.readFileToString(new File(FetchUtil.ASSET_DIR, "gzipped.png")));
+    }
+
+    @Test
+    public void saveDecoded() throws Exception
+    {
+        driver.get(domain + "/gzip/page.html");
+        FetchUtil.save(driver, "decoded.html");
+        Assert.assertEquals(SCRIPT, FileUtils.readFileToString(new File(FetchUtil.ASSET_DIR, "gzipped.js")));
+        Assert.assertEquals(CSS, FileUtils.readFileToString(new File(FetchUtil.ASSET_DIR, "gzipped.css")));
+    }
+
+    @Test
+    public void expand() throws Exception
+    {
+        File directory = new File("./target/expand");
+        FileUtils.deleteQuietly(directory);
+        File script = new File(directory, "content/app.js.gz");
+        FileUtils.writeByteArrayToFile(script, gzipScript);
+        Assert.assertEquals(1, FetchCompression.expand(directory));
+        Assert.assertFalse(script.exists());
+        Assert.assertEquals(SCRIPT, FileUtils.readFileToString(new File(directory, "content/app.js")));
+    }
+
+    @Test
+    public void compressible()
+    {
+        Assert.assertTrue(FetchCompression.isCompressible("app.js"));
+        Assert.assertTrue(FetchCompression.isCompressible("PAGE.HTML"));
+        Assert.assertFalse(FetchCompression.isCompressible("skin.css"));
+        Assert.assertFalse(FetchCompression.isCompressible("logo.png"));
+        Assert.assertFalse(FetchCompression.isCompressible(null));
+    }
+
+    private static String gunzip(final File file) throws IOException
+    {
+        GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+        try
+        {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.alfresco.selenium.FetchAssetWriter;
+import org.alfresco.selenium.FetchContentStore;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that identical assets are stored once and linked to each capture.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchContentStoreTest
+{
+    private static final String JS = "var shared = 'content';";
+    private File dir;
+    private FetchContentStore store;
+
+    @Before
+    public void setup() throws IOException
+    {
+        dir = new File(FetchUtil.OUTPUT_DIR + "store-test");
+        FileUtils.deleteDirectory(dir);
+        store = new FetchContentStore(new File(dir, "store"));
+    }
+
+    @Test
+    public void storeOnce() throws IOException
+    {
+        File first = new File(dir, "capture-1/main.js");
+        File second = new File(dir, "capture-2/main.js");
+        Assert.assertEquals(JS.length(), store.write(new ByteArrayInputStream(JS.getBytes()), first));
+        Assert.assertEquals(JS.length(), store.write(new ByteArrayInputStream(JS.getBytes()), second));
+        Assert.assertEquals(JS, FileUtils.readFileToString(first));
+        Assert.assertEquals(JS, FileUtils.readFileToString(second));
+        Collection<File> blobs = FileUtils.listFiles(store.getRoot(), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        Assert.assertEquals(1, blobs.size());
+        Assert.assertEquals(JS, FileUtils.readFileToString(blobs.iterator().next()));
+    }
+
+    @Test
+    public void replaceLinkedAsset() throws IOException
+    {
+        File first = new File(dir, "capture-1/main.css");
+        File second = new File(dir, "capture-2/main.css");
+        store.write(new ByteArrayInputStream(JS.getBytes()), first);
+        store.write(new ByteArrayInputStream(JS.getBytes()), second);
+        FetchAssetWriter.write("rewritten".getBytes(), first);
+        Assert.assertEquals("rewritten", FileUtils.readFileToString(first));
+        Assert.assertEquals(JS, FileUtils.readFileToString(second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullRoot()
+    {
+        new FetchContentStore(null);
+    }
+}
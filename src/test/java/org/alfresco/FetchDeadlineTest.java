@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchDownloader;
+import org.alfresco.selenium.FetchResult;
+import org.alfresco.selenium.FetchSession;
+import org.alfresco.selenium.FetchSnapshot;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests a capture with a deadline keeps the stylesheets and scripts,
+ * replaces the slow images by placeholders and lists them in a manifest.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchDeadlineTest
+{
+    private static final long SLOW = 3000;
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                if(target.endsWith("nested.html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/deadline/nested.css\">"
+                            + "</head><body></body></html>");
+                }
+                else if(target.endsWith("nested.css"))
+                {
+                    response.getWriter().write(".a{background:url(bg.jpg)}.b{background:url(bg-2.jpg)}");
+                }
+                else if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/deadline/style.css\">"
+                            + "<script src=\"/deadline/app.js\"></script></head><body>"
+                            + "<img src=\"/deadline/photo-1.jpg\"><img src=\"/deadline/photo-2.jpg\">"
+                            + "</body></html>");
+                }
+                else if(target.endsWith(".jpg"))
+                {
+                    try
+                    {
+                        Thread.sleep(SLOW);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    response.getOutputStream().write(new byte[100]);
+                }
+                else
+                {
+                    response.getWriter().write(target.endsWith(".css") ? ".a{color:red}" : "var a = 1;");
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(false);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        driver.quit();
+        server.stop();
+    }
+
+    @After
+    public void reset()
+    {
+        FetchUtil.setDeadline(0);
+    }
+
+    @Test
+    public void skipSlowAssets() throws IOException
+    {
+        FileUtils.deleteQuietly(new File(FetchUtil.ASSET_DIR, "photo-1.jpg"));
+        FetchUtil.setDeadline(800);
+        driver.get(domain + "/deadline/page.html");
+        long start = System.currentTimeMillis();
+        FetchResult result = save("deadline.html");
+        Assert.assertTrue("Took " + result.getDuration(), System.currentTimeMillis() - start < SLOW);
+        Assert.assertEquals(Arrays.asList(domain + "/deadline/photo-1.jpg", domain + "/deadline/photo-2.jpg"),
+                result.getSkipped());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertTrue(new File(FetchUtil.ASSET_DIR, "style.css").exists());
+        Assert.assertTrue(new File(FetchUtil.ASSET_DIR, "app.js").exists());
+        Assert.assertFalse(new File(FetchUtil.ASSET_DIR, "photo-1.jpg").exists());
+        String html = FileUtils.readFileToString(result.getFile());
+        Assert.assertTrue(html.contains("./content/style.css"));
+        Assert.assertTrue(html.contains("<img src=\"data:image/gif;base64,"));
+        Assert.assertFalse(html.contains("photo-1.jpg"));
+        List<String> manifest = FileUtils.readLines(new File(FetchUtil.OUTPUT_DIR, "deadline.html" + FetchUtil.MANIFEST_SUFFIX));
+        Assert.assertEquals(3, manifest.size());
+        Assert.assertTrue(manifest.get(0).startsWith("#"));
+        Assert.assertEquals(result.getSkipped(), manifest.subList(1, 3));
+    }
+
+    @Test
+    public void skipSlowStylesheetAssets() throws IOException
+    {
+        FetchUtil.setDeadline(800);
+        driver.get(domain + "/deadline/nested.html");
+        FetchResult result = save("nested.html");
+        //Assets of stylesheets are listed in no particular order.
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(domain + "/deadline/bg.jpg", domain + "/deadline/bg-2.jpg")),
+                new HashSet<String>(result.getSkipped()));
+        Assert.assertEquals(0, result.getFailed());
+        List<String> manifest = FileUtils.readLines(new File(FetchUtil.OUTPUT_DIR, "nested.html" + FetchUtil.MANIFEST_SUFFIX));
+        Assert.assertEquals(result.getSkipped(), manifest.subList(1, 3));
+    }
+
+    @Test
+    public void noDeadline() throws IOException
+    {
+        File manifest = new File(FetchUtil.OUTPUT_DIR, "complete.html" + FetchUtil.MANIFEST_SUFFIX);
+        FileUtils.writeStringToFile(manifest, "stale");
+        driver.get(domain + "/deadline/page.html");
+        FetchResult result = save("complete.html");
+        Assert.assertTrue(result.getSkipped().isEmpty());
+        Assert.assertTrue(new File(FetchUtil.ASSET_DIR, "photo-1.jpg").exists());
+        Assert.assertFalse(manifest.exists());
+    }
+
+    @Test
+    public void priority()
+    {
+        Assert.assertTrue(FetchDownloader.getPriority("http://a/frame.html") < FetchDownloader.getPriority("http://a/s.css?v=1"));
+        Assert.assertTrue(FetchDownloader.getPriority("http://a/s.css") < FetchDownloader.getPriority("http://a/app.js"));
+        Assert.assertTrue(FetchDownloader.getPriority("http://a/app.js") < FetchDownloader.getPriority("http://a/font.woff2"));
+        Assert.assertTrue(FetchDownloader.getPriority("http://a/api/data") < FetchDownloader.getPriority("http://a/logo.PNG"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDeadline()
+    {
+        FetchUtil.setDeadline(-1);
+    }
+
+    private static FetchResult save(final String filename) throws IOException
+    {
+        FetchSession session = new FetchSession();
+        try
+        {
+            return FetchUtil.save(FetchSnapshot.take(driver), session, filename);
+        }
+        finally
+        {
+            session.close();
+        }
+    }
+}
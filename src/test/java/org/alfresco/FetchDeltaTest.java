@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.alfresco.selenium.FetchDelta;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests successive captures of a page are stored as deltas and rebuilt.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchDeltaTest
+{
+    private static final String URL = "http://localhost:8080/share/page/dashboard";
+    private File directory;
+
+    @Before
+    public void setup()
+    {
+        directory = new File("./target/delta");
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void writeDeltas() throws IOException
+    {
+        FetchDelta delta = new FetchDelta();
+        String first = page(200, -1);
+        String second = page(200, 10);
+        String third = page(200, 150);
+        File full = delta.write(URL, first, first, new File(directory, "step-1.html"));
+        File step2 = delta.write(URL, second, second, new File(directory, "step-2.html"));
+        File step3 = delta.write(URL, third, third, new File(directory, "step-3.html"));
+        Assert.assertEquals("step-1.html", full.getName());
+        Assert.assertEquals("step-2.html.delta", step2.getName());
+        Assert.assertEquals("step-3.html.delta", step3.getName());
+        Assert.assertFalse(new File(directory, "step-2.html").exists());
+        //An order of magnitude smaller than the page.
+        Assert.assertTrue(step2.length() * 10 < full.length());
+        Assert.assertEquals(first, FetchDelta.read(full));
+        Assert.assertEquals(second, FetchDelta.read(step2));
+        Assert.assertEquals(third, FetchDelta.read(step3));
+    }
+
+    @Test
+    public void unchanged() throws IOException
+    {
+        FetchDelta delta = new FetchDelta();
+        String html = page(50, -1);
+        Assert.assertNull(delta.getUnchanged(URL, html));
+        File file = delta.write(URL, html, html, new File(directory, "same.html"));
+        Assert.assertEquals(file, delta.getUnchanged(URL, html));
+        Assert.assertNull(delta.getUnchanged(URL, page(50, 3)));
+        Assert.assertNull(delta.getUnchanged("http://localhost:8080/other", html));
+    }
+
+    @Test
+    public void sameFileName() throws IOException
+    {
+        FetchDelta delta = new FetchDelta();
+        File file = new File(directory, "page.html");
+        String[] pages = {page(100, -1), page(100, 1), page(100, 2), page(100, 3)};
+        File last = null;
+        for(String html : pages)
+        {
+            last = delta.write(URL, html, html, file);
+        }
+        //The third capture can not replace the delta it is built on.
+        Assert.assertEquals("page.html.delta", last.getName());
+        Assert.assertEquals(pages[3], FetchDelta.read(last));
+    }
+
+    @Test
+    public void chainLimit() throws IOException
+    {
+        FetchDelta delta = new FetchDelta(4, 2);
+        Assert.assertTrue(delta.write(URL, page(100, -1), page(100, -1), new File(directory, "c-0.html")).getName().endsWith(".html"));
+        Assert.assertTrue(delta.write(URL, page(100, 1), page(100, 1), new File(directory, "c-1.html")).getName().endsWith(".delta"));
+        Assert.assertTrue(delta.write(URL, page(100, 2), page(100, 2), new File(directory, "c-2.html")).getName().endsWith(".delta"));
+        Assert.assertTrue(delta.write(URL, page(100, 3), page(100, 3), new File(directory, "c-3.html")).getName().endsWith(".html"));
+    }
+
+    @Test
+    public void rewrittenPage() throws IOException
+    {
+        FetchDelta delta = new FetchDelta();
+        delta.write(URL, page(100, -1), page(100, -1), new File(directory, "r-1.html"));
+        String other = "<html><body>" + new Random(7).nextLong() + "</body></html>";
+        File file = delta.write(URL, other, other, new File(directory, "r-2.html"));
+        //Not worth a delta.
+        Assert.assertEquals("r-2.html", file.getName());
+        Assert.assertEquals(other, FetchDelta.read(file));
+    }
+
+    @Test
+    public void randomEdits() throws IOException
+    {
+        Random random = new Random(42);
+        FetchDelta delta = new FetchDelta(4, 100);
+        StringBuilder html = new StringBuilder(page(300, -1));
+        for(int i = 0; i < 20; i++)
+        {
+            for(int edit = 0; edit < 5; edit++)
+            {
+                int position = html.indexOf(">", random.nextInt(html.length())) + 1;
+                if(random.nextBoolean())
+                {
+                    html.insert(position, "<span>edit " + i + "</span>\n");
+                }
+                else
+                {
+                    int end = html.indexOf(">", position);
+                    html.delete(position, end < 0 ? html.length() : end + 1);
+                }
+            }
+            String value = html.toString();
+            File file = delta.write(URL, value, value, new File(directory, "random-" + i + ".html"));
+            Assert.assertEquals(value, FetchDelta.read(file));
+        }
+    }
+
+    @Test
+    public void corrupt() throws IOException
+    {
+        FetchDelta delta = new FetchDelta();
+        File base = delta.write(URL, page(100, -1), page(100, -1), new File(directory, "x-1.html"));
+        File file = delta.write(URL, page(100, 5), page(100, 5), new File(directory, "x-2.html"));
+        FileUtils.writeStringToFile(base, page(100, 6));
+        try
+        {
+            FetchDelta.read(file);
+            Assert.fail("The base of the delta has changed");
+        }
+        catch(IOException e)
+        {
+            Assert.assertTrue(e.getMessage().contains("does not match"));
+        }
+    }
+
+    /**
+     * @param rows number of rows in the table
+     * @param changed row whose content changed, -1 for none
+     * @return HTML page
+     */
+    private static String page(final int rows, final int changed)
+    {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><title>Dashboard</title></head>\n<body><table>");
+        for(int i = 0; i < rows; i++)
+        {
+            html.append("<tr class=\"row\"><td>").append(i).append("</td><td>")
+                .append(i == changed ? "updated" : "document-" + i + ".pdf").append("</td></tr>\n");
+        }
+        return html.append("</table></body></html>").toString();
+    }
+}
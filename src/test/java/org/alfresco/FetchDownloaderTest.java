@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchDownloader;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the concurrent download of assets against an embedded server
+ * that delays every response.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchDownloaderTest
+{
+    private static final long DELAY = 200;
+    private static Server server;
+    private static String domain;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                try
+                {
+                    Thread.sleep(DELAY);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                response.setContentType("text/javascript");
+                response.getWriter().write("var asset = '" + target + "';");
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+    }
+
+    @AfterClass
+    public static void clean() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidThreads()
+    {
+        new FetchDownloader(0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void downloadNull()
+    {
+        FetchDownloader downloader = new FetchDownloader(2, 2);
+        try
+        {
+            downloader.download(null, null);
+        }
+        finally
+        {
+            downloader.close();
+        }
+    }
+
+    @Test
+    public void downloadInParallel() throws IOException
+    {
+        int count = 20;
+        List<String> urls = new ArrayList<String>();
+        for(int i = 0; i < count; i++)
+        {
+            urls.add(domain + "/parallel/asset-" + i + ".js");
+        }
+        FetchDownloader downloader = new FetchDownloader(10, 4);
+        CloseableHttpClient client = HttpClientBuilder.create().setMaxConnPerRoute(10).build();
+        try
+        {
+            long start = System.currentTimeMillis();
+            List<File> files = downloader.download(urls, client);
+            long duration = System.currentTimeMillis() - start;
+            Assert.assertEquals(count, files.size());
+            for(int i = 0; i < count; i++)
+            {
+                File file = files.get(i);
+                Assert.assertEquals("asset-" + i + ".js", file.getName());
+                Assert.assertEquals("var asset = '/parallel/asset-" + i + ".js';", FileUtils.readFileToString(file));
+            }
+            //Serial downloads would take count * DELAY.
+            Assert.assertTrue("Took " + duration + "ms", duration < (count * DELAY) / 2);
+        }
+        finally
+        {
+            HttpClientUtils.closeQuietly(client);
+            downloader.close();
+        }
+    }
+
+    @Test
+    public void downloadUnreachable()
+    {
+        FileUtils.deleteQuietly(new File(FetchUtil.ASSET_DIR, "unreachable.js"));
+        FetchDownloader downloader = new FetchDownloader(2, 2);
+        CloseableHttpClient client = HttpClientBuilder.create().build();
+        try
+        {
+            //Nothing listens on port 1, the retries run out without writing the file.
+            List<File> files = downloader.download(Collections.singletonList("http://localhost:1/unreachable.js"), client);
+            Assert.assertEquals(1, files.size());
+            Assert.assertNull(files.get(0));
+        }
+        finally
+        {
+            HttpClientUtils.closeQuietly(client);
+            downloader.close();
+        }
+    }
+
+    @Test
+    public void downloadEmpty()
+    {
+        FetchDownloader downloader = new FetchDownloader(2, 2);
+        CloseableHttpClient client = HttpClientBuilder.create().build();
+        try
+        {
+            Assert.assertEquals(0, downloader.download(Collections.<String>emptyList(), client).size());
+        }
+        finally
+        {
+            HttpClientUtils.closeQuietly(client);
+            downloader.close();
+        }
+    }
+}
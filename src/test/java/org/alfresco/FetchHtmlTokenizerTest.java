@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.util.List;
+
+import org.alfresco.selenium.FetchHtmlTokenizer;
+import org.alfresco.selenium.FetchHtmlTokenizer.Kind;
+import org.alfresco.selenium.FetchHtmlTokenizer.Token;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the single pass tokenizer locates all asset references and their positions.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchHtmlTokenizerTest
+{
+    @Test
+    public void positions()
+    {
+        String html = "<img src=\"/a.png\"><link rel='stylesheet' href='/b.css'>";
+        List<Token> tokens = FetchHtmlTokenizer.tokenize(html);
+        Assert.assertEquals(2, tokens.size());
+        for(Token token : tokens)
+        {
+            Assert.assertEquals(token.getValue(), html.substring(token.getStart(), token.getEnd()));
+        }
+        Assert.assertEquals(Kind.SRC, tokens.get(0).getKind());
+        Assert.assertEquals(Kind.LINK, tokens.get(1).getKind());
+        Assert.assertEquals("/b.css", tokens.get(1).getValue());
+    }
+
+    @Test
+    public void srcset()
+    {
+        String html = "<img srcset=\"small.png 1x, large.png 2x,huge.png\" SRC=small.png>";
+        List<Token> tokens = FetchHtmlTokenizer.tokenize(html);
+        Assert.assertEquals(4, tokens.size());
+        Assert.assertEquals("small.png", tokens.get(0).getValue());
+        Assert.assertEquals("large.png", tokens.get(1).getValue());
+        Assert.assertEquals("huge.png", tokens.get(2).getValue());
+        Assert.assertEquals(Kind.SRCSET, tokens.get(2).getKind());
+        Assert.assertEquals(Kind.SRC, tokens.get(3).getKind());
+    }
+
+    @Test
+    public void styles()
+    {
+        String html = "<style>body{background:url('/bg.png')} .a{cursor:url(/c.cur), auto}</style>"
+                + "<div style=\"background-image:url(&quot;/div.png&quot;)\"></div>";
+        List<Token> tokens = FetchHtmlTokenizer.tokenize(html);
+        Assert.assertEquals(3, tokens.size());
+        Assert.assertEquals("/bg.png", tokens.get(0).getValue());
+        Assert.assertEquals("/c.cur", tokens.get(1).getValue());
+        Assert.assertEquals("/div.png", tokens.get(2).getValue());
+        Assert.assertEquals(Kind.URL, tokens.get(2).getKind());
+    }
+
+    @Test
+    public void skipScriptsCommentsAndData()
+    {
+        String html = "<!-- <img src=\"/comment.png\"> -->"
+                + "<script>var t = '<img src=\"/script.png\">'; if(a<b){}</script>"
+                + "<img src=\"data:image/png;base64,AAAA\"><img src=\"\"><a href=\"/page.html\">"
+                + "<img src=\"/real.png\">";
+        List<Token> tokens = FetchHtmlTokenizer.tokenize(html);
+        Assert.assertEquals(1, tokens.size());
+        Assert.assertEquals("/real.png", tokens.get(0).getValue());
+    }
+
+    @Test
+    public void malformed()
+    {
+        List<Token> tokens = FetchHtmlTokenizer.tokenize("<p>url( never closed <img src=\"/x.png");
+        Assert.assertEquals(1, tokens.size());
+        Assert.assertEquals("/x.png", tokens.get(0).getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tokenizeNull()
+    {
+        FetchHtmlTokenizer.tokenize(null);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchResult;
+import org.alfresco.selenium.FetchSession;
+import org.alfresco.selenium.FetchSnapshot;
+import org.alfresco.selenium.FetchUtil;
+import org.alfresco.selenium.Fetcher;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests small assets are embedded in the page and its stylesheets as data uris
+ * while the larger ones are stored in the content folder.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchInlineTest
+{
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+    private File output;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/inline/style.css\">"
+                            + "<script src=\"/inline/app.js\"></script></head><body>"
+                            + "<img src=\"/inline/icon.png\"><img src=\"/inline/photo.jpg\">"
+                            + "</body></html>");
+                }
+                else if(target.endsWith(".css"))
+                {
+                    response.getWriter().write(".a{background:url(img/sprite.gif)}.b{background:url('img/bg.jpg')}");
+                }
+                else if(target.endsWith(".js"))
+                {
+                    response.getWriter().write("var a = 1;");
+                }
+                else
+                {
+                    boolean large = target.endsWith("photo.jpg") || target.endsWith("bg.jpg");
+                    response.getOutputStream().write(new byte[large ? 8192 : 64]);
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(false);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        driver.quit();
+        server.stop();
+    }
+
+    @Before
+    public void prepare() throws IOException
+    {
+        output = Files.createTempDirectory("fetch-inline").toFile();
+        driver.get(domain + "/inline/page.html");
+    }
+
+    @After
+    public void reset()
+    {
+        FileUtils.deleteQuietly(output);
+    }
+
+    @Test
+    public void inlineSmallAssets() throws IOException
+    {
+        Fetcher fetcher = Fetcher.builder().outputDir(output).hashNames(false).inline(1024).build();
+        FetchResult result = save(fetcher, "inline.html");
+        Assert.assertEquals(0, result.getFailed());
+        String html = FileUtils.readFileToString(result.getFile());
+        Assert.assertTrue(html.contains("src=\"data:image/png;base64,"));
+        Assert.assertTrue(html.contains("src=\"data:text/javascript;base64,"));
+        Assert.assertTrue(html.contains("./content/inline/photo.jpg"));
+        Assert.assertTrue(html.contains("./content/inline/style.css"));
+        File content = new File(output, "content/inline");
+        Assert.assertFalse(new File(content, "icon.png").exists());
+        Assert.assertFalse(new File(content, "app.js").exists());
+        Assert.assertTrue(new File(content, "photo.jpg").exists());
+        String css = FileUtils.readFileToString(new File(content, "style.css"));
+        Assert.assertTrue(css, css.contains("url(data:image/gif;base64,"));
+        Assert.assertTrue(css, css.contains("url('localhost/inline/img/bg.jpg')"));
+        Assert.assertTrue(new File(content, "localhost/inline/img/bg.jpg").exists());
+        Assert.assertFalse(new File(content, "localhost/inline/img/sprite.gif").exists());
+    }
+
+    @Test
+    public void sharedFolderKeepsFiles() throws IOException
+    {
+        Fetcher fetcher = Fetcher.builder().outputDir(output).hashNames(false).isolated(false).inline(1024).build();
+        FetchResult result = save(fetcher, "shared.html");
+        String html = FileUtils.readFileToString(result.getFile());
+        Assert.assertTrue(html.contains("src=\"data:image/png;base64,"));
+        //Other pages may refer to the shared content folder.
+        Assert.assertTrue(new File(output, FetchUtil.ASSET_FOLDER + "icon.png").exists());
+    }
+
+    @Test
+    public void disabled() throws IOException
+    {
+        Fetcher fetcher = Fetcher.builder().outputDir(output).hashNames(false).inline(0).build();
+        String html = FileUtils.readFileToString(save(fetcher, "plain.html").getFile());
+        Assert.assertFalse(html.contains("data:"));
+        Assert.assertTrue(html.contains("./content/plain/icon.png"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeThreshold()
+    {
+        FetchUtil.setInline(-1);
+    }
+
+    private static FetchResult save(final Fetcher fetcher, final String filename) throws IOException
+    {
+        FetchSession session = new FetchSession();
+        try
+        {
+            return fetcher.save(FetchSnapshot.take(driver), session, filename);
+        }
+        finally
+        {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchPolicy;
+import org.alfresco.selenium.FetchResult;
+import org.alfresco.selenium.FetchSession;
+import org.alfresco.selenium.FetchSnapshot;
+import org.alfresco.selenium.FetchUtil;
+import org.alfresco.selenium.Fetcher;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests assets excluded by url or content type, or over the size limits,
+ * are not downloaded and are listed as skipped.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchLimitsTest
+{
+    //More than the socket buffers can hold.
+    private static final int LARGE = 64 * 1024 * 1024;
+    private static final AtomicInteger excluded = new AtomicInteger();
+    private static final AtomicLong served = new AtomicLong();
+    private static volatile CountDownLatch streamed = new CountDownLatch(1);
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+    private File output;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/limits/style.css\"></head><body>"
+                            + "<img src=\"/limits/large.png\"><img src=\"/limits/sized.png\"><img src=\"/limits/small.png\">"
+                            + "<video src=\"/limits/clip.mp4\"></video><img src=\"/ads/banner.png\">"
+                            + "</body></html>");
+                }
+                else if(target.startsWith("/ads/"))
+                {
+                    excluded.incrementAndGet();
+                    response.getOutputStream().write(new byte[10]);
+                }
+                else if(target.endsWith("large.png"))
+                {
+                    //Streamed without Content-Length.
+                    response.setContentType("image/png");
+                    OutputStream out = response.getOutputStream();
+                    byte[] chunk = new byte[8192];
+                    try
+                    {
+                        for(int sent = 0; sent < LARGE; sent += chunk.length)
+                        {
+                            out.write(chunk);
+                            out.flush();
+                            served.addAndGet(chunk.length);
+                        }
+                    }
+                    finally
+                    {
+                        streamed.countDown();
+                    }
+                }
+                else if(target.endsWith("sized.png"))
+                {
+                    response.setContentType("image/png");
+                    response.setContentLength(5000);
+                    response.getOutputStream().write(new byte[5000]);
+                }
+                else if(target.endsWith(".mp4"))
+                {
+                    response.setContentType("video/mp4");
+                    response.getOutputStream().write(new byte[100]);
+                }
+                else if(target.endsWith(".png"))
+                {
+                    response.setContentType("image/png");
+                    response.getOutputStream().write(new byte[100]);
+                }
+                else
+                {
+                    response.setContentType("text/css");
+                    response.getWriter().write(".a{color:red}");
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(false);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        driver.quit();
+        server.stop();
+    }
+
+    @Before
+    public void prepare() throws IOException
+    {
+        output = Files.createTempDirectory("fetch-limits").toFile();
+        excluded.set(0);
+        served.set(0);
+        streamed = new CountDownLatch(1);
+        driver.get(domain + "/limits/page.html");
+    }
+
+    @After
+    public void reset()
+    {
+        FetchUtil.setPolicy(new FetchPolicy());
+        FileUtils.deleteQuietly(output);
+    }
+
+    @Test
+    public void excludeAndCap() throws Exception
+    {
+        FetchPolicy policy = new FetchPolicy();
+        policy.setExcludedUrls("/ads/");
+        policy.setExcludedTypes("Video/");
+        policy.setMaxSize(64 * 1024);
+        FetchUtil.setPolicy(policy);
+        FetchResult result = save(Fetcher.builder().outputDir(output).isolated(false).hashNames(false).build(), "limits.html");
+        Assert.assertEquals(Arrays.asList(domain + "/limits/large.png", domain + "/limits/clip.mp4", domain + "/ads/banner.png"),
+                result.getSkipped());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals(0, excluded.get());
+        //Abandoned long before the end of the content.
+        Assert.assertTrue(streamed.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue("Served " + served.get(), served.get() < LARGE);
+        File content = new File(output, FetchUtil.ASSET_FOLDER);
+        Assert.assertTrue(new File(content, "style.css").exists());
+        Assert.assertTrue(new File(content, "sized.png").exists());
+        Assert.assertFalse(new File(content, "large.png").exists());
+        Assert.assertFalse(new File(content, "clip.mp4").exists());
+        String html = FileUtils.readFileToString(result.getFile());
+        Assert.assertFalse(html.contains("large.png"));
+        Assert.assertFalse(html.contains("banner.png"));
+        Assert.assertTrue(new File(output, "limits.html" + FetchUtil.MANIFEST_SUFFIX).exists());
+    }
+
+    @Test
+    public void budget() throws IOException
+    {
+        FetchPolicy policy = new FetchPolicy();
+        policy.setExcludedUrls("large\\.png", "\\.mp4$", "/ads/");
+        FetchUtil.setPolicy(policy);
+        FetchResult result = save(Fetcher.builder().outputDir(output).isolated(false).hashNames(false).budget(1000).build(), "budget.html");
+        //The Content-Length of sized.png is over what is left, the others fit.
+        Assert.assertTrue(result.getSkipped().contains(domain + "/limits/sized.png"));
+        Assert.assertFalse(result.getSkipped().contains(domain + "/limits/small.png"));
+        Assert.assertEquals(0, result.getFailed());
+        File content = new File(output, FetchUtil.ASSET_FOLDER);
+        Assert.assertTrue(new File(content, "small.png").exists());
+        Assert.assertTrue(new File(content, "style.css").exists());
+        Assert.assertFalse(new File(content, "sized.png").exists());
+    }
+
+    @Test
+    public void limitStream() throws IOException
+    {
+        FetchPolicy policy = new FetchPolicy();
+        AtomicLong budget = new AtomicLong(150);
+        Assert.assertEquals(100, IOUtils.toByteArray(policy.limit(new ByteArrayInputStream(new byte[100]), budget, null)).length);
+        Assert.assertEquals(50, budget.get());
+        InputStream in = policy.limit(new ByteArrayInputStream(new byte[100]), budget, null);
+        try
+        {
+            IOUtils.toByteArray(in);
+            Assert.fail("Budget exceeded");
+        }
+        catch(FetchPolicy.LimitExceededException e)
+        {
+            Assert.assertFalse(policy.isRetryable(e));
+        }
+        policy.setMaxSize(10);
+        try
+        {
+            IOUtils.toByteArray(policy.limit(new ByteArrayInputStream(new byte[11]), null, null));
+            Assert.fail("Maximum size exceeded");
+        }
+        catch(FetchPolicy.LimitExceededException e)
+        {
+            Assert.assertTrue(e.getMessage().contains("10"));
+        }
+    }
+
+    @Test
+    public void excludedUrls()
+    {
+        FetchPolicy policy = new FetchPolicy();
+        Assert.assertFalse(policy.isExcluded("http://localhost/ads/banner.png"));
+        policy.setExcludedUrls("/ADS/", "\\.mp4(\\?|$)");
+        Assert.assertTrue(policy.isExcluded("http://localhost/ads/banner.png"));
+        Assert.assertTrue(policy.isExcluded("http://localhost/clip.mp4?v=1"));
+        Assert.assertFalse(policy.isExcluded("http://localhost/clip.mp4.png"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeBudget()
+    {
+        FetchUtil.setBudget(-1);
+    }
+
+    private static FetchResult save(final Fetcher fetcher, final String filename) throws IOException
+    {
+        FetchSession session = new FetchSession();
+        try
+        {
+            return fetcher.save(FetchSnapshot.take(driver), session, filename);
+        }
+        finally
+        {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import org.alfresco.selenium.FetchMemoryCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the byte bounded least recently used asset cache.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchMemoryCacheTest
+{
+    private static final String URL = "http://localhost:8080/share/res/js/";
+
+    @Test
+    public void hitAndMiss()
+    {
+        FetchMemoryCache cache = new FetchMemoryCache(1000);
+        Assert.assertNull(cache.getContent(URL + "a.js"));
+        cache.putContent(URL + "a.js", new byte[100]);
+        Assert.assertEquals(100, cache.getContent(URL + "a.js").length);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(100, cache.getSize());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed()
+    {
+        FetchMemoryCache cache = new FetchMemoryCache(1000);
+        cache.putContent(URL + "a.js", new byte[250]);
+        cache.putContent(URL + "b.js", new byte[250]);
+        cache.putContent(URL + "c.js", new byte[250]);
+        cache.putContent(URL + "d.js", new byte[250]);
+        //Use a.js so b.js becomes the eldest.
+        Assert.assertNotNull(cache.getContent(URL + "a.js"));
+        cache.putContent(URL + "e.js", new byte[200]);
+        Assert.assertNull(cache.getContent(URL + "b.js"));
+        Assert.assertNotNull(cache.getContent(URL + "a.js"));
+        Assert.assertNotNull(cache.getContent(URL + "e.js"));
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(950, cache.getSize());
+        Assert.assertEquals(4, cache.getCount());
+    }
+
+    @Test
+    public void replaceEntry()
+    {
+        FetchMemoryCache cache = new FetchMemoryCache(1000);
+        cache.putContent(URL + "a.js", new byte[100]);
+        cache.putContent(URL + "a.js", new byte[50]);
+        Assert.assertEquals(50, cache.getSize());
+        Assert.assertEquals(1, cache.getCount());
+    }
+
+    @Test
+    public void skipLargeEntries()
+    {
+        FetchMemoryCache cache = new FetchMemoryCache(1000);
+        Assert.assertFalse(cache.accepts(251));
+        cache.putContent(URL + "bundle.js", new byte[251]);
+        Assert.assertNull(cache.getContent(URL + "bundle.js"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBudget()
+    {
+        new FetchMemoryCache(0);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchHttpClient;
+import org.alfresco.selenium.FetchMetrics;
+import org.alfresco.selenium.FetchMetricsRegistry;
+import org.alfresco.selenium.FetchUtil;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests the phases, bytes and failures of a capture are reported and exported with JMX.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchMetricsTest
+{
+    private static final String IMAGE = "0123456789";
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+    private FetchMetricsRegistry registry;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                if(target.endsWith(".html"))
+                {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/metrics/style.css\"></head>"
+                            + "<body><img src=\"/metrics/logo.png\"><img src=\"/metrics/missing.png\"></body></html>");
+                }
+                else if(target.endsWith(".css"))
+                {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setContentType("text/css");
+                    response.getWriter().write(".a{color:red}");
+                }
+                else if(target.endsWith("logo.png"))
+                {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setContentType("image/png");
+                    response.getOutputStream().write(IMAGE.getBytes("UTF-8"));
+                }
+                else
+                {
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(true);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        FetchHttpClient.closeSession(driver);
+        driver.quit();
+        server.stop();
+    }
+
+    @Before
+    public void enable()
+    {
+        registry = new FetchMetricsRegistry().register();
+        FetchUtil.setMetrics(registry);
+    }
+
+    @After
+    public void disable()
+    {
+        FetchUtil.setMetrics(null);
+        registry.unregister();
+    }
+
+    @Test
+    public void capture() throws IOException
+    {
+        driver.get(domain + "/metrics/page.html");
+        FetchUtil.save(driver, "metrics.html");
+        Assert.assertEquals(1, registry.getCaptures());
+        Assert.assertEquals(3, registry.getAssets());
+        for(FetchMetrics.Phase phase : FetchMetrics.Phase.values())
+        {
+            Assert.assertEquals(phase.name(), 1, registry.getCount(phase));
+        }
+        Assert.assertTrue(registry.getPercentile(FetchMetrics.Phase.CAPTURE, 0.99)
+                >= registry.getPercentile(FetchMetrics.Phase.DOWNLOAD, 0.5));
+        Assert.assertEquals(1, registry.getFailures());
+        Assert.assertTrue(registry.getBytesDownloaded() >= IMAGE.length() + ".a{color:red}".length());
+        Assert.assertTrue(registry.getBytesWritten() > 0);
+        Assert.assertEquals(1, registry.getHosts().length);
+        Assert.assertTrue(registry.getHosts()[0].startsWith("localhost downloads=2"));
+    }
+
+    @Test
+    public void jmx() throws Exception
+    {
+        registry.captured(domain, 4, 100);
+        registry.downloaded("localhost", 10);
+        registry.cacheHit("localhost");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(FetchMetricsRegistry.OBJECT_NAME);
+        Assert.assertEquals(1L, server.getAttribute(name, "Captures"));
+        Assert.assertEquals(4L, server.getAttribute(name, "Assets"));
+        Assert.assertEquals(10L, server.getAttribute(name, "BytesDownloaded"));
+        Assert.assertEquals(1L, server.getAttribute(name, "CacheHits"));
+        Assert.assertEquals(FetchMetrics.Phase.values().length, ((String[]) server.getAttribute(name, "Phases")).length);
+        server.invoke(name, "reset", null, null);
+        Assert.assertEquals(0L, server.getAttribute(name, "Captures"));
+        registry.unregister();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void percentile()
+    {
+        for(int i = 1; i <= 100; i++)
+        {
+            registry.timed(FetchMetrics.Phase.DOWNLOAD, i * 1000000L);
+        }
+        Assert.assertEquals(100, registry.getCount(FetchMetrics.Phase.DOWNLOAD));
+        //Power of two buckets, within a factor of two.
+        double p50 = registry.getPercentile(FetchMetrics.Phase.DOWNLOAD, 0.5);
+        Assert.assertTrue(p50 >= 50 && p50 <= 100);
+        double p99 = registry.getPercentile(FetchMetrics.Phase.DOWNLOAD, 0.99);
+        Assert.assertTrue(p99 >= 99 && p99 <= 198);
+    }
+}
@@ -208,6 +208,30 @@ public  class FetchPageTest
         String html = FetchUtil.parseHtml(test, files);
         Assert.assertNotEquals(test, html);
     }
+    
+    @Test
+    public void parseHTMLRewrite()
+    {
+        String page = "<html><head><base href=\"http://localhost:8080/share/\"/><meta charset=\"ISO-8859-1\">"
+                + "<script src=\"/share/res/js/alfresco.js?v=1.2+(3)\"></script></head>"
+                + "<body><img src=\"http://localhost:8080/share/proxy/alfresco/api/node/doclib/?c=queue&amp;ph=true\">"
+                + "<img src=\"/share/res/js/alfresco.js?v=1.2+(3)\"></body></html>";
+        List<String> files = FetchUtil.extractFiles(page);
+        String html = FetchUtil.parseHtml(page, files);
+        String expected = "<html><head>\n<meta http-equiv=\"content-type\" content=\"text/html; charset=UTF-8\">"
+                + "<script src=\"./content/alfresco.js?v=1.2+(3)\"></script></head>"
+                + "<body><img src=\"./content/c=queue&amp;ph=true\">"
+                + "<img src=\"./content/alfresco.js?v=1.2+(3)\"></body></html>";
+        Assert.assertEquals(expected, html);
+    }
+    
+    @Test
+    public void parseHTMLNoFiles()
+    {
+        String page = "<head></head><body><img src=\"/a.png\"></body>";
+        Assert.assertEquals("<head>\n<meta http-equiv=\"content-type\" content=\"text/html; charset=UTF-8\"></head><body><img src=\"/a.png\"></body>",
+                FetchUtil.parseHtml(page, null));
+    }
  
     
     @Test
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchDownloader;
+import org.alfresco.selenium.FetchMetricsRegistry;
+import org.alfresco.selenium.FetchPolicy;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHttpResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the per host limits, timeouts and retries of the asset requests
+ * against an embedded server that fails, stalls and counts the requests.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchPolicyTest
+{
+    private static final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final AtomicInteger maxRunning = new AtomicInteger();
+    private static Server server;
+    private static String domain;
+    private static CloseableHttpClient client;
+    private FetchPolicy policy;
+    private File directory;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                int count = requests.computeIfAbsent(target, t -> new AtomicInteger()).incrementAndGet();
+                boolean limited = target.startsWith("/limited/");
+                if(limited)
+                {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                }
+                try
+                {
+                    if(target.startsWith("/flaky/") && count < 3)
+                    {
+                        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    }
+                    else if(target.startsWith("/busy/"))
+                    {
+                        response.setStatus(429);
+                        response.setHeader("Retry-After", "0");
+                    }
+                    else if(target.startsWith("/missing/"))
+                    {
+                        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                    }
+                    else if(target.startsWith("/stalled/"))
+                    {
+                        Thread.sleep(2000);
+                        response.getWriter().write("late");
+                    }
+                    else if(target.startsWith("/trickle/"))
+                    {
+                        for(int i = 0; i < 30; i++)
+                        {
+                            response.getWriter().write("data");
+                            response.flushBuffer();
+                            Thread.sleep(100);
+                        }
+                    }
+                    else
+                    {
+                        Thread.sleep(50);
+                        response.getWriter().write("var asset = '" + target + "';");
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch(IOException e)
+                {
+                    //Client went away.
+                }
+                finally
+                {
+                    if(limited)
+                    {
+                        running.decrementAndGet();
+                    }
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        client = HttpClientBuilder.create().setMaxConnPerRoute(20).setMaxConnTotal(20).build();
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        HttpClientUtils.closeQuietly(client);
+        server.stop();
+    }
+
+    @Before
+    public void before()
+    {
+        requests.clear();
+        maxRunning.set(0);
+        policy = new FetchPolicy();
+        policy.setRetries(2, 10);
+        FetchUtil.setPolicy(policy);
+        directory = new File("./target/policy");
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @After
+    public void after()
+    {
+        FetchUtil.setPolicy(new FetchPolicy());
+        FetchUtil.setMetrics(null);
+    }
+
+    @Test
+    public void retryServerErrors() throws IOException
+    {
+        FetchMetricsRegistry metrics = new FetchMetricsRegistry();
+        FetchUtil.setMetrics(metrics);
+        List<File> files = download(domain + "/flaky/app.js");
+        Assert.assertEquals("var asset = '/flaky/app.js';", FileUtils.readFileToString(files.get(0)));
+        Assert.assertEquals(3, requests.get("/flaky/app.js").get());
+        Assert.assertEquals(2, metrics.getRetries());
+        Assert.assertEquals(0, metrics.getFailures());
+    }
+
+    @Test
+    public void retriesExhausted()
+    {
+        policy.setRetries(1, 10);
+        Assert.assertNull(download(domain + "/busy/app.js").get(0));
+        Assert.assertEquals(2, requests.get("/busy/app.js").get());
+    }
+
+    @Test
+    public void clientErrorsNotRetried()
+    {
+        Assert.assertNull(download(domain + "/missing/app.js").get(0));
+        Assert.assertEquals(1, requests.get("/missing/app.js").get());
+    }
+
+    @Test
+    public void readTimeout()
+    {
+        policy.setTimeouts(500, 200, 5000);
+        policy.setRetries(0, 0);
+        long start = System.currentTimeMillis();
+        File file = download(domain + "/stalled/app.js").get(0);
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        Assert.assertFalse(file != null && file.exists());
+    }
+
+    @Test
+    public void requestDeadline()
+    {
+        //Each read succeeds, the whole response takes 3 seconds.
+        policy.setTimeouts(500, 1000, 500);
+        long start = System.currentTimeMillis();
+        File file = download(domain + "/trickle/app.js").get(0);
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertFalse(file != null && file.exists());
+        //Not retried once past its deadline.
+        Assert.assertEquals(1, requests.get("/trickle/app.js").get());
+    }
+
+    @Test
+    public void hostConnections()
+    {
+        policy.setHostConnections(2);
+        List<String> urls = new ArrayList<String>();
+        for(int i = 0; i < 12; i++)
+        {
+            urls.add(domain + "/limited/asset-" + i + ".js");
+        }
+        List<File> files = download(urls.toArray(new String[urls.size()]));
+        for(File file : files)
+        {
+            Assert.assertTrue(file.exists());
+        }
+        Assert.assertTrue("Ran " + maxRunning.get(), maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void hostRate()
+    {
+        policy.setHostRate(20);
+        List<String> urls = new ArrayList<String>();
+        for(int i = 0; i < 10; i++)
+        {
+            urls.add(domain + "/rate/asset-" + i + ".js");
+        }
+        long start = System.currentTimeMillis();
+        download(urls.toArray(new String[urls.size()]));
+        //Ten requests 50ms apart.
+        Assert.assertTrue(System.currentTimeMillis() - start >= 400);
+    }
+
+    @Test
+    public void backoff()
+    {
+        policy.setRetries(3, 100);
+        for(int attempt = 1; attempt <= 3; attempt++)
+        {
+            long delay = policy.getBackoff(attempt, null);
+            Assert.assertTrue(delay >= 0 && delay <= 100L << (attempt - 1));
+        }
+        Assert.assertEquals(-1, policy.getBackoff(4, null));
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 429, "Too Many Requests");
+        response.setHeader("Retry-After", "60");
+        //Capped to 8 times the backoff.
+        Assert.assertEquals(800, policy.getBackoff(1, response));
+        Assert.assertTrue(policy.isRetryable(503));
+        Assert.assertTrue(policy.isRetryable(429));
+        Assert.assertFalse(policy.isRetryable(404));
+        Assert.assertFalse(policy.isRetryable(501));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidConnections()
+    {
+        policy.setHostConnections(0);
+    }
+
+    private List<File> download(final String... urls)
+    {
+        List<String> list = new ArrayList<String>();
+        for(String url : urls)
+        {
+            list.add(url);
+        }
+        FetchDownloader downloader = new FetchDownloader(8, 16);
+        try
+        {
+            return downloader.download(list, client, directory);
+        }
+        finally
+        {
+            downloader.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchRecorder;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests the pages recorded by a test are only saved when it fails.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchRecorderTest
+{
+    private static final AtomicInteger assets = new AtomicInteger();
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><body><h1>" + target + "</h1>"
+                            + "<img src=\"/recorder/logo.png\"></body></html>");
+                }
+                else
+                {
+                    //Counts the downloads of Fetch, not of the browser.
+                    String agent = request.getHeader("User-Agent");
+                    if(agent != null && agent.contains("Apache-HttpClient"))
+                    {
+                        assets.incrementAndGet();
+                    }
+                    response.getWriter().write("image");
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(true);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        driver.quit();
+        server.stop();
+    }
+
+    @Before
+    public void reset()
+    {
+        assets.set(0);
+    }
+
+    @Test
+    public void saveOnFailure() throws Throwable
+    {
+        final FetchRecorder recorder = new FetchRecorder(2);
+        Description description = Description.createTestDescription(FetchRecorderTest.class, "failing");
+        try
+        {
+            recorder.apply(new Statement()
+            {
+                @Override
+                public void evaluate() throws Throwable
+                {
+                    for(String step : new String[] {"home", "login", "dashboard"})
+                    {
+                        driver.get(domain + "/recorder/" + step + ".html");
+                        recorder.record(driver, step);
+                    }
+                    Assert.assertEquals("Nothing is downloaded while the test runs", 0, assets.get());
+                    //The driver may be gone by the time the failure is reported.
+                    driver.get(domain + "/recorder/other.html");
+                    Assert.fail("failing test");
+                }
+            }, description).evaluate();
+            Assert.fail("The failure must be reported");
+        }
+        catch(AssertionError e)
+        {
+            Assert.assertEquals("failing test", e.getMessage());
+        }
+        //Only the last two steps are kept.
+        Assert.assertFalse(new File(FetchUtil.OUTPUT_DIR, "FetchRecorderTest.failing-1-home.html").exists());
+        String login = FileUtils.readFileToString(new File(FetchUtil.OUTPUT_DIR, "FetchRecorderTest.failing-2-login.html"));
+        String dashboard = FileUtils.readFileToString(new File(FetchUtil.OUTPUT_DIR, "FetchRecorderTest.failing-3-dashboard.html"));
+        Assert.assertTrue(login.contains("/recorder/login.html"));
+        Assert.assertTrue(dashboard.contains("/recorder/dashboard.html"));
+        Assert.assertTrue(dashboard.contains("./content/logo.png"));
+        Assert.assertTrue(assets.get() > 0);
+        Assert.assertTrue(recorder.getSnapshots().isEmpty());
+    }
+
+    @Test
+    public void discardOnSuccess() throws Throwable
+    {
+        final FetchRecorder recorder = new FetchRecorder();
+        Description description = Description.createTestDescription(FetchRecorderTest.class, "passing");
+        recorder.apply(new Statement()
+        {
+            @Override
+            public void evaluate() throws Throwable
+            {
+                driver.get(domain + "/recorder/passing.html");
+                recorder.record(driver);
+                Assert.assertEquals(1, recorder.getSnapshots().size());
+            }
+        }, description).evaluate();
+        Assert.assertFalse(new File(FetchUtil.OUTPUT_DIR, "FetchRecorderTest.passing-1.html").exists());
+        Assert.assertEquals(0, assets.get());
+        Assert.assertTrue(recorder.getSnapshots().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCapacity()
+    {
+        new FetchRecorder(0);
+    }
+}
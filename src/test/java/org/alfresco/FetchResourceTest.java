@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import org.alfresco.selenium.FetchResource;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests which of the resources loaded by the browser are captured.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchResourceTest
+{
+    private static final String URL = "http://localhost:8080/share/";
+
+    @Test
+    public void assets()
+    {
+        Assert.assertTrue(new FetchResource(URL + "res/a.png", "img", 100, 5).isAsset());
+        Assert.assertTrue(new FetchResource(URL + "res/aikau/module.js?v=1", "script", 0, 0).isAsset());
+        Assert.assertTrue(new FetchResource(URL + "res/dojo/module.js", "xmlhttprequest", 0, 0).isAsset());
+        Assert.assertTrue(new FetchResource(URL + "res/font.woff2", "css", 0, 0).isAsset());
+    }
+
+    @Test
+    public void serviceCalls()
+    {
+        Assert.assertFalse(new FetchResource(URL + "service/components/dashlets/activities/list", "xmlhttprequest", 0, 0).isAsset());
+        Assert.assertFalse(new FetchResource(URL + "proxy/alfresco/api/people?filter=a.png", "fetch", 0, 0).isAsset());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidUrl()
+    {
+        new FetchResource(null, "img", 0, 0);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchHttpClient;
+import org.alfresco.selenium.FetchResult;
+import org.alfresco.selenium.FetchSession;
+import org.alfresco.selenium.FetchSnapshot;
+import org.alfresco.selenium.FetchUtil;
+import org.alfresco.selenium.Fetcher;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests the page is captured in the background while the test carries on.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchSaveAsyncTest
+{
+    private static final long DELAY = 500;
+    private static final CountDownLatch requested = new CountDownLatch(1);
+    private static final CountDownLatch released = new CountDownLatch(1);
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                if(target.startsWith("/cookies/"))
+                {
+                    if(target.endsWith(".css"))
+                    {
+                        //Held until the other capture is done.
+                        requested.countDown();
+                        await(released);
+                        response.getWriter().write(".a{background:url(a.png)}");
+                    }
+                    else
+                    {
+                        response.getWriter().write(request.getHeader("Cookie"));
+                    }
+                }
+                else if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><script src=\"/async/app.js\"></script></head>"
+                            + "<body><img src=\"/async/slow.png\"></body></html>");
+                }
+                else
+                {
+                    if(target.contains("slow"))
+                    {
+                        try
+                        {
+                            Thread.sleep(DELAY);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    response.getWriter().write("var asset = '" + target + "';");
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(true);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        FetchHttpClient.closeSession(driver);
+        driver.quit();
+        server.stop();
+    }
+
+    @Test
+    public void saveAsync() throws Exception
+    {
+        driver.get(domain + "/async/page.html");
+        CompletableFuture<FetchResult> future = FetchUtil.saveAsync(driver, "async.html");
+        //The slow asset is still downloading, the driver is free.
+        Assert.assertFalse(future.isDone());
+        driver.get(domain + "/async/other.html");
+        Assert.assertTrue(FetchUtil.flush(10, TimeUnit.SECONDS));
+        Assert.assertTrue(future.isDone());
+        FetchResult result = future.get();
+        Assert.assertEquals(2, result.getAssets());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals(domain + "/async/page.html", result.getUrl());
+        Assert.assertTrue(result.getDuration() >= DELAY);
+        String html = FileUtils.readFileToString(result.getFile());
+        Assert.assertTrue(html.contains("./content/slow.png"));
+        Assert.assertEquals("var asset = '/async/slow.png';", FileUtils.readFileToString(FileUtils.getFile(FetchUtil.ASSET_DIR, "slow.png")));
+    }
+
+    @Test
+    public void cookiesOfEachCapture() throws Exception
+    {
+        File root = new File("./target/cookies");
+        FileUtils.deleteQuietly(root);
+        final Fetcher fetcher = Fetcher.builder().outputDir(root).build();
+        final FetchSession session = new FetchSession();
+        String url = domain + "/cookies/page.html";
+        final FetchSnapshot first = new FetchSnapshot("<html><head><link rel=\"stylesheet\" href=\"/cookies/a.css\"></head></html>",
+                url, domain, null, Collections.singletonMap("user", "a"));
+        FetchSnapshot second = new FetchSnapshot("<html><body><img src=\"/cookies/b.png\"></body></html>",
+                url, domain, null, Collections.singletonMap("user", "b"));
+        try
+        {
+            CompletableFuture<FetchResult> future = CompletableFuture.supplyAsync(() ->
+            {
+                try
+                {
+                    return fetcher.save(first, session, "a.html");
+                }
+                catch(IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Assert.assertTrue(requested.await(5, TimeUnit.SECONDS));
+            //Captured while the first one still has to fetch the assets of its stylesheet.
+            fetcher.save(second, session, "b.html");
+            released.countDown();
+            Assert.assertEquals(0, future.get(10, TimeUnit.SECONDS).getFailed());
+            Assert.assertEquals("user=a", FileUtils.readFileToString(new File(root, "content/a/localhost/cookies/a.png")));
+        }
+        finally
+        {
+            released.countDown();
+            session.close();
+        }
+    }
+
+    @Test
+    public void flushWithoutCaptures()
+    {
+        Assert.assertTrue(FetchUtil.flush(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void saveAsyncNull()
+    {
+        FetchUtil.saveAsync(null, "async.html");
+    }
+
+    private static void await(final CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchHttpClient;
+import org.alfresco.selenium.FetchSession;
+import org.alfresco.selenium.FetchSnapshot;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests the pooled http session reuses connections between requests.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchSessionTest
+{
+    private static Server server;
+    private static String domain;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setContentType("text/css");
+                response.getWriter().write("body{color:red;}");
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+    }
+
+    @AfterClass
+    public static void clean() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLimits()
+    {
+        new FetchSession(4, 2, 30);
+    }
+
+    @Test
+    public void closeSessionOfCollectedDriver() throws Exception
+    {
+        FetchSnapshot snapshot = new FetchSnapshot("<html></html>", domain + "/page.html", domain, null, null);
+        FetchSession session = FetchHttpClient.getSession(new HtmlUnitDriver(false), snapshot);
+        WebDriver other = new HtmlUnitDriver(false);
+        try
+        {
+            boolean closed = false;
+            for(int i = 0; i < 50 && !closed; i++)
+            {
+                System.gc();
+                Thread.sleep(100);
+                //Sessions of collected drivers are closed on the next call.
+                FetchHttpClient.getSession(other, snapshot);
+                closed = isClosed(session);
+            }
+            Assert.assertTrue(closed);
+            Assert.assertFalse(isClosed(FetchHttpClient.getSession(other, snapshot)));
+        }
+        finally
+        {
+            FetchHttpClient.closeSession(other);
+            other.quit();
+        }
+    }
+
+    @Test
+    public void reuseConnection() throws IOException
+    {
+        FetchSession session = new FetchSession();
+        try
+        {
+            for(int i = 0; i < 5; i++)
+            {
+                CloseableHttpResponse response = session.getClient().execute(new HttpGet(domain + "/style-" + i + ".css"));
+                try
+                {
+                    Assert.assertEquals("body{color:red;}", EntityUtils.toString(response.getEntity()));
+                }
+                finally
+                {
+                    response.close();
+                }
+            }
+            //All requests went over the same kept alive connection.
+            Assert.assertEquals(1, session.getTotalStats().getAvailable());
+            Assert.assertEquals(0, session.getTotalStats().getLeased());
+        }
+        finally
+        {
+            session.close();
+        }
+    }
+
+    private static boolean isClosed(final FetchSession session) throws IOException
+    {
+        try
+        {
+            session.getClient().execute(new HttpGet(domain + "/style.css")).close();
+            return false;
+        }
+        catch(IllegalStateException e)
+        {
+            //Connection pool shut down.
+            return true;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchHttpClient;
+import org.alfresco.selenium.FetchResource;
+import org.alfresco.selenium.FetchSnapshot;
+import org.alfresco.selenium.FetchUtil;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.WebDriver.Options;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests the page is captured with a single call to the driver.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchSnapshotTest
+{
+    private static final AtomicInteger calls = new AtomicInteger();
+    private static final AtomicInteger authorized = new AtomicInteger();
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.addCookie(new Cookie("JSESSIONID", "session-1"));
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/snapshot/a.css\">"
+                            + "<link rel=\"stylesheet\" href=\"/snapshot/b.css\"></head>"
+                            + "<body><img src=\"/snapshot/logo.png\"></body></html>");
+                }
+                else
+                {
+                    Cookie[] cookies = request.getCookies();
+                    if(cookies != null && cookies.length == 1 && "session-1".equals(cookies[0].getValue()))
+                    {
+                        authorized.incrementAndGet();
+                    }
+                    response.getWriter().write(target.endsWith(".css") ? ".a{color:red}" : "image");
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        //Counts every call made to the browser.
+        driver = new HtmlUnitDriver(true)
+        {
+            @Override
+            public Object executeScript(String script, Object... args)
+            {
+                calls.incrementAndGet();
+                return super.executeScript(script, args);
+            }
+
+            @Override
+            public String getPageSource()
+            {
+                calls.incrementAndGet();
+                return super.getPageSource();
+            }
+
+            @Override
+            public String getCurrentUrl()
+            {
+                calls.incrementAndGet();
+                return super.getCurrentUrl();
+            }
+
+            @Override
+            public Options manage()
+            {
+                calls.incrementAndGet();
+                return super.manage();
+            }
+        };
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        FetchHttpClient.closeSession(driver);
+        driver.quit();
+        server.stop();
+    }
+
+    @Before
+    public void reset()
+    {
+        driver.get(domain + "/snapshot/page.html");
+        calls.set(0);
+        authorized.set(0);
+    }
+
+    @Test
+    public void take()
+    {
+        FetchSnapshot snapshot = FetchSnapshot.take(driver);
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(domain + "/snapshot/page.html", snapshot.getUrl());
+        Assert.assertEquals(domain, snapshot.getOrigin());
+        Assert.assertEquals(snapshot.getUrl(), snapshot.getBaseUri());
+        Assert.assertEquals("session-1", snapshot.getCookies().get(FetchSnapshot.SESSION_COOKIE));
+        Assert.assertTrue(snapshot.getHtml().toLowerCase().contains("/snapshot/logo.png"));
+    }
+
+    @Test
+    public void saveInOneCall() throws IOException
+    {
+        FetchUtil.save(driver, "snapshot.html");
+        //Stylesheets no longer cost a call each.
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(3, authorized.get());
+        Assert.assertTrue(FileUtils.readFileToString(FileUtils.getFile(FetchUtil.OUTPUT_DIR, "snapshot.html")).contains("./content/b.css"));
+    }
+
+    @Test
+    public void discoverResources()
+    {
+        FetchSnapshot snapshot = FetchSnapshot.take(driver, true);
+        Assert.assertEquals(1, calls.get());
+        List<String> urls = new ArrayList<String>();
+        for(FetchResource resource : snapshot.getResources())
+        {
+            urls.add(resource.getUrl());
+        }
+        Assert.assertTrue(urls.contains(domain + "/snapshot/logo.png"));
+        Assert.assertTrue(urls.contains(domain + "/snapshot/a.css"));
+        Assert.assertTrue(urls.contains(domain + "/snapshot/b.css"));
+        Assert.assertNull(FetchSnapshot.take(driver).getResources());
+    }
+
+    @Test
+    public void deriveOrigin()
+    {
+        FetchSnapshot snapshot = new FetchSnapshot("<html></html>", "http://localhost:8080/share/page", null, null, null);
+        Assert.assertEquals("http://localhost:8080", snapshot.getOrigin());
+        Assert.assertEquals("localhost", snapshot.getHost());
+        Assert.assertTrue(snapshot.getCookies().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void takeNull()
+    {
+        FetchSnapshot.take(null);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchStylesheetGraph;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests nested stylesheets are resolved once each, cycles included.
+ *
+ * @author Michael Suzuki
+ */
+public class FetchStylesheetGraphTest
+{
+    private static final Map<String, String> stylesheets = new HashMap<String, String>();
+    private static final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+    private static Server server;
+    private static String domain;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        //skin.css imports a.css and b.css, both import c.css which imports skin.css back.
+        stylesheets.put("/res/css/skin.css", "@import 'a.css';@import url(\"sub/b.css\");body{background:url(img/shared.png)}");
+        stylesheets.put("/res/css/a.css", "@import \"c.css\";.a{background:url(img/shared.png)}");
+        stylesheets.put("/res/css/sub/b.css", "@import '../c.css';.b{background:url(/res/css/img/b.png)}");
+        stylesheets.put("/res/css/c.css", "@import 'skin.css';.c{background:url(img/c.png)}");
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                requests.putIfAbsent(target, new AtomicInteger());
+                requests.get(target).incrementAndGet();
+                String css = stylesheets.get(target);
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().write(css == null ? "image " + target : css);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test
+    public void resolveNested() throws IOException
+    {
+        File root = new File("./target/graph/");
+        FileUtils.deleteDirectory(root);
+        root.mkdirs();
+        File skin = new File(root, "skin.css");
+        FileUtils.write(skin, stylesheets.get("/res/css/skin.css"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CloseableHttpClient client = HttpClientBuilder.create().build();
+        try
+        {
+            FetchStylesheetGraph graph = new FetchStylesheetGraph(root, client, executor);
+            graph.resolve(domain + "/res/css/skin.css", skin).join();
+            Assert.assertEquals(4, graph.getStylesheets());
+            Assert.assertEquals(1, graph.getCycles());
+            //skin, a, b, c, shared.png, b.png and c.png
+            Assert.assertEquals(7, graph.getResolved());
+            for(AtomicInteger count : requests.values())
+            {
+                Assert.assertEquals(1, count.get());
+            }
+            Assert.assertNull(requests.get("/res/css/skin.css"));
+            File c = new File(root, "localhost/res/css/c.css");
+            Assert.assertEquals("@import '../../../skin.css';.c{background:url(img/c.png)}", FileUtils.readFileToString(c));
+            Assert.assertEquals("image /res/css/img/c.png", FileUtils.readFileToString(new File(root, "localhost/res/css/img/c.png")));
+            File b = new File(root, "localhost/res/css/sub/b.css");
+            Assert.assertEquals("@import '../c.css';.b{background:url(../img/b.png)}", FileUtils.readFileToString(b));
+            Assert.assertTrue(new File(root, "localhost/res/css/img/shared.png").exists());
+        }
+        finally
+        {
+            HttpClientUtils.closeQuietly(client);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void dropReferencesOutsideRoot() throws IOException
+    {
+        File root = new File("./target/graph/escape/");
+        FileUtils.deleteDirectory(root);
+        root.mkdirs();
+        File escaped = new File(root, "../../pwn.png");
+        FileUtils.deleteQuietly(escaped);
+        File skin = new File(root, "skin.css");
+        String css = ".a{background:url(/res/..%2f..%2f..%2f..%2fpwn.png)}.b{background:url(/res/img/ok.png)}";
+        FileUtils.write(skin, css);
+        //Jetty rejects encoded separators, a server that does not serves them.
+        HttpServer lenient = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        lenient.createContext("/", exchange ->
+        {
+            byte[] body = "image".getBytes();
+            exchange.sendResponseHeaders(HttpServletResponse.SC_OK, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        lenient.start();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CloseableHttpClient client = HttpClientBuilder.create().build();
+        try
+        {
+            String url = "http://localhost:" + lenient.getAddress().getPort() + "/res/css/escape.css";
+            new FetchStylesheetGraph(root, client, executor).resolve(url, skin).join();
+            Assert.assertFalse(escaped.getCanonicalFile().exists());
+            Assert.assertTrue(new File(root, "localhost/res/img/ok.png").exists());
+        }
+        finally
+        {
+            HttpClientUtils.closeQuietly(client);
+            executor.shutdown();
+            lenient.stop(0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resolveNull() throws IOException
+    {
+        CloseableHttpClient client = HttpClientBuilder.create().build();
+        try
+        {
+            new FetchStylesheetGraph(new File("./target/graph/"), client, Executors.newSingleThreadExecutor()).resolve(domain, null);
+        }
+        finally
+        {
+            HttpClientUtils.closeQuietly(client);
+        }
+    }
+}
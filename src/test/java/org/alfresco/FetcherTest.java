@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.selenium.FetchResource;
+import org.alfresco.selenium.FetchResult;
+import org.alfresco.selenium.FetchSession;
+import org.alfresco.selenium.FetchSnapshot;
+import org.alfresco.selenium.Fetcher;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * Tests concurrent captures of pages with assets of the same name
+ * do not write over each other.
+ *
+ * @author Michael Suzuki
+ */
+public class FetcherTest
+{
+    private static final Pattern SCRIPT = Pattern.compile("src=\"\\./([^\"]+)\"");
+    private static Server server;
+    private static String domain;
+    private static HtmlUnitDriver driver;
+    private File root;
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException
+            {
+                response.setStatus(HttpServletResponse.SC_OK);
+                //Every site has a main.js and a style.css of its own.
+                String site = target.substring(1, target.indexOf('/', 1));
+                if(target.endsWith(".html"))
+                {
+                    response.setContentType("text/html");
+                    response.getWriter().write("<html><head><link rel=\"stylesheet\" href=\"/" + site + "/style.css\">"
+                            + "<script src=\"/" + site + "/js/main.js\"></script></head><body></body></html>");
+                }
+                else if(target.endsWith(".css"))
+                {
+                    response.getWriter().write(".logo{background:url(img/logo.png)}");
+                }
+                else
+                {
+                    response.getWriter().write("var site = '" + site + "';");
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        domain = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+        driver = new HtmlUnitDriver(false);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception
+    {
+        driver.quit();
+        server.stop();
+    }
+
+    @Before
+    public void clean()
+    {
+        root = new File("./target/fetcher");
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Test
+    public void sameAssetNames() throws Exception
+    {
+        final Fetcher fetcher = Fetcher.builder().outputDir(root).build();
+        List<FetchSnapshot> snapshots = new ArrayList<FetchSnapshot>();
+        for(int i = 0; i < 8; i++)
+        {
+            driver.get(domain + "/site" + i + "/page.html");
+            snapshots.add(FetchSnapshot.take(driver));
+        }
+        List<FetchResult> results = saveAll(fetcher, snapshots, "page");
+        for(int i = 0; i < results.size(); i++)
+        {
+            String html = FileUtils.readFileToString(results.get(i).getFile());
+            Matcher matcher = SCRIPT.matcher(html);
+            Assert.assertTrue(matcher.find());
+            String script = matcher.group(1);
+            Assert.assertTrue(script, script.startsWith("content/page-" + i + "/") && script.endsWith("-main.js"));
+            Assert.assertEquals("var site = 'site" + i + "';", FileUtils.readFileToString(new File(root, script)));
+            //Nested assets are stored within the folder of the capture.
+            Assert.assertTrue(new File(root, "content/page-" + i + "/localhost/site" + i + "/img/logo.png").exists());
+        }
+    }
+
+    @Test
+    public void separateOutputDirs() throws Exception
+    {
+        driver.get(domain + "/one/page.html");
+        FetchSnapshot one = FetchSnapshot.take(driver);
+        driver.get(domain + "/two/page.html");
+        FetchSnapshot two = FetchSnapshot.take(driver);
+        Fetcher first = Fetcher.builder().outputDir(new File(root, "first")).isolated(false).hashNames(false).build();
+        Fetcher second = Fetcher.builder().outputDir(new File(root, "second")).isolated(false).hashNames(false).build();
+        save(first, one, "page.html");
+        save(second, two, "page.html");
+        Assert.assertEquals("var site = 'one';", FileUtils.readFileToString(new File(root, "first/content/main.js")));
+        Assert.assertEquals("var site = 'two';", FileUtils.readFileToString(new File(root, "second/content/main.js")));
+        Assert.assertTrue(FileUtils.readFileToString(new File(root, "second/page.html")).contains("./content/main.js"));
+    }
+
+    @Test
+    public void archive() throws Exception
+    {
+        driver.get(domain + "/zip/page.html");
+        Fetcher fetcher = Fetcher.builder().outputDir(root).archive(true).build();
+        FetchResult result = save(fetcher, FetchSnapshot.take(driver), "zipped.html");
+        Assert.assertEquals(new File(root, "zipped.zip"), result.getFile());
+        Assert.assertEquals(0, result.getFailed());
+    }
+
+    @Test
+    public void repeatedReferencesWithResources() throws Exception
+    {
+        String url = domain + "/dup/page.html";
+        String html = "<html><head><script src=\"/dup/b.js\"></script></head>"
+                + "<body><img src=\"/dup/a.png\"><img src=\"/dup/a.png\"></body></html>";
+        List<FetchResource> resources = new ArrayList<FetchResource>();
+        resources.add(new FetchResource(domain + "/dup/c.js", "script", 0, 0));
+        FetchSnapshot snapshot = new FetchSnapshot(html, url, domain, url, null, resources);
+        Fetcher fetcher = Fetcher.builder().outputDir(root).build();
+        String page = FileUtils.readFileToString(save(fetcher, snapshot, "dup.html").getFile());
+        Matcher matcher = Pattern.compile("src=\"\\./[^\"]+/([^\"]+)\"").matcher(page);
+        List<String> names = new ArrayList<String>();
+        while(matcher.find())
+        {
+            names.add(matcher.group(1));
+        }
+        Assert.assertEquals(3, names.size());
+        Assert.assertTrue(names.get(0), names.get(0).endsWith("-b.js"));
+        Assert.assertTrue(names.get(1), names.get(1).endsWith("-a.png"));
+        Assert.assertEquals(names.get(1), names.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputDirRequired()
+    {
+        Fetcher.builder().outputDir(null);
+    }
+
+    private static List<FetchResult> saveAll(final Fetcher fetcher, final List<FetchSnapshot> snapshots, final String prefix)
+            throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(snapshots.size());
+        try
+        {
+            List<Future<FetchResult>> futures = new ArrayList<Future<FetchResult>>();
+            for(int i = 0; i < snapshots.size(); i++)
+            {
+                final FetchSnapshot snapshot = snapshots.get(i);
+                final String filename = prefix + "-" + i + ".html";
+                futures.add(executor.submit(new Callable<FetchResult>()
+                {
+                    @Override
+                    public FetchResult call() throws Exception
+                    {
+                        return save(fetcher, snapshot, filename);
+                    }
+                }));
+            }
+            List<FetchResult> results = new ArrayList<FetchResult>();
+            for(Future<FetchResult> future : futures)
+            {
+                results.add(future.get());
+            }
+            return results;
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static FetchResult save(final Fetcher fetcher, final FetchSnapshot snapshot, final String filename)
+            throws IOException
+    {
+        FetchSession session = new FetchSession();
+        try
+        {
+            return fetcher.save(snapshot, session, filename);
+        }
+        finally
+        {
+            session.close();
+        }
+    }
+}